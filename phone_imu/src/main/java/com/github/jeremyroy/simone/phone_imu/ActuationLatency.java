@@ -0,0 +1,56 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Latency of a motor command through each hop of the actuation path, from
+// the MotorCTRL listener to the first PWM sample carrying the new widths
+// leaving the output sink. All timestamps come from System.nanoTime().
+//
+// Commands that are overwritten before the synthesizer reaches a period
+// boundary never make it to the motors and only show up in the first stage.
+public class ActuationLatency
+{
+    private final LatencyHistogram m_receipt_to_write = new LatencyHistogram();
+    private final LatencyHistogram m_write_to_synth = new LatencyHistogram();
+    private final LatencyHistogram m_synth_to_output = new LatencyHistogram();
+    private final LatencyHistogram m_total = new LatencyHistogram();
+    private final LatencyHistogram m_sensor_to_output = new LatencyHistogram();
+
+    // Listener receipt to the duties being published to the audio thread
+    public LatencyHistogram getReceiptToWrite()
+    {
+        return m_receipt_to_write;
+    }
+
+    // Published duties to the synthesizer rendering them at a period boundary
+    public LatencyHistogram getWriteToSynth()
+    {
+        return m_write_to_synth;
+    }
+
+    // Rendered period to it being played, i.e. the depth of the sink's buffer
+    public LatencyHistogram getSynthToOutput()
+    {
+        return m_synth_to_output;
+    }
+
+    // Listener receipt to the first sample with the new widths being played
+    public LatencyHistogram getTotal()
+    {
+        return m_total;
+    }
+
+    // End of the IMU sensor callback that produced the command to its first
+    // sample being played, for commands traced through a PipelineTrace
+    public LatencyHistogram getSensorToOutput()
+    {
+        return m_sensor_to_output;
+    }
+
+    public void addTo(DiagnosticsPublisher diagnostics, String prefix)
+    {
+        diagnostics.addHistogram(prefix + "receipt to write", m_receipt_to_write);
+        diagnostics.addHistogram(prefix + "write to synth", m_write_to_synth);
+        diagnostics.addHistogram(prefix + "synth to output", m_synth_to_output);
+        diagnostics.addHistogram(prefix + "total", m_total);
+        diagnostics.addHistogram(prefix + "sensor to output", m_sensor_to_output);
+    }
+}
@@ -7,6 +7,16 @@ public class AttitudeController
     private MiniPID m_roll_att_pid;
     private MiniPID m_pitch_att_pid;
 
+    // Desired attitude, for the quaternion error path
+    private double m_roll_setpoint;
+    private double m_pitch_setpoint;
+    private final Vect3F m_desired_axis = new Vect3F(1.0, 0.0, 0.0);
+
+    // Scratch state for the quaternion error path
+    private final Quat m_attitude = new Quat();
+    private final Vect3F m_axis = new Vect3F();
+    private final Vect3F m_error = new Vect3F();
+
     public AttitudeController(Vect3F roll, Vect3F pitch)
     {
         m_roll_att_pid = new MiniPID(roll.x, roll.y, roll.z);
@@ -17,9 +27,37 @@ public class AttitudeController
     {
         m_pitch_att_pid.setSetpoint(orientation.x);
         m_roll_att_pid.setSetpoint(orientation.y);
+
+        m_pitch_setpoint = orientation.x;
+        m_roll_setpoint = orientation.y;
+
+        // Direction the attitude error path steers the body x axis towards,
+        // in the frame quat2Euler measures angles in (see below)
+        double pitch = -orientation.x;
+        double roll = -orientation.y;
+        QuatMath.set(m_desired_axis,
+                Math.cos(pitch) * Math.cos(roll),
+                Math.cos(pitch) * Math.sin(roll),
+                -Math.sin(pitch));
     }
 
     public Vect3F getOutput(Vect3F sensor_orientation)
+    {
+        Vect3F rate_adj = new Vect3F();
+        getOutput(sensor_orientation, rate_adj);
+        return rate_adj;
+    }
+
+    // In-place variant: writes the rate adjustments to rate_adj.x and .y
+    // and leaves rate_adj.z untouched
+    public void getOutput(Vect3F sensor_orientation, Vect3F rate_adj)
+    {
+        getOutput(sensor_orientation, rate_adj, 0);
+    }
+
+    // As above for a tick dt_nanos after the previous one, with the I and D
+    // terms scaled to match (see MiniPID.getOutput). 0 assumes one nominal period.
+    public void getOutput(Vect3F sensor_orientation, Vect3F rate_adj, long dt_nanos)
     {
         double sensor_roll_att = sensor_orientation.y;
         double sensor_pitch_att = sensor_orientation.x;
@@ -33,15 +71,59 @@ public class AttitudeController
         double roll_rate_adj = 0.0;
         double pitch_rate_adj = 0.0;
         
-        roll_rate_adj  = m_roll_att_pid.getOutput(sensor_roll_att);
-        pitch_rate_adj = m_pitch_att_pid.getOutput(sensor_pitch_att);
+        roll_rate_adj  = m_roll_att_pid.getOutput(sensor_roll_att, m_roll_att_pid.getSetpoint(), dt_nanos);
+        pitch_rate_adj = m_pitch_att_pid.getOutput(sensor_pitch_att, m_pitch_att_pid.getSetpoint(), dt_nanos);
 
-        // Format and return angular rate adjustments
-        Vect3F rate_adj = new Vect3F();
+        // Format angular rate adjustments
         rate_adj.x = roll_rate_adj;
         rate_adj.y = pitch_rate_adj;
+    }
 
-        return rate_adj;
+    // Quaternion-native variant of getOutput, taking the orientation
+    // quaternion as reported by the IMU. Writes the rate adjustments to
+    // rate_adj.x and .y and leaves rate_adj.z untouched.
+    //
+    // quat2Euler reads the IMU quaternion (w, x, y, z) as the quaternion
+    // (w, -x, z, y) in a frame where its pitch and roll are the negated
+    // Z-Y-X Euler pitch and yaw, i.e. the elevation and azimuth of the body
+    // x axis. Rather than extracting those angles with atan2/asin, this
+    // steers the body x axis directly towards the desired axis along the
+    // shortest arc. The y and z components of that rotation reduce to the
+    // pitch and roll errors of the Euler path for small angles, and stay
+    // well defined where the Euler angles hit gimbal lock.
+    public void getOutput(Quat sensor_attitude, Vect3F rate_adj)
+    {
+        getOutput(sensor_attitude, rate_adj, 0);
+    }
+
+    public void getOutput(Quat sensor_attitude, Vect3F rate_adj, long dt_nanos)
+    {
+        QuatMath.set(m_attitude, sensor_attitude.w, -sensor_attitude.x,
+                sensor_attitude.z, sensor_attitude.y);
+        QuatMath.axisX(m_attitude, m_axis);
+        QuatMath.arcError(m_axis, m_desired_axis, m_error);
+
+        // Feed the PIDs a measurement that yields the quaternion error
+        double sensor_roll_att = m_roll_setpoint + m_error.z;
+        double sensor_pitch_att = m_pitch_setpoint + m_error.y;
+
+        rate_adj.x = m_roll_att_pid.getOutput(sensor_roll_att, m_roll_setpoint, dt_nanos);
+        rate_adj.y = m_pitch_att_pid.getOutput(sensor_pitch_att, m_pitch_setpoint, dt_nanos);
+    }
+
+    // Changes the gains without clearing the integrators, whose state is
+    // rescaled to keep the I term's output the same
+    public void setGains(Vect3F roll, Vect3F pitch)
+    {
+        m_roll_att_pid.setPID(roll.x, roll.y, roll.z);
+        m_pitch_att_pid.setPID(pitch.x, pitch.y, pitch.z);
+    }
+
+    // P, I and D terms of the last output of each axis, as x, y and z
+    public void getTerms(Vect3F roll, Vect3F pitch)
+    {
+        RateController.getTerms(m_roll_att_pid, roll);
+        RateController.getTerms(m_pitch_att_pid, pitch);
     }
 
     public void reset(Vect3F roll, Vect3F pitch)
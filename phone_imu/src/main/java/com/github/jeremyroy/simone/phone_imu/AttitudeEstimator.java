@@ -0,0 +1,184 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Mahony complementary filter estimating the phone's attitude from raw
+// gyroscope and accelerometer readings, as a replacement for Android's
+// vendor-fused rotation vector.
+//
+// The gyroscope is integrated at its full rate. Each step the accelerometer
+// direction, taken as "up" while its magnitude is close to 1 g, is compared
+// with the up direction predicted by the current estimate, and the cross
+// product of the two is fed back into the rates through a PI correction.
+// The I term learns the gyroscope bias. Heading is not observable from the
+// accelerometer and drifts with the gyroscope.
+//
+// The estimate is a Hamilton quaternion rotating phone frame vectors into a
+// z-up reference frame, as Android's rotation vector does. Readings are in
+// the phone frame: rad/s for the gyroscope and m/s^2 for the accelerometer.
+// Nothing here allocates.
+class AttitudeEstimator
+{
+    public static final double GRAVITY = 9.80665;
+
+    // Accelerometer readings further than this from 1 g are not trusted
+    private static final double ACCEL_GATE = 0.5;
+
+    private double m_kp;
+    private double m_ki;
+
+    // Estimate
+    private double m_w = 1.0;
+    private double m_x;
+    private double m_y;
+    private double m_z;
+    private boolean m_initialized;
+
+    // Integral of the correction, i.e. minus the gyroscope bias
+    private double m_ix;
+    private double m_iy;
+    private double m_iz;
+
+    // Latest trusted accelerometer direction, unit length, or 0
+    private double m_ax;
+    private double m_ay;
+    private double m_az;
+
+    public AttitudeEstimator()
+    {
+        this(2.0, 0.05);
+    }
+
+    // kp: correction towards the accelerometer, in rad/s per unit error.
+    // ki: gyroscope bias learning rate.
+    public AttitudeEstimator(double kp, double ki)
+    {
+        m_kp = kp;
+        m_ki = ki;
+    }
+
+    public void setGains(double kp, double ki)
+    {
+        m_kp = kp;
+        m_ki = ki;
+    }
+
+    // Forgets the estimate and the learnt bias
+    public void reset()
+    {
+        m_w = 1.0;
+        m_x = m_y = m_z = 0.0;
+        m_ix = m_iy = m_iz = 0.0;
+        m_ax = m_ay = m_az = 0.0;
+        m_initialized = false;
+    }
+
+    public boolean isInitialized()
+    {
+        return m_initialized;
+    }
+
+    // Takes an accelerometer reading for the next gyroscope steps. The
+    // first one levels the estimate straight away.
+    public void updateAccel(double ax, double ay, double az)
+    {
+        double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (Math.abs(norm - GRAVITY) > ACCEL_GATE * GRAVITY) {
+            m_ax = m_ay = m_az = 0.0;
+            return;
+        }
+
+        m_ax = ax / norm;
+        m_ay = ay / norm;
+        m_az = az / norm;
+
+        if (!m_initialized) {
+            level(m_ax, m_ay, m_az);
+            m_initialized = true;
+        }
+    }
+
+    // Advances the estimate by dt seconds of rotation at the given rates
+    public void updateGyro(double gx, double gy, double gz, double dt)
+    {
+        if (dt <= 0.0)
+            return;
+
+        double w = m_w, x = m_x, y = m_y, z = m_z;
+
+        if (m_ax != 0.0 || m_ay != 0.0 || m_az != 0.0) {
+            // Up direction predicted by the estimate, in the phone frame
+            double vx = 2.0 * (x * z - w * y);
+            double vy = 2.0 * (w * x + y * z);
+            double vz = w * w - x * x - y * y + z * z;
+
+            // Error is the rotation from predicted to measured up
+            double ex = m_ay * vz - m_az * vy;
+            double ey = m_az * vx - m_ax * vz;
+            double ez = m_ax * vy - m_ay * vx;
+
+            if (m_ki > 0.0) {
+                m_ix += m_ki * ex * dt;
+                m_iy += m_ki * ey * dt;
+                m_iz += m_ki * ez * dt;
+            }
+            gx += m_kp * ex + m_ix;
+            gy += m_kp * ey + m_iy;
+            gz += m_kp * ez + m_iz;
+        }
+
+        // q += q * (0, g) * dt / 2
+        double h = 0.5 * dt;
+        double nw = w + (-x * gx - y * gy - z * gz) * h;
+        double nx = x + (w * gx + y * gz - z * gy) * h;
+        double ny = y + (w * gy - x * gz + z * gx) * h;
+        double nz = z + (w * gz + x * gy - y * gx) * h;
+
+        double n = 1.0 / Math.sqrt(nw * nw + nx * nx + ny * ny + nz * nz);
+        m_w = nw * n;
+        m_x = nx * n;
+        m_y = ny * n;
+        m_z = nz * n;
+    }
+
+    public void getQuaternion(Quat out)
+    {
+        QuatMath.set(out, m_w, m_x, m_y, m_z);
+    }
+
+    // Gravity-free acceleration in the phone frame from a raw accelerometer
+    // reading, using the current estimate
+    public void removeGravity(double ax, double ay, double az, Vect3F out)
+    {
+        double w = m_w, x = m_x, y = m_y, z = m_z;
+        QuatMath.set(out,
+                ax - GRAVITY * 2.0 * (x * z - w * y),
+                ay - GRAVITY * 2.0 * (w * x + y * z),
+                az - GRAVITY * (w * w - x * x - y * y + z * z));
+    }
+
+    // Estimated gyroscope bias, rad/s
+    public void getGyroBias(Vect3F out)
+    {
+        QuatMath.set(out, -m_ix, -m_iy, -m_iz);
+    }
+
+    // Sets the estimate to the level attitude with zero heading whose up
+    // direction is (ux, uy, uz), unit length
+    private void level(double ux, double uy, double uz)
+    {
+        // Shortest rotation taking the phone's up to the reference z axis
+        double w = 1.0 + uz;
+        if (w < 1e-9) {
+            // Upside down
+            m_w = 0.0;
+            m_x = 1.0;
+            m_y = 0.0;
+            m_z = 0.0;
+            return;
+        }
+        double n = 1.0 / Math.sqrt(w * w + uy * uy + ux * ux);
+        m_w = w * n;
+        m_x = uy * n;
+        m_y = -ux * n;
+        m_z = 0.0;
+    }
+}
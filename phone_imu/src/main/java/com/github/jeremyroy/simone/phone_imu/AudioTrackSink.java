@@ -0,0 +1,53 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+// Plays the motor waveform through the phone's headphone jack
+public class AudioTrackSink implements MotorSink
+{
+    private AudioTrack at = null;
+
+    @Override
+    public int open(int sampleRate)
+    {
+        int buff_size = AudioTrack.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT);
+
+        at = new AudioTrack(AudioManager.STREAM_MUSIC,
+                sampleRate,
+                AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT,
+                buff_size,
+                AudioTrack.MODE_STREAM);
+
+        at.play();
+
+        return buff_size;
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length)
+    {
+        at.write(samples, offset, length);
+    }
+
+    @Override
+    public long getPlaybackPosition()
+    {
+        // The head position is an unsigned frame count
+        return at != null ? at.getPlaybackHeadPosition() & 0xFFFFFFFFL : 0;
+    }
+
+    @Override
+    public void close()
+    {
+        if (at != null) {
+            at.stop();
+            at.release();
+            at = null;
+        }
+    }
+}
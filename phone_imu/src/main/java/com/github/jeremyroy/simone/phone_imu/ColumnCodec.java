@@ -0,0 +1,193 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.Arrays;
+
+// Lossless compression of one column of flight log values, as in Gorilla
+// (Pelkonen et al., VLDB 2015), for ColumnarLog blocks.
+//
+// Stamps, being regularly spaced, are stored as the first stamp, the first
+// delta, then zigzag varints of the change in delta, which is a single byte
+// for most samples. Other values are stored as the XOR of each double with
+// the previous one: a 0 bit when unchanged, otherwise the meaningful bits of
+// the XOR, reusing the previous count of leading and trailing zeros when
+// they fit. Slowly varying sensor data, flags and sequence numbers shrink to
+// a fraction of their 8 bytes.
+//
+// An encoder keeps its buffer between columns, so encoding allocates only
+// when a column is larger than any before it.
+class ColumnCodec
+{
+    private byte[] m_bytes = new byte[1024];
+    private int m_length;
+
+    // Input being decoded, and the position in bits, or in bytes for varints
+    private byte[] m_in;
+    private int m_bit;
+
+    // Encoded bytes of the last column, valid up to getLength()
+    public byte[] getBytes()
+    {
+        return m_bytes;
+    }
+
+    public int getLength()
+    {
+        return m_length;
+    }
+
+    // Encodes rows stamps, read from values[offset + r * stride] as raw long
+    // bits
+    public void encodeStamps(double[] values, int offset, int stride, int rows)
+    {
+        m_length = 0;
+        long previous = 0, delta = 0;
+        for (int r = 0; r < rows; r++) {
+            long stamp = RecordStamps.get(values, offset + r * stride);
+            long next = stamp - previous;
+            putVarint(r < 2 ? next : next - delta);
+            delta = next;
+            previous = stamp;
+        }
+    }
+
+    public void decodeStamps(byte[] in, int start, double[] values, int offset, int stride, int rows)
+    {
+        m_in = in;
+        m_bit = start;
+        long previous = 0, delta = 0;
+        for (int r = 0; r < rows; r++) {
+            long change = getVarint();
+            delta = r < 2 ? change : delta + change;
+            previous += delta;
+            RecordStamps.put(values, offset + r * stride, previous);
+        }
+        m_in = null;
+    }
+
+    // Encodes rows values read from values[offset + r * stride]
+    public void encodeValues(double[] values, int offset, int stride, int rows)
+    {
+        m_length = 0;
+        m_bit = 0;
+        long previous = 0;
+        int leading = -1, trailing = 0;
+        for (int r = 0; r < rows; r++) {
+            long bits = Double.doubleToRawLongBits(values[offset + r * stride]);
+            if (r == 0) {
+                putBits(bits, 64);
+                previous = bits;
+                continue;
+            }
+
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                putBits(0, 1);
+                continue;
+            }
+
+            int lz = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int tz = Long.numberOfTrailingZeros(xor);
+            if (leading >= 0 && lz >= leading && tz >= trailing) {
+                // Fits the previous window
+                putBits(2, 2);
+                putBits(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                int meaningful = 64 - lz - tz;
+                putBits(3, 2);
+                putBits(lz, 5);
+                putBits(meaningful - 1, 6);
+                putBits(xor >>> tz, meaningful);
+                leading = lz;
+                trailing = tz;
+            }
+        }
+        m_length = (m_bit + 7) >>> 3;
+    }
+
+    public void decodeValues(byte[] in, int start, double[] values, int offset, int stride, int rows)
+    {
+        m_in = in;
+        m_bit = start * 8;
+        long previous = 0;
+        int leading = 0, trailing = 0;
+        for (int r = 0; r < rows; r++) {
+            if (r == 0) {
+                previous = getBits(64);
+            } else if (getBits(1) != 0) {
+                if (getBits(1) != 0) {
+                    leading = (int)getBits(5);
+                    trailing = 64 - leading - ((int)getBits(6) + 1);
+                }
+                previous ^= getBits(64 - leading - trailing) << trailing;
+            }
+            values[offset + r * stride] = Double.longBitsToDouble(previous);
+        }
+        m_in = null;
+    }
+
+    // Appends the low count bits of bits, most significant first
+    private void putBits(long bits, int count)
+    {
+        while (count > 0) {
+            int index = m_bit >>> 3;
+            if (index >= m_bytes.length)
+                m_bytes = Arrays.copyOf(m_bytes, m_bytes.length * 2);
+
+            int free = 8 - (m_bit & 7);
+            int n = Math.min(free, count);
+            int chunk = (int)(bits >>> (count - n)) & ((1 << n) - 1);
+            // The buffer is reused, so a new byte is assigned, not or'ed
+            if (free == 8)
+                m_bytes[index] = (byte)(chunk << (8 - n));
+            else
+                m_bytes[index] |= (byte)(chunk << (free - n));
+            m_bit += n;
+            count -= n;
+        }
+    }
+
+    private long getBits(int count)
+    {
+        long bits = 0;
+        while (count > 0) {
+            int free = 8 - (m_bit & 7);
+            int n = Math.min(free, count);
+            int chunk = (m_in[m_bit >>> 3] >>> (free - n)) & ((1 << n) - 1);
+            bits = (bits << n) | chunk;
+            m_bit += n;
+            count -= n;
+        }
+        return bits;
+    }
+
+    private void putVarint(long value)
+    {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while (true) {
+            if (m_length + 1 > m_bytes.length)
+                m_bytes = Arrays.copyOf(m_bytes, m_bytes.length * 2);
+            if ((zigzag & ~0x7FL) == 0) {
+                m_bytes[m_length++] = (byte)zigzag;
+                return;
+            }
+            m_bytes[m_length++] = (byte)((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+    }
+
+    // Reads a varint at byte m_bit
+    private long getVarint()
+    {
+        long zigzag = 0;
+        int shift = 0;
+        while (true) {
+            byte b = m_in[m_bit++];
+            zigzag |= (long)(b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+            shift += 7;
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
@@ -0,0 +1,270 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Reads a ColumnarLogWriter file. Opening loads only the index; a query
+// then picks the blocks of the wanted type whose stamp range overlaps the
+// wanted time range and whose column ranges can satisfy the filter, and
+// reads and decompresses only the stamps, the requested columns and the
+// filtered column of each, using the column lengths in the block header to
+// seek past the rest.
+//
+//     ColumnarLogReader reader = new ColumnarLogReader(file);
+//     ColumnarLogReader.Query query = new ColumnarLogReader.Query(FlightRecorder.MOTORS);
+//     query.from = start;
+//     query.to = start + 10000000000L;
+//     reader.query(query, handler);
+//     reader.close();
+class ColumnarLogReader
+{
+    private final RandomAccessFile m_in;
+    private final List<Block> m_blocks;
+    private final ColumnCodec m_codec = new ColumnCodec();
+
+    private byte[] m_bytes = new byte[0];
+    private double[] m_values = new double[0];
+
+    public ColumnarLogReader(File file) throws IOException
+    {
+        m_in = new RandomAccessFile(file, "r");
+        try {
+            byte[] magic = new byte[ColumnarLogWriter.MAGIC.length];
+            m_in.readFully(magic);
+            if (!Arrays.equals(magic, ColumnarLogWriter.MAGIC))
+                throw new IOException(file + " is not a columnar flight log");
+            int version = m_in.readInt();
+            if (version != ColumnarLogWriter.VERSION)
+                throw new IOException(file + " is version " + version + ", expected " + ColumnarLogWriter.VERSION);
+
+            m_in.seek(m_in.length() - ColumnarLogWriter.FOOTER_SIZE);
+            long index_offset = m_in.readLong();
+            m_in.readFully(magic);
+            if (!Arrays.equals(magic, ColumnarLogWriter.INDEX_MAGIC))
+                throw new IOException(file + " has no index; was its conversion finished?");
+
+            // Read the index in one go
+            byte[] index = new byte[(int)(m_in.length() - ColumnarLogWriter.FOOTER_SIZE - index_offset)];
+            m_in.seek(index_offset);
+            m_in.readFully(index);
+            ByteBuffer buffer = ByteBuffer.wrap(index);
+            int count = buffer.getInt();
+            List<Block> blocks = new ArrayList<Block>(count);
+            for (int b = 0; b < count; b++)
+                blocks.add(new Block(buffer));
+            m_blocks = Collections.unmodifiableList(blocks);
+        } catch (IOException e) {
+            m_in.close();
+            throw e;
+        }
+    }
+
+    public List<Block> getBlocks()
+    {
+        return m_blocks;
+    }
+
+    // Earliest stamp in the log, or 0 if it is empty
+    public long getFirstStamp()
+    {
+        long first = Long.MAX_VALUE;
+        for (Block block : m_blocks)
+            first = Math.min(first, block.first);
+        return m_blocks.isEmpty() ? 0 : first;
+    }
+
+    // Width of the records of a type, or 0 if the log has none
+    public int getWidth(int type)
+    {
+        for (Block block : m_blocks) {
+            if (block.type == type)
+                return block.width;
+        }
+        return 0;
+    }
+
+    // Passes every matching row to handler, in log order, as the values of
+    // query.columns, and returns what it took
+    public Stats query(Query query, RowHandler handler) throws IOException
+    {
+        Stats stats = new Stats();
+        int width = getWidth(query.type);
+        int[] columns = query.columns;
+        if (columns == null) {
+            columns = new int[width];
+            for (int c = 0; c < width; c++)
+                columns[c] = c;
+        }
+        for (int column : columns) {
+            if (column < 0 || column >= width)
+                throw new IllegalArgumentException("No column " + column + " in records of type " + query.type);
+        }
+        if (query.where >= width)
+            throw new IllegalArgumentException("No column " + query.where + " in records of type " + query.type);
+
+        // Columns to decompress
+        boolean[] needed = new boolean[width];
+        needed[FlightRecorder.STAMP] = true;
+        for (int column : columns)
+            needed[column] = true;
+        if (query.where > 0)
+            needed[query.where] = true;
+
+        double[] row = new double[columns.length];
+        for (Block block : m_blocks) {
+            if (block.type != query.type)
+                continue;
+            stats.blocks++;
+            if (block.last < query.from || block.first > query.to)
+                continue;
+            if (query.where > 0 && (block.max[query.where] < query.low || block.min[query.where] > query.high))
+                continue;
+
+            double[] values = read(block, needed, stats);
+            stats.blocks_read++;
+
+            for (int r = 0; r < block.rows; r++) {
+                int base = r * width;
+                long stamp = RecordStamps.get(values, base + FlightRecorder.STAMP);
+                if (stamp < query.from || stamp > query.to)
+                    continue;
+                if (query.where > 0) {
+                    double value = values[base + query.where];
+                    if (!(value >= query.low && value <= query.high))
+                        continue;
+                }
+                for (int c = 0; c < columns.length; c++)
+                    row[c] = values[base + columns[c]];
+                handler.row(row);
+                stats.rows++;
+            }
+        }
+        return stats;
+    }
+
+    public void close() throws IOException
+    {
+        m_in.close();
+    }
+
+    // Reads the block header and the needed columns, each run of adjacent
+    // ones with a single seek, and decompresses them row by row
+    private double[] read(Block block, boolean[] needed, Stats stats) throws IOException
+    {
+        if (m_bytes.length < block.length)
+            m_bytes = new byte[block.length];
+        int width = block.width;
+        if (m_values.length < block.rows * width)
+            m_values = new double[ColumnarLogWriter.BLOCK_ROWS * width];
+
+        // Columns are read to where they sit in the block, so m_bytes holds
+        // the block with the unneeded columns left out
+        int start = 12 + 4 * width;
+        m_in.seek(block.offset);
+        m_in.readFully(m_bytes, 0, start);
+        stats.bytes_read += start;
+        ByteBuffer header = ByteBuffer.wrap(m_bytes);
+        if (header.getInt() != block.type || header.getInt() != block.rows || header.getInt() != width)
+            throw new IOException("Block at " + block.offset + " does not match the index");
+
+        int[] starts = new int[width];
+        for (int c = 0; c < width; c++) {
+            starts[c] = start;
+            start += header.getInt();
+        }
+        if (start != block.length)
+            throw new IOException("Block at " + block.offset + " does not match the index");
+
+        for (int c = 0; c < width; c++) {
+            if (!needed[c])
+                continue;
+            int end = c + 1;
+            while (end < width && needed[end])
+                end++;
+            int to = end < width ? starts[end] : block.length;
+            m_in.seek(block.offset + starts[c]);
+            m_in.readFully(m_bytes, starts[c], to - starts[c]);
+            stats.bytes_read += to - starts[c];
+            c = end - 1;
+        }
+
+        for (int c = 0; c < width; c++) {
+            if (!needed[c])
+                continue;
+            if (c == FlightRecorder.STAMP)
+                m_codec.decodeStamps(m_bytes, starts[c], m_values, c, width, block.rows);
+            else
+                m_codec.decodeValues(m_bytes, starts[c], m_values, c, width, block.rows);
+        }
+        return m_values;
+    }
+
+    // Index entry of one block. min and max are indexed by column, from 1.
+    public static class Block
+    {
+        public final int type;
+        public final int rows;
+        public final int width;
+        public final long offset;
+        public final int length;
+        public final long first;
+        public final long last;
+        public final double[] min;
+        public final double[] max;
+
+        private Block(ByteBuffer index)
+        {
+            type = index.getInt();
+            rows = index.getInt();
+            width = index.getInt();
+            offset = index.getLong();
+            length = index.getInt();
+            first = index.getLong();
+            last = index.getLong();
+            min = new double[width];
+            max = new double[width];
+            for (int c = 1; c < width; c++) {
+                min[c] = index.getDouble();
+                max[c] = index.getDouble();
+            }
+        }
+    }
+
+    // Rows of one record type with stamps in [from, to], optionally only
+    // those whose where column is within [low, high]
+    public static class Query
+    {
+        public final int type;
+        public long from = Long.MIN_VALUE;
+        public long to = Long.MAX_VALUE;
+        public int[] columns;           // null for all, stamp first
+        public int where = -1;          // filtered column, if positive
+        public double low;
+        public double high;
+
+        public Query(int type)
+        {
+            this.type = type;
+        }
+    }
+
+    public interface RowHandler
+    {
+        // values is reused for the next row
+        void row(double[] values) throws IOException;
+    }
+
+    public static class Stats
+    {
+        public long blocks;             // of the queried type
+        public long blocks_read;
+        public long bytes_read;
+        public long rows;
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Writes flight log records in a compressed, indexed columnar format, for
+// analysis tools that want a time range or a few fields of a long flight
+// without reading all of it.
+//
+// Records of each type are gathered into blocks of up to BLOCK_ROWS rows,
+// and each block is stored column by column, every column compressed on its
+// own by ColumnCodec. An index at the end of the file gives, for every
+// block, its type, where it is, its first and last stamp and the minimum
+// and maximum of every other column, so ColumnarLogReader can find the
+// blocks a query needs from the index alone and skip the rest.
+//
+// Only one open block per type is held in memory, so records can be
+// appended as they are read from a raw log of any size. The file is
+// big-endian:
+//
+//     magic "SIMFDC01", int version
+//     blocks:
+//         int type, int rows, int width, width ints of column lengths,
+//         then the columns' bytes, stamps first
+//     index:
+//         int block count, then per block:
+//         int type, int rows, int width, long offset, int length,
+//         long first stamp, long last stamp,
+//         then width - 1 pairs of double minimum and maximum
+//     footer:
+//         long index offset, magic "SIMFDCIX"
+class ColumnarLogWriter
+{
+    static final byte[] MAGIC = { 'S', 'I', 'M', 'F', 'D', 'C', '0', '1' };
+    static final byte[] INDEX_MAGIC = { 'S', 'I', 'M', 'F', 'D', 'C', 'I', 'X' };
+    static final int VERSION = 1;
+    static final int FOOTER_SIZE = 16;
+    static final int BLOCK_ROWS = 1024;
+
+    private final DataOutputStream m_out;
+    private final ByteArrayOutputStream m_index_bytes = new ByteArrayOutputStream();
+    private final DataOutputStream m_index = new DataOutputStream(m_index_bytes);
+    private final ColumnCodec m_codec = new ColumnCodec();
+    private final List<Block> m_blocks = new ArrayList<Block>();
+
+    private long m_offset;
+    private int m_block_count;
+    private long m_rows;
+
+    public ColumnarLogWriter(File file) throws IOException
+    {
+        m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        m_out.write(MAGIC);
+        m_out.writeInt(VERSION);
+        m_offset = MAGIC.length + 4;
+    }
+
+    // Appends record[0..width), stamp first, as a row of its type's table.
+    // All records of a type must have the same width.
+    public void append(int type, double[] record, int width) throws IOException
+    {
+        Block block = null;
+        for (int b = 0; b < m_blocks.size(); b++) {
+            if (m_blocks.get(b).type == type) {
+                block = m_blocks.get(b);
+                break;
+            }
+        }
+        if (block == null) {
+            block = new Block(type, width);
+            m_blocks.add(block);
+        } else if (block.width != width) {
+            throw new IOException("Record of type " + type + " has width " + width + ", expected " + block.width);
+        }
+
+        System.arraycopy(record, 0, block.values, block.rows * width, width);
+        m_rows++;
+        if (++block.rows == BLOCK_ROWS)
+            writeBlock(block);
+    }
+
+    // Rows appended so far, and bytes written so far
+    public long getRows()
+    {
+        return m_rows;
+    }
+
+    public long getSize()
+    {
+        return m_offset;
+    }
+
+    // Writes the partial blocks, the index and the footer, and closes the file
+    public void close() throws IOException
+    {
+        try {
+            for (Block block : m_blocks) {
+                if (block.rows > 0)
+                    writeBlock(block);
+            }
+
+            long index_offset = m_offset;
+            m_out.writeInt(m_block_count);
+            m_index.flush();
+            m_index_bytes.writeTo(m_out);
+            m_out.writeLong(index_offset);
+            m_out.write(INDEX_MAGIC);
+            m_offset += 4 + m_index_bytes.size() + FOOTER_SIZE;
+        } finally {
+            m_out.close();
+        }
+    }
+
+    private void writeBlock(Block block) throws IOException
+    {
+        int rows = block.rows;
+        int width = block.width;
+        double[] values = block.values;
+
+        // Compress every column, keeping them until their lengths are written
+        int length = 12 + 4 * width;
+        for (int c = 0; c < width; c++) {
+            if (c == FlightRecorder.STAMP)
+                m_codec.encodeStamps(values, c, width, rows);
+            else
+                m_codec.encodeValues(values, c, width, rows);
+            block.columns[c].reset();
+            block.columns[c].write(m_codec.getBytes(), 0, m_codec.getLength());
+            length += m_codec.getLength();
+        }
+
+        m_out.writeInt(block.type);
+        m_out.writeInt(rows);
+        m_out.writeInt(width);
+        for (int c = 0; c < width; c++)
+            m_out.writeInt(block.columns[c].size());
+        for (int c = 0; c < width; c++)
+            block.columns[c].writeTo(m_out);
+
+        // Stamp range, then the range of every other column
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (int r = 0; r < rows; r++) {
+            long stamp = RecordStamps.get(values, r * width + FlightRecorder.STAMP);
+            first = Math.min(first, stamp);
+            last = Math.max(last, stamp);
+        }
+        m_index.writeInt(block.type);
+        m_index.writeInt(rows);
+        m_index.writeInt(width);
+        m_index.writeLong(m_offset);
+        m_index.writeInt(length);
+        m_index.writeLong(first);
+        m_index.writeLong(last);
+        for (int c = 1; c < width; c++) {
+            double min = values[c], max = values[c];
+            for (int r = 1; r < rows; r++) {
+                min = Math.min(min, values[r * width + c]);
+                max = Math.max(max, values[r * width + c]);
+            }
+            m_index.writeDouble(min);
+            m_index.writeDouble(max);
+        }
+
+        m_offset += length;
+        m_block_count++;
+        block.rows = 0;
+    }
+
+    // The open block of one record type, row by row
+    private static class Block
+    {
+        final int type;
+        final int width;
+        final double[] values;
+        final ByteArrayOutputStream[] columns;
+        int rows;
+
+        Block(int type, int width)
+        {
+            this.type = type;
+            this.width = width;
+            values = new double[BLOCK_ROWS * width];
+            columns = new ByteArrayOutputStream[width];
+            for (int c = 0; c < width; c++)
+                columns[c] = new ByteArrayOutputStream();
+        }
+    }
+}
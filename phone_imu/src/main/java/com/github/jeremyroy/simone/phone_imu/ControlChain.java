@@ -0,0 +1,175 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// The attitude -> rate -> mixer path of the flight controller. One tick turns
+// an orientation sample into four motor thrusts using only preallocated
+// scratch state, so running it allocates nothing on the heap.
+//
+// Not thread safe: ticks must come from one thread at a time. The exception
+// is setGains(), which may be called from any thread.
+class ControlChain
+{
+    private final AttitudeController m_att_controller;
+    private final RateController m_rate_controller;
+
+    // Scratch state reused by every tick
+    private final Quat m_quat = new Quat();
+    private final Vect3F m_orientation = new Vect3F();
+    private final Vect3F m_rate_adjustments = new Vect3F();
+    private final Vect3F m_thrust_adjustments = new Vect3F();
+    private final Vect3F m_commanded = new Vect3F();
+
+    private Mixer m_mixer = Mixer.quadX();
+
+    // Latest gains handed to setGains(), and the ones the controllers run
+    private final AtomicReference<ControllerGains> m_pending_gains =
+            new AtomicReference<ControllerGains>();
+    private ControllerGains m_gains;
+
+    // Compute the attitude error from the quaternion instead of Euler angles
+    private boolean m_quat_error = false;
+
+    public ControlChain(AttitudeController att_controller, RateController rate_controller)
+    {
+        m_att_controller = att_controller;
+        m_rate_controller = rate_controller;
+    }
+
+    public AttitudeController getAttitudeController()
+    {
+        return m_att_controller;
+    }
+
+    public RateController getRateController()
+    {
+        return m_rate_controller;
+    }
+
+    // Selects the quaternion-native attitude error path, which skips
+    // quat2Euler. getOrientation() is not updated in that mode.
+    public void setQuaternionError(boolean enabled)
+    {
+        m_quat_error = enabled;
+    }
+
+    public boolean isQuaternionError()
+    {
+        return m_quat_error;
+    }
+
+    // Motor geometry and saturation handling; quadX() by default
+    public void setMixer(Mixer mixer)
+    {
+        m_mixer = mixer;
+    }
+
+    public Mixer getMixer()
+    {
+        return m_mixer;
+    }
+
+    // Publishes a new set of gains, from any thread. The controllers take
+    // it up at the start of the next tick, so a tick never runs with a mix
+    // of old and new gains. If several sets are published between ticks,
+    // only the last is applied.
+    public void setGains(ControllerGains gains)
+    {
+        m_pending_gains.set(gains);
+    }
+
+    // Last gains published, which may not have been applied yet
+    public ControllerGains getGains()
+    {
+        return m_pending_gains.get();
+    }
+
+    // Hands a new attitude setpoint to the attitude controller
+    public void setSetpoint(SetpointMailbox.Setpoint setpoint)
+    {
+        // Formatted as phone's x, y, z axis
+        m_commanded.x = setpoint.pitch;
+        m_commanded.y = setpoint.roll;
+        m_commanded.z = setpoint.yaw;
+        m_att_controller.setDesiredAtt(m_commanded);
+    }
+
+    // Runs one control tick from the orientation quaternion reported by the
+    // IMU. Thrusts for each motor of the mixer, in percent, are written to
+    // motors, which must hold at least getMixer().getMotorCount() values.
+    public void tick(double qw, double qx, double qy, double qz,
+                     double thrust, double yaw, double[] motors)
+    {
+        tick(qw, qx, qy, qz, thrust, yaw, 0, motors);
+    }
+
+    // As above, dt_nanos after the previous tick. The controllers scale their
+    // I and D terms to the measured interval; 0 assumes one nominal period.
+    public void tick(double qw, double qx, double qy, double qz,
+                     double thrust, double yaw, long dt_nanos, double[] motors)
+    {
+        ControllerGains gains = m_pending_gains.get();
+        if (gains != m_gains)
+        {
+            gains.applyTo(m_att_controller, m_rate_controller);
+            m_gains = gains;
+        }
+
+        m_quat.w = qw;
+        m_quat.x = qx;
+        m_quat.y = qy;
+        m_quat.z = qz;
+
+        // Calculate stabalize angular velocity adjustments
+        if (m_quat_error)
+        {
+            m_att_controller.getOutput(m_quat, m_rate_adjustments, dt_nanos);
+        }
+        else
+        {
+            quat2Euler(m_quat, m_orientation);
+            m_att_controller.getOutput(m_orientation, m_rate_adjustments, dt_nanos);
+        }
+        m_rate_adjustments.z = yaw;
+
+        // Calculate stabalize thrust adjustments
+        m_rate_controller.getOutput(m_rate_adjustments, m_thrust_adjustments, dt_nanos);
+
+        m_mixer.mix(thrust, m_thrust_adjustments.x, m_thrust_adjustments.y,
+                m_thrust_adjustments.z, motors);
+    }
+
+    // Last orientation, rate and thrust adjustments computed by tick()
+    public Vect3F getOrientation()
+    {
+        return m_orientation;
+    }
+
+    public Vect3F getRateAdjustments()
+    {
+        return m_rate_adjustments;
+    }
+
+    public Vect3F getThrustAdjustments()
+    {
+        return m_thrust_adjustments;
+    }
+
+    // This function is from wikipedia.
+    public static void quat2Euler(Quat q, Vect3F rpy)
+    {
+        // Yaw (z-axis rotation)
+        double siny = +2.0 * (-q.y * q.z + q.w * q.x);
+        double cosy = -q.z * q.z + q.y * q.y - q.x * q.x + q.w * q.w;
+        rpy.z = -Math.atan2(siny, -cosy);
+
+        // Roll (x-axis rotation)
+        double sinr = +2.0 * (q.x * q.y + q.w * q.z);
+        rpy.x = -Math.asin(sinr);
+
+        // Pitch (y-axis rotation)
+        double sinp = +2.0 * (-q.x * q.z + q.w * q.y);
+        double cosp = - q.z * q.z - q.y * q.y + q.x * q.x + q.w * q.w;
+        rpy.y = -Math.atan2(sinp, cosp);
+    }
+}
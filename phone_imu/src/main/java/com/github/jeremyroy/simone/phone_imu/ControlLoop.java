@@ -0,0 +1,128 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs a task on its own thread at a fixed rate.
+//
+// Ticks are scheduled against absolute System.nanoTime() deadlines, so
+// the time spent in the task and any oversleep does not accumulate into
+// drift the way a Thread.sleep(period) loop does. A tick that starts a full
+// period or more after its deadline is an overrun: the missed deadlines are
+// skipped rather than run back to back, and the loop keeps its phase.
+//
+// The task can report ticks that found no new input with countStale().
+class ControlLoop implements Runnable
+{
+    private final Runnable m_task;
+    private final String m_name;
+    private final long m_period;
+
+    private volatile Thread m_thread;
+
+    private final AtomicLong m_ticks = new AtomicLong();
+    private final AtomicLong m_overruns = new AtomicLong();
+    private final AtomicLong m_stale = new AtomicLong();
+    private final LatencyHistogram m_lateness = new LatencyHistogram();
+
+    public ControlLoop(String name, int rate_hz, Runnable task)
+    {
+        if (rate_hz <= 0)
+            throw new IllegalArgumentException("Control rate must be positive");
+
+        m_name = name;
+        m_period = 1000000000L / rate_hz;
+        m_task = task;
+    }
+
+    public void start()
+    {
+        if (m_thread == null) {
+            m_thread = new Thread(this, m_name);
+            m_thread.setPriority(Thread.MAX_PRIORITY);
+            m_thread.start();
+        }
+    }
+
+    public void stop()
+    {
+        Thread t = m_thread;
+        m_thread = null;
+
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        long deadline = System.nanoTime() + m_period;
+
+        while (m_thread != null) {
+            long now = System.nanoTime();
+            while (now - deadline < 0) {
+                LockSupport.parkNanos(deadline - now);
+                if (m_thread == null)
+                    return;
+                now = System.nanoTime();
+            }
+
+            long late = now - deadline;
+            m_lateness.record(late);
+            if (late >= m_period) {
+                m_overruns.incrementAndGet();
+                deadline += (late / m_period) * m_period;
+            }
+
+            m_task.run();
+            m_ticks.incrementAndGet();
+
+            deadline += m_period;
+        }
+    }
+
+    // Called by the task when a tick ran without a new input sample
+    public void countStale()
+    {
+        m_stale.incrementAndGet();
+    }
+
+    public long getPeriodNanos()
+    {
+        return m_period;
+    }
+
+    public AtomicLong getTicks()
+    {
+        return m_ticks;
+    }
+
+    public AtomicLong getOverruns()
+    {
+        return m_overruns;
+    }
+
+    public AtomicLong getStaleTicks()
+    {
+        return m_stale;
+    }
+
+    // How late each tick started relative to its deadline
+    public LatencyHistogram getLateness()
+    {
+        return m_lateness;
+    }
+
+    public void addTo(DiagnosticsPublisher diagnostics, String prefix)
+    {
+        diagnostics.addHistogram(prefix + "tick lateness", m_lateness);
+        diagnostics.addCounter(prefix + "overruns", m_overruns);
+        diagnostics.addCounter(prefix + "stale ticks", m_stale);
+    }
+}
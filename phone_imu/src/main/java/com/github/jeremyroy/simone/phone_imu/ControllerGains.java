@@ -0,0 +1,87 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// One complete set of PID gains for the rate and attitude controllers, each
+// as (P, I, D). Instances are immutable, so a new set can be built on any
+// thread and handed to ControlChain.setGains(), which the control thread
+// adopts as a whole at the start of its next tick.
+//
+// By default the controllers keep their integrator state across a change,
+// rescaled so the I term's output is unchanged. resetIntegrators asks for
+// them to be cleared instead, as update_pids used to do on every call.
+class ControllerGains
+{
+    private final Vect3F m_roll_rate;
+    private final Vect3F m_pitch_rate;
+    private final Vect3F m_yaw_rate;
+    private final Vect3F m_roll_att;
+    private final Vect3F m_pitch_att;
+    private final boolean m_reset_integrators;
+
+    public ControllerGains(Vect3F roll_rate, Vect3F pitch_rate, Vect3F yaw_rate,
+                           Vect3F roll_att, Vect3F pitch_att)
+    {
+        this(roll_rate, pitch_rate, yaw_rate, roll_att, pitch_att, false);
+    }
+
+    public ControllerGains(Vect3F roll_rate, Vect3F pitch_rate, Vect3F yaw_rate,
+                           Vect3F roll_att, Vect3F pitch_att, boolean reset_integrators)
+    {
+        // Copies, since Vect3F is mutable
+        m_roll_rate = copy(roll_rate);
+        m_pitch_rate = copy(pitch_rate);
+        m_yaw_rate = copy(yaw_rate);
+        m_roll_att = copy(roll_att);
+        m_pitch_att = copy(pitch_att);
+        m_reset_integrators = reset_integrators;
+    }
+
+    public boolean isResetIntegrators()
+    {
+        return m_reset_integrators;
+    }
+
+    public Vect3F getRollRate()
+    {
+        return copy(m_roll_rate);
+    }
+
+    public Vect3F getPitchRate()
+    {
+        return copy(m_pitch_rate);
+    }
+
+    public Vect3F getYawRate()
+    {
+        return copy(m_yaw_rate);
+    }
+
+    public Vect3F getRollAtt()
+    {
+        return copy(m_roll_att);
+    }
+
+    public Vect3F getPitchAtt()
+    {
+        return copy(m_pitch_att);
+    }
+
+    // Controller thread only: loads these gains into the controllers
+    public void applyTo(AttitudeController att_controller, RateController rate_controller)
+    {
+        if (m_reset_integrators)
+        {
+            rate_controller.reset(m_roll_rate, m_pitch_rate, m_yaw_rate);
+            att_controller.reset(m_roll_att, m_pitch_att);
+        }
+        else
+        {
+            rate_controller.setGains(m_roll_rate, m_pitch_rate, m_yaw_rate);
+            att_controller.setGains(m_roll_att, m_pitch_att);
+        }
+    }
+
+    private static Vect3F copy(Vect3F v)
+    {
+        return new Vect3F(v.x, v.y, v.z);
+    }
+}
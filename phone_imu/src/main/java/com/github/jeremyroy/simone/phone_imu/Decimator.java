@@ -0,0 +1,117 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Streaming rate reduction of fixed-width records of doubles, so telemetry
+// can be published at its own low rate whatever rate the records arrive at.
+//
+// The producer adds every record; fields are averaged over consecutive
+// windows of one period each, except those marked with setLatest(), which
+// keep the last value (angles that wrap, timestamps stored as raw bits,
+// sequence numbers). At the end of each window the result is handed to the
+// consumer through a SeqLock, so the producer never blocks and neither side
+// allocates. The consumer polls for results at its leisure; a result it
+// misses is superseded by the next.
+class Decimator
+{
+    private final int m_width;
+    private final long m_period_ns;
+    private final boolean[] m_latest;
+
+    // Producer: the window being accumulated
+    private final double[] m_sums;
+    private int m_count;
+    private long m_window_start;
+    private boolean m_started;
+
+    // Last completed window, then the number of records in it
+    private final SeqLock m_output;
+    private final int m_count_index;
+
+    // Consumer: stamp of the last result read
+    private int m_read_stamp;
+
+    public Decimator(int width, long period_ns)
+    {
+        if (width <= 0 || period_ns <= 0)
+            throw new IllegalArgumentException("Width and period must be positive");
+
+        m_width = width;
+        m_period_ns = period_ns;
+        m_latest = new boolean[width];
+        m_sums = new double[width];
+        m_output = new SeqLock(width + 1);
+        m_count_index = width;
+    }
+
+    public static Decimator forRate(int width, int rate_hz)
+    {
+        if (rate_hz <= 0)
+            throw new IllegalArgumentException("Rate must be positive");
+        return new Decimator(width, 1000000000L / rate_hz);
+    }
+
+    public int getWidth()
+    {
+        return m_width;
+    }
+
+    // Keeps the most recent value of a field instead of its average. Must
+    // be called before the first record is added.
+    public void setLatest(int index)
+    {
+        m_latest[index] = true;
+    }
+
+    // Producer: adds record[0..width), taken at now_ns. Returns true if it
+    // completed a window.
+    public boolean add(double[] record, long now_ns)
+    {
+        if (!m_started) {
+            m_window_start = now_ns;
+            m_started = true;
+        }
+
+        double[] sums = m_sums;
+        for (int i = 0; i < m_width; i++)
+            sums[i] = m_latest[i] ? record[i] : sums[i] + record[i];
+        m_count++;
+
+        long elapsed = now_ns - m_window_start;
+        if (elapsed < m_period_ns)
+            return false;
+
+        double scale = 1.0 / m_count;
+        m_output.beginWrite();
+        for (int i = 0; i < m_width; i++)
+            m_output.putDouble(i, m_latest[i] ? sums[i] : sums[i] * scale);
+        m_output.putLong(m_count_index, m_count);
+        m_output.endWrite();
+
+        for (int i = 0; i < m_width; i++)
+            sums[i] = 0.0;
+        m_count = 0;
+
+        // Keep to the period unless records stopped for a whole window
+        m_window_start = elapsed < 2 * m_period_ns ? m_window_start + m_period_ns : now_ns;
+        return true;
+    }
+
+    // Consumer: copies the latest completed window into out[0..width) and
+    // returns the number of records it covers, or 0 if there has been no
+    // new window since the last poll
+    public int poll(double[] out)
+    {
+        int stamp;
+        long count;
+        do {
+            stamp = m_output.readBegin();
+            for (int i = 0; i < m_width; i++)
+                out[i] = m_output.getDouble(i);
+            count = m_output.getLong(m_count_index);
+        } while (!m_output.validate(stamp));
+
+        if (stamp == m_read_stamp)
+            return 0;
+        m_read_stamp = stamp;
+        return (int)count;
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ros.concurrent.CancellableLoop;
+import org.ros.message.MessageFactory;
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Publisher;
+
+import diagnostic_msgs.DiagnosticArray;
+import diagnostic_msgs.DiagnosticStatus;
+import diagnostic_msgs.KeyValue;
+
+// Periodically publishes latency histogram summaries as a
+// diagnostic_msgs/DiagnosticArray, one DiagnosticStatus per histogram, along
+// with any event counters (total and count since the last report).
+// Runs at a low rate on its own loop so none of the message building
+// happens on the threads doing the recording.
+class DiagnosticsPublisher
+{
+    private final String m_hardware_id;
+
+    private final List<String> m_names = new ArrayList<String>();
+    private final List<LatencyHistogram> m_histograms = new ArrayList<LatencyHistogram>();
+    private final List<LatencyHistogram.Summary> m_summaries = new ArrayList<LatencyHistogram.Summary>();
+
+    private final List<String> m_counter_names = new ArrayList<String>();
+    private final List<AtomicLong> m_counters = new ArrayList<AtomicLong>();
+    private final List<Long> m_last_counts = new ArrayList<Long>();
+
+    public DiagnosticsPublisher(String hardware_id)
+    {
+        m_hardware_id = hardware_id;
+    }
+
+    public void addHistogram(String name, LatencyHistogram histogram)
+    {
+        m_names.add(name);
+        m_histograms.add(histogram);
+        m_summaries.add(new LatencyHistogram.Summary());
+    }
+
+    public void addCounter(String name, AtomicLong counter)
+    {
+        m_counter_names.add(name);
+        m_counters.add(counter);
+        m_last_counts.add(0L);
+    }
+
+    public void start(ConnectedNode connectedNode, String topic, final long period_ms)
+    {
+        final Publisher<DiagnosticArray> publisher =
+                connectedNode.newPublisher(topic, DiagnosticArray._TYPE);
+        final MessageFactory factory = connectedNode.getTopicMessageFactory();
+        final ConnectedNode node = connectedNode;
+
+        connectedNode.executeCancellableLoop(new CancellableLoop() {
+            protected void loop() throws InterruptedException {
+                Thread.sleep(period_ms);
+
+                DiagnosticArray array = publisher.newMessage();
+                array.getHeader().setStamp(node.getCurrentTime());
+
+                List<DiagnosticStatus> statuses = new ArrayList<DiagnosticStatus>();
+                for (int i = 0; i < m_histograms.size(); i++) {
+                    LatencyHistogram.Summary summary = m_summaries.get(i);
+                    m_histograms.get(i).drain(summary);
+                    statuses.add(toStatus(factory, m_names.get(i), summary));
+                }
+                for (int i = 0; i < m_counters.size(); i++) {
+                    long total = m_counters.get(i).get();
+                    long recent = total - m_last_counts.get(i);
+                    m_last_counts.set(i, total);
+                    statuses.add(toStatus(factory, m_counter_names.get(i), total, recent));
+                }
+                array.setStatus(statuses);
+
+                publisher.publish(array);
+            }
+        });
+    }
+
+    private DiagnosticStatus toStatus(MessageFactory factory, String name,
+            LatencyHistogram.Summary summary)
+    {
+        DiagnosticStatus status = factory.newFromType(DiagnosticStatus._TYPE);
+        status.setLevel(DiagnosticStatus.OK);
+        status.setName(name);
+        status.setHardwareId(m_hardware_id);
+        status.setMessage(String.format(Locale.US, "p50 %.1f us, p99 %.1f us",
+                summary.p50 / 1e3, summary.p99 / 1e3));
+
+        List<KeyValue> values = new ArrayList<KeyValue>();
+        values.add(keyValue(factory, "count", Long.toString(summary.count)));
+        values.add(keyValue(factory, "p50_us", micros(summary.p50)));
+        values.add(keyValue(factory, "p90_us", micros(summary.p90)));
+        values.add(keyValue(factory, "p99_us", micros(summary.p99)));
+        values.add(keyValue(factory, "max_us", micros(summary.max)));
+        status.setValues(values);
+
+        return status;
+    }
+
+    private DiagnosticStatus toStatus(MessageFactory factory, String name, long total, long recent)
+    {
+        DiagnosticStatus status = factory.newFromType(DiagnosticStatus._TYPE);
+        status.setLevel(recent > 0 ? DiagnosticStatus.WARN : DiagnosticStatus.OK);
+        status.setName(name);
+        status.setHardwareId(m_hardware_id);
+        status.setMessage(String.format(Locale.US, "%d total, %d since last report", total, recent));
+
+        List<KeyValue> values = new ArrayList<KeyValue>();
+        values.add(keyValue(factory, "total", Long.toString(total)));
+        values.add(keyValue(factory, "recent", Long.toString(recent)));
+        status.setValues(values);
+
+        return status;
+    }
+
+    private static KeyValue keyValue(MessageFactory factory, String key, String value)
+    {
+        KeyValue kv = factory.newFromType(KeyValue._TYPE);
+        kv.setKey(key);
+        kv.setValue(value);
+        return kv;
+    }
+
+    private static String micros(long nanos)
+    {
+        return String.format(Locale.US, "%.1f", nanos / 1e3);
+    }
+}
@@ -1,6 +1,10 @@
 package com.github.jeremyroy.simone.phone_imu;
 
 import java.lang.Math;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ros.concurrent.CancellableLoop;
 
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
@@ -13,6 +17,8 @@ import org.ros.node.service.ServiceServer;
 import org.ros.node.service.ServiceResponseBuilder;
 
 import sensor_msgs.Imu;
+import std_msgs.Float64MultiArray;
+import std_msgs.MultiArrayDimension;
 
 import simone_msgs.MotorCTRL;
 import simone_msgs.UpdatePIDs;
@@ -34,16 +40,82 @@ public class FlightController extends AbstractNodeMain
     private String m_att_topic;
     private String m_motor_ctrl_topic;
     private String m_pid_service;
+    private String m_diagnostics_topic;
 
-    // State attributes
-    private double m_thrust;
-    private double m_pitch;
-    private double m_roll;
-    private double m_yaw;
+    // Commands from the thrust, attitude and yawrate topics, and the
+    // snapshot of them the control law is currently running against
+    private final SetpointMailbox m_setpoints = new SetpointMailbox();
+    private final SetpointMailbox.Setpoint m_setpoint = new SetpointMailbox.Setpoint();
 
     // Controllers
     private RateController m_rate_controller;
     private AttitudeController m_att_controller;
+    private ControlChain m_control_chain;
+    private final ControllerGains m_initial_gains;
+
+    // Preallocated per-tick outputs. rosjava serializes published messages
+    // on its own thread, so motor messages are recycled from a ring deep
+    // enough that one is never reused while still queued.
+    private static final int MOTOR_MSG_RING = 32;
+    private final double[] m_motor_thrusts = new double[4];
+    private final simone_msgs.MotorCTRL[] m_motor_msgs = new simone_msgs.MotorCTRL[MOTOR_MSG_RING];
+    private int m_motor_msg_index;
+
+    // Fixed-rate control thread, if enabled. The IMU callback only stores
+    // the latest orientation, which the control thread picks up each tick.
+    private int m_control_rate = 0;
+    private ControlLoop m_control_loop;
+    private final SeqLock m_imu_sample = new SeqLock(6);
+    private int m_imu_seq;
+
+    // Scale the PID I and D terms to the measured time between ticks,
+    // timed by the IMU stamps or by the control thread's clock
+    private boolean m_time_step_aware = false;
+    private long m_last_tick;
+
+    // Clear the PID integrators whenever update_pids changes the gains
+    private boolean m_retune_resets_integrators = false;
+
+    // In-process fast path from PhoneImu and to MotorNode, if enabled
+    private LocalTransport m_local_transport;
+    private LocalTransport.Receiver m_local_receiver;
+    private final double[] m_local_record = new double[LocalTransport.MOTOR_WIDTH];
+
+    // Sensor to motor latency tracing, if enabled
+    private PipelineTrace m_trace;
+
+    // Controller state and motor commands averaged down for remote
+    // telemetry, if enabled. Orientation and setpoint are the latest values.
+    private static final int STATE_ORIENTATION = 0;     // as quat2Euler reports
+    private static final int STATE_RATE = 3;            // rate controller input
+    private static final int STATE_THRUST = 6;          // mixer input
+    private static final int STATE_SETPOINT = 9;        // thrust, roll, pitch, yaw
+    private static final int STATE_MOTORS = 13;         // m1 to m4
+    private static final int STATE_WIDTH = 17;
+    private static final String STATE_LABEL = "roll,pitch,yaw,rate_x,rate_y,rate_z,"
+            + "thrust_x,thrust_y,thrust_z,sp_thrust,sp_roll,sp_pitch,sp_yaw,m1,m2,m3,m4";
+    private int m_telemetry_rate = 0;
+    private Decimator m_telemetry;
+    private final double[] m_telemetry_record = new double[STATE_WIDTH];
+    private final double[] m_telemetry_window = new double[STATE_WIDTH];
+    // Recycled like the motor messages, each state message with its layout
+    // and data array set up once
+    private static final int TELEMETRY_MSG_RING = 32;
+    private final simone_msgs.MotorCTRL[] m_telemetry_motor_msgs = new simone_msgs.MotorCTRL[TELEMETRY_MSG_RING];
+    private final Float64MultiArray[] m_telemetry_state_msgs = new Float64MultiArray[TELEMETRY_MSG_RING];
+    private int m_telemetry_msg_index;
+
+    // Onboard recording of gains, setpoints and PID terms, if enabled. Gains
+    // are recorded from service calls, which may come from any thread.
+    private FlightRecorder.Channel m_gains_recorder;
+    private FlightRecorder.Channel m_setpoint_recorder;
+    private FlightRecorder.Channel m_pid_recorder;
+    private final double[] m_gains_record = new double[FlightRecorder.GAINS_WIDTH];
+    private final double[] m_setpoint_record = new double[FlightRecorder.SETPOINT_WIDTH];
+    private final double[] m_pid_record = new double[FlightRecorder.PID_WIDTH];
+    private final Vect3F m_terms_1 = new Vect3F();
+    private final Vect3F m_terms_2 = new Vect3F();
+    private final Vect3F m_terms_3 = new Vect3F();
 
     public FlightController() {
         this("phone_imu", "command/thrust", "command/yawrate", "command/attitude_adjusted",
@@ -52,6 +124,12 @@ public class FlightController extends AbstractNodeMain
 
     public FlightController(String imu_topic, String thrust_topic, String yawrate_topic, 
         String attitude_topic, String motor_ctrl_topic, String pid_service) {
+        this(imu_topic, thrust_topic, yawrate_topic, attitude_topic, motor_ctrl_topic, pid_service,
+           "diagnostics");
+    }
+
+    public FlightController(String imu_topic, String thrust_topic, String yawrate_topic, 
+        String attitude_topic, String motor_ctrl_topic, String pid_service, String diagnostics_topic) {
             /* Save topic names */
             this.m_imu_topic = imu_topic;
             this.m_thrust_topic = thrust_topic;
@@ -59,6 +137,7 @@ public class FlightController extends AbstractNodeMain
             this.m_att_topic = attitude_topic;
             this.m_motor_ctrl_topic = motor_ctrl_topic;
             this.m_pid_service = pid_service;
+            this.m_diagnostics_topic = diagnostics_topic;
 
             /* Initialize the rate and attitude controllers */
             // Set default controller gains
@@ -73,70 +152,345 @@ public class FlightController extends AbstractNodeMain
                     pitch_rate_pid_terms, yaw_rate_pid_terms);
             m_att_controller = new AttitudeController(roll_att_pid_terms,
                     pitch_att_pid_terms);
+            m_control_chain = new ControlChain(m_att_controller, m_rate_controller);
+            m_initial_gains = new ControllerGains(roll_rate_pid_terms, pitch_rate_pid_terms,
+                    yaw_rate_pid_terms, roll_att_pid_terms, pitch_att_pid_terms);
     }
 
-    private double truncate(double value, double low, double high)
+    // Runs the control law on a dedicated thread at rate_hz instead of in
+    // the IMU callback. 0 (the default) keeps the callback-driven mode.
+    // Must be called before the node is started.
+    public void setControlRate(int rate_hz)
     {
-        if (value < low)
-            value = low;
-        else if (value > high)
-            value = high;
-        return value;
+        if (rate_hz < 0)
+            throw new IllegalArgumentException("Control rate must not be negative");
+        m_control_rate = rate_hz;
     }
 
-    private void applyThrustAdjustments(Vect3F thrust_adjustments)
+    // Computes the attitude error directly from the IMU quaternion rather
+    // than through Euler angles. The IMU must publish a quaternion, as it
+    // only does with onboard fusion (see PhoneImu.setOnboardFusion)
+    public void setQuaternionAttitude(boolean enabled)
     {
-        double roll_thrust_adj, pitch_thrust_adj, yaw_thrust_adj;
-        double motor1_thrust, motor2_thrust, motor3_thrust, motor4_thrust;
-
-        simone_msgs.MotorCTRL motor_ctrl_msg = m_motor_publisher.newMessage();
-        
-        // Re-assign input vector to make it's values more comprehensive
-        roll_thrust_adj  = thrust_adjustments.x;
-        pitch_thrust_adj = thrust_adjustments.y;
-        yaw_thrust_adj   = thrust_adjustments.z;
-        
-        // Calculate new thrusts
-        motor4_thrust = m_thrust - roll_thrust_adj + pitch_thrust_adj + yaw_thrust_adj;
-        motor2_thrust = m_thrust + roll_thrust_adj - pitch_thrust_adj + yaw_thrust_adj;
-        motor3_thrust = m_thrust + roll_thrust_adj + pitch_thrust_adj - yaw_thrust_adj;
-        motor1_thrust = m_thrust - roll_thrust_adj - pitch_thrust_adj - yaw_thrust_adj;
-
-        // Make sure values do not exceed limits
-        motor1_thrust = truncate(motor1_thrust, 0.0, 100.0);
-        motor2_thrust = truncate(motor2_thrust, 0.0, 100.0);
-        motor3_thrust = truncate(motor3_thrust, 0.0, 100.0);
-        motor4_thrust = truncate(motor4_thrust, 0.0, 100.0);
+        m_control_chain.setQuaternionError(enabled);
+    }
 
-        // Publish motor control message
-        motor_ctrl_msg.setM1(motor1_thrust);
-        motor_ctrl_msg.setM2(motor2_thrust);
-        motor_ctrl_msg.setM3(motor3_thrust);
-        motor_ctrl_msg.setM4(motor4_thrust);
+    // Takes IMU samples from, and hands motor commands to, nodes in this
+    // process directly. The IMU topic is no longer subscribed to; motor
+    // commands are still published for remote observers. Must be called
+    // before the node is started.
+    public void setLocalTransport(LocalTransport transport)
+    {
+        m_local_transport = transport;
+    }
 
-        m_motor_publisher.publish(motor_ctrl_msg);
+    // Stamps IMU samples and the commands computed from them into trace.
+    // Must be called before the node is started.
+    public void setPipelineTrace(PipelineTrace trace)
+    {
+        m_trace = trace;
+    }
+
+    // Makes the controllers scale their I and D terms to the measured time
+    // between ticks, so gains tuned at the default 50 Hz stay valid at other
+    // control rates and through jitter
+    public void setTimeStepAware(boolean enabled)
+    {
+        m_time_step_aware = enabled;
+    }
+
+    // Clears the PID integrators on every update_pids call, as earlier
+    // versions did, instead of carrying them over to the new gains
+    public void setRetuneResetsIntegrators(boolean enabled)
+    {
+        m_retune_resets_integrators = enabled;
+    }
+
+    // Records the gains and modes at start and on every update_pids call,
+    // every setpoint change, and the P, I and D terms of every PID at every
+    // tick, enough for FlightReplay to rerun the flight. Must be called
+    // before the node and the recorder are started.
+    public void setFlightRecorder(FlightRecorder recorder)
+    {
+        m_gains_recorder = recorder.newChannel("gains", FlightRecorder.GAINS, FlightRecorder.GAINS_WIDTH);
+        m_setpoint_recorder = recorder.newChannel("setpoints", FlightRecorder.SETPOINT, FlightRecorder.SETPOINT_WIDTH);
+        m_pid_recorder = recorder.newChannel("pids", FlightRecorder.PID, FlightRecorder.PID_WIDTH);
+    }
+
+    // Publishes the motor commands averaged down to rate_hz on
+    // <motor_ctrl topic>/telemetry, and the controller state on
+    // flight_controller/telemetry, so remote viewers stay off the full-rate
+    // motor_ctrl topic. 0 disables. Must be called before the node is
+    // started.
+    public void setTelemetryRate(int rate_hz)
+    {
+        if (rate_hz < 0)
+            throw new IllegalArgumentException("Telemetry rate must not be negative");
+        m_telemetry_rate = rate_hz;
+    }
+
+    // Replaces the default quad X mixer. MotorCTRL carries four motors, so
+    // the mixer must have exactly four.
+    public void setMixer(Mixer mixer)
+    {
+        if (mixer.getMotorCount() != 4)
+            throw new IllegalArgumentException("Flight controller drives exactly 4 motors");
+        m_control_chain.setMixer(mixer);
+    }
+
+    private void controlTick()
+    {
+        double qw, qx, qy, qz;
+        int seq;
+        long sample_stamp;
+        int stamp;
+        do {
+            stamp = m_imu_sample.readBegin();
+            qw = m_imu_sample.getDouble(0);
+            qx = m_imu_sample.getDouble(1);
+            qy = m_imu_sample.getDouble(2);
+            qz = m_imu_sample.getDouble(3);
+            seq = (int)m_imu_sample.getLong(4);
+            sample_stamp = m_imu_sample.getLong(5);
+        } while (!m_imu_sample.validate(stamp));
+
+        // Nothing received yet
+        if (stamp == 0)
+        {
+            m_control_loop.countStale();
+            return;
+        }
+
+        // Hold the last sample if no new one arrived since the previous tick
+        if (stamp == m_imu_seq)
+        {
+            m_control_loop.countStale();
+            seq = -1;
+        }
+        m_imu_seq = stamp;
+
+        runControl(seq, sample_stamp, qw, qx, qy, qz);
+    }
+
+    // seq identifies the IMU sample for tracing, or is -1 for a repeat;
+    // sample_stamp is its header stamp in nanoseconds
+    private void runControl(int seq, long sample_stamp, double qw, double qx, double qy, double qz)
+    {
+        long now = System.nanoTime();
+
+        // Take up any commands that arrived since the last tick
+        if (m_setpoints.read(m_setpoint))
+        {
+            m_control_chain.setSetpoint(m_setpoint);
+            if (m_setpoint_recorder != null)
+                recordSetpoint(now);
+        }
+
+        // Time since the previous tick, or 0 for a fixed step. Ticks run
+        // from the IMU callback are timed by the sample stamps, the
+        // gyroscope event times in event-driven mode, so delivery jitter
+        // does not reach the D term; the control thread times its own.
+        long dt = 0;
+        if (m_time_step_aware)
+        {
+            long tick = m_control_loop != null ? now : sample_stamp;
+            if (m_last_tick != 0)
+                dt = tick - m_last_tick;
+            m_last_tick = tick;
+        }
+
+        // Run the attitude and rate controllers on preallocated state
+        m_control_chain.tick(qw, qx, qy, qz, m_setpoint.thrust, m_setpoint.yaw, dt, m_motor_thrusts);
+
+        // Send thrusts to motors
+        publishMotorThrusts(seq, m_motor_thrusts);
+
+        if (m_telemetry != null)
+            decimate(now);
+        if (m_pid_recorder != null)
+            recordPidTerms(seq, dt, now);
+    }
+
+    private synchronized void recordGains(ControllerGains gains)
+    {
+        double[] record = m_gains_record;
+        FlightRecorder.Channel.stamp(record, System.nanoTime());
+        putTerms(record, FlightRecorder.GAINS_ROLL_RATE, gains.getRollRate());
+        putTerms(record, FlightRecorder.GAINS_PITCH_RATE, gains.getPitchRate());
+        putTerms(record, FlightRecorder.GAINS_YAW_RATE, gains.getYawRate());
+        putTerms(record, FlightRecorder.GAINS_ROLL_ATT, gains.getRollAtt());
+        putTerms(record, FlightRecorder.GAINS_PITCH_ATT, gains.getPitchAtt());
+        record[FlightRecorder.GAINS_RESET] = gains.isResetIntegrators() ? 1.0 : 0.0;
+        record[FlightRecorder.GAINS_QUATERNION] = m_control_chain.isQuaternionError() ? 1.0 : 0.0;
+        record[FlightRecorder.GAINS_TIME_STEP_AWARE] = m_time_step_aware ? 1.0 : 0.0;
+        m_gains_recorder.append(record);
+    }
+
+    private void recordSetpoint(long now)
+    {
+        double[] record = m_setpoint_record;
+        FlightRecorder.Channel.stamp(record, now);
+        record[FlightRecorder.SETPOINT_THRUST] = m_setpoint.thrust;
+        record[FlightRecorder.SETPOINT_ROLL] = m_setpoint.roll;
+        record[FlightRecorder.SETPOINT_PITCH] = m_setpoint.pitch;
+        record[FlightRecorder.SETPOINT_YAW] = m_setpoint.yaw;
+        m_setpoint_recorder.append(record);
+    }
+
+    private void recordPidTerms(int seq, long dt, long now)
+    {
+        double[] record = m_pid_record;
+        FlightRecorder.Channel.stamp(record, now);
+        record[FlightRecorder.PID_SEQ] = seq;
+        record[FlightRecorder.PID_DT] = dt;
+
+        m_att_controller.getTerms(m_terms_1, m_terms_2);
+        putTerms(record, FlightRecorder.PID_ROLL_ATT, m_terms_1);
+        putTerms(record, FlightRecorder.PID_PITCH_ATT, m_terms_2);
+
+        m_rate_controller.getTerms(m_terms_1, m_terms_2, m_terms_3);
+        putTerms(record, FlightRecorder.PID_ROLL_RATE, m_terms_1);
+        putTerms(record, FlightRecorder.PID_PITCH_RATE, m_terms_2);
+        putTerms(record, FlightRecorder.PID_YAW_RATE, m_terms_3);
+
+        m_pid_recorder.append(record);
+    }
+
+    private static void putTerms(double[] record, int index, Vect3F terms)
+    {
+        record[index] = terms.x;
+        record[index + 1] = terms.y;
+        record[index + 2] = terms.z;
     }
 
-    // This function is from wikipedia.
-    private Vect3F quat2Euler(Quat q)
+    // Feeds this tick's state into the telemetry decimator
+    private void decimate(long now)
     {
-        Vect3F rpy = new Vect3F();
+        double[] record = m_telemetry_record;
+        Vect3F orientation = m_control_chain.getOrientation();
+        Vect3F rate = m_control_chain.getRateAdjustments();
+        Vect3F thrust = m_control_chain.getThrustAdjustments();
+
+        record[STATE_ORIENTATION] = orientation.x;
+        record[STATE_ORIENTATION + 1] = orientation.y;
+        record[STATE_ORIENTATION + 2] = orientation.z;
+        record[STATE_RATE] = rate.x;
+        record[STATE_RATE + 1] = rate.y;
+        record[STATE_RATE + 2] = rate.z;
+        record[STATE_THRUST] = thrust.x;
+        record[STATE_THRUST + 1] = thrust.y;
+        record[STATE_THRUST + 2] = thrust.z;
+        record[STATE_SETPOINT] = m_setpoint.thrust;
+        record[STATE_SETPOINT + 1] = m_setpoint.roll;
+        record[STATE_SETPOINT + 2] = m_setpoint.pitch;
+        record[STATE_SETPOINT + 3] = m_setpoint.yaw;
+        for (int i = 0; i < 4; i++)
+            record[STATE_MOTORS + i] = m_motor_thrusts[i];
+
+        m_telemetry.add(record, now);
+    }
 
-        // Yaw (z-axis rotation)
-        double siny = +2.0 * (-q.y * q.z + q.w * q.x);
-        double cosy = -q.z * q.z + q.y * q.y - q.x * q.x + q.w * q.w; 
-        rpy.z = -Math.atan2(siny, -cosy);
+    private void startTelemetry(ConnectedNode connectedNode)
+    {
+        m_telemetry = Decimator.forRate(STATE_WIDTH, m_telemetry_rate);
+        for (int i = 0; i < 3; i++)
+            m_telemetry.setLatest(STATE_ORIENTATION + i);
+        for (int i = 0; i < 4; i++)
+            m_telemetry.setLatest(STATE_SETPOINT + i);
+
+        final Publisher<simone_msgs.MotorCTRL> motor_publisher =
+                connectedNode.newPublisher(this.m_motor_ctrl_topic + "/telemetry", simone_msgs.MotorCTRL._TYPE);
+        final Publisher<Float64MultiArray> state_publisher =
+                connectedNode.newPublisher("flight_controller/telemetry", Float64MultiArray._TYPE);
+        MultiArrayDimension dim = connectedNode.getTopicMessageFactory().newFromType(MultiArrayDimension._TYPE);
+        dim.setLabel(STATE_LABEL);
+        dim.setSize(STATE_WIDTH);
+        dim.setStride(STATE_WIDTH);
+        List<MultiArrayDimension> dims = new ArrayList<MultiArrayDimension>(1);
+        dims.add(dim);
+        for (int i = 0; i < TELEMETRY_MSG_RING; i++)
+        {
+            m_telemetry_motor_msgs[i] = motor_publisher.newMessage();
+            m_telemetry_state_msgs[i] = state_publisher.newMessage();
+            m_telemetry_state_msgs[i].getLayout().setDim(dims);
+            m_telemetry_state_msgs[i].setData(new double[STATE_WIDTH]);
+        }
+
+        // Look twice per window so none are missed
+        final long poll_ms = Math.max(1, 500 / m_telemetry_rate);
+        connectedNode.executeCancellableLoop(new CancellableLoop() {
+            protected void loop() throws InterruptedException {
+                Thread.sleep(poll_ms);
+                double[] window = m_telemetry_window;
+                if (m_telemetry.poll(window) == 0)
+                    return;
+
+                simone_msgs.MotorCTRL motors = m_telemetry_motor_msgs[m_telemetry_msg_index];
+                Float64MultiArray state = m_telemetry_state_msgs[m_telemetry_msg_index];
+                m_telemetry_msg_index = (m_telemetry_msg_index + 1) % TELEMETRY_MSG_RING;
+
+                motors.setM1(window[STATE_MOTORS]);
+                motors.setM2(window[STATE_MOTORS + 1]);
+                motors.setM3(window[STATE_MOTORS + 2]);
+                motors.setM4(window[STATE_MOTORS + 3]);
+                motor_publisher.publish(motors);
+
+                System.arraycopy(window, 0, state.getData(), 0, STATE_WIDTH);
+                state_publisher.publish(state);
+            }
+        });
+    }
+
+    private void publishMotorThrusts(int seq, double[] thrusts)
+    {
+        simone_msgs.MotorCTRL motor_ctrl_msg = m_motor_msgs[m_motor_msg_index];
+        m_motor_msg_index = (m_motor_msg_index + 1) % MOTOR_MSG_RING;
 
-        // Roll (x-axis rotation)
-        double sinr = +2.0 * (q.x * q.y + q.w * q.z);
-        rpy.x = -Math.asin(sinr);
+        // Publish motor control message
+        motor_ctrl_msg.setM1(thrusts[0]);
+        motor_ctrl_msg.setM2(thrusts[1]);
+        motor_ctrl_msg.setM3(thrusts[2]);
+        motor_ctrl_msg.setM4(thrusts[3]);
+
+        long now = System.nanoTime();
+        if (m_trace != null && seq >= 0)
+            m_trace.commandSent(seq, thrusts[0], thrusts[1], thrusts[2], thrusts[3], now);
+
+        if (m_local_transport != null)
+        {
+            double[] record = m_local_record;
+            RecordStamps.put(record, LocalTransport.MOTOR_STAMP, now);
+            record[LocalTransport.MOTOR_SEQ] = seq;
+            record[LocalTransport.MOTOR_1] = thrusts[0];
+            record[LocalTransport.MOTOR_2] = thrusts[1];
+            record[LocalTransport.MOTOR_3] = thrusts[2];
+            record[LocalTransport.MOTOR_4] = thrusts[3];
+            m_local_transport.getMotorChannel().offer(record);
+        }
 
-        // Pitch (y-axis rotation)
-        double sinp = +2.0 * (-q.x * q.z + q.w * q.y);
-        double cosp = - q.z * q.z - q.y * q.y + q.x * q.x + q.w * q.w;  
-        rpy.y = -Math.atan2(sinp, cosp);
+        m_motor_publisher.publish(motor_ctrl_msg);
+    }
 
-        return rpy;
+    private void onImuSample(int seq, long stamp, double qw, double qx, double qy, double qz)
+    {
+        if (m_trace != null)
+            m_trace.received(seq, System.nanoTime());
+
+        // Leave the sample for the control thread
+        if (m_control_loop != null)
+        {
+            m_imu_sample.beginWrite();
+            m_imu_sample.putDouble(0, qw);
+            m_imu_sample.putDouble(1, qx);
+            m_imu_sample.putDouble(2, qy);
+            m_imu_sample.putDouble(3, qz);
+            m_imu_sample.putLong(4, seq);
+            m_imu_sample.putLong(5, stamp);
+            m_imu_sample.endWrite();
+            return;
+        }
+
+        runControl(seq, stamp, qw, qx, qy, qz);
     }
 
     @Override
@@ -146,40 +500,43 @@ public class FlightController extends AbstractNodeMain
 
     @Override
     public void onStart(ConnectedNode connectedNode) {
-        // Subscribe to IMU topic
-        Subscriber<sensor_msgs.Imu> imu_subscriber =
-                connectedNode.newSubscriber(this.m_imu_topic, sensor_msgs.Imu._TYPE);
-        // Create IMU topic callback
-        imu_subscriber.addMessageListener(new MessageListener<sensor_msgs.Imu>() {
-            @Override
-            public void onNewMessage(sensor_msgs.Imu message){
-                // Organize incomming sensor data in less verbose structures
-                Vect3F rates = new Vect3F();
-                rates.x = message.getAngularVelocity().getX();
-                rates.y = message.getAngularVelocity().getY();
-                rates.z = message.getAngularVelocity().getZ();
-                
-                Quat quat = new Quat();
-                quat.w = message.getOrientation().getW();
-                quat.x = message.getOrientation().getX();
-                quat.y = message.getOrientation().getY();
-                quat.z = message.getOrientation().getZ();
-
-                Vect3F orientation = quat2Euler(quat);
-                
-                // Calculate stabalize angular velocity adjustments
-                Vect3F rate_adjustments;
-                rate_adjustments = m_att_controller.getOutput(orientation);
-                rate_adjustments.z = m_yaw;
-
-                // Calculate stabalize thrust adjustments
-                Vect3F thrust_adjustments;
-                thrust_adjustments = m_rate_controller.getOutput(rate_adjustments);
-
-                // Send thrust adjustments to motors
-                applyThrustAdjustments(thrust_adjustments);
-            }
-        });
+        if (m_control_rate > 0)
+        {
+            m_control_loop = new ControlLoop("ControlLoop", m_control_rate, new Runnable() {
+                @Override
+                public void run() {
+                    controlTick();
+                }
+            });
+        }
+
+        if (m_local_transport != null)
+        {
+            // Take IMU samples straight from PhoneImu
+            m_local_receiver = new LocalTransport.Receiver(m_local_transport.getImuChannel()) {
+                @Override
+                protected void onRecord(double[] record) {
+                    onImuSample((int)record[LocalTransport.IMU_SEQ], RecordStamps.get(record, LocalTransport.IMU_STAMP),
+                            record[LocalTransport.IMU_QW], record[LocalTransport.IMU_QX],
+                            record[LocalTransport.IMU_QY], record[LocalTransport.IMU_QZ]);
+                }
+            };
+        }
+        else
+        {
+            // Subscribe to IMU topic
+            Subscriber<sensor_msgs.Imu> imu_subscriber =
+                    connectedNode.newSubscriber(this.m_imu_topic, sensor_msgs.Imu._TYPE);
+            // Create IMU topic callback
+            imu_subscriber.addMessageListener(new MessageListener<sensor_msgs.Imu>() {
+                @Override
+                public void onNewMessage(sensor_msgs.Imu message){
+                    geometry_msgs.Quaternion q = message.getOrientation();
+                    onImuSample(message.getHeader().getSeq(), message.getHeader().getStamp().totalNsecs(),
+                            q.getW(), q.getX(), q.getY(), q.getZ());
+                }
+            });
+        }
 
         // Subscribe to thrust topic
         Subscriber<hector_uav_msgs.ThrustCommand> thrust_subscriber =
@@ -188,7 +545,7 @@ public class FlightController extends AbstractNodeMain
         thrust_subscriber.addMessageListener(new MessageListener<hector_uav_msgs.ThrustCommand>() {
             @Override
             public void onNewMessage(hector_uav_msgs.ThrustCommand message){
-                m_thrust = 60 - (message.getThrust() * 3);
+                m_setpoints.setThrust(60 - (message.getThrust() * 3));
             }
         });
 
@@ -199,14 +556,8 @@ public class FlightController extends AbstractNodeMain
         yawrate_subscriber.addMessageListener(new MessageListener<hector_uav_msgs.YawrateCommand>() {
             @Override
             public void onNewMessage(hector_uav_msgs.YawrateCommand message){
-                // Get commanded value
-                m_yaw = message.getTurnrate();
-
-                // Build control inputs from current state
-                Vect3F commanded_values = new Vect3F(m_pitch, m_roll, m_yaw); // formatted as phone's x, y, z axis
-
-                // Update the controller with the new desired state
-                m_att_controller.setDesiredAtt(commanded_values);
+                // Picked up by the attitude controller at the next tick
+                m_setpoints.setYawrate(message.getTurnrate());
             }
         });
 
@@ -217,20 +568,18 @@ public class FlightController extends AbstractNodeMain
         attitude_subscriber.addMessageListener(new MessageListener<hector_uav_msgs.AttitudeCommand>() {
             @Override
             public void onNewMessage(hector_uav_msgs.AttitudeCommand message){
-                // Get commanded value
-                m_roll = message.getRoll();
-                m_pitch = message.getPitch();
-
-                // Build control inputs from current state
-                Vect3F commanded_values = new Vect3F(m_pitch, m_roll, m_yaw); // formatted as phone's x, y, z axis
-
-                // Update the controller with the new desired state
-                m_att_controller.setDesiredAtt(commanded_values);
+                // Picked up by the attitude controller at the next tick
+                m_setpoints.setAttitude(message.getRoll(), message.getPitch());
             }
         });
 
         // Set up motor control publisher
         m_motor_publisher = connectedNode.newPublisher(this.m_motor_ctrl_topic, simone_msgs.MotorCTRL._TYPE);
+        for (int i = 0; i < MOTOR_MSG_RING; i++)
+            m_motor_msgs[i] = m_motor_publisher.newMessage();
+
+        if (m_telemetry_rate > 0)
+            startTelemetry(connectedNode);
 
         // Set up update_pids server
         ServiceServer<UpdatePIDsRequest, UpdatePIDsResponse> server =
@@ -265,14 +614,43 @@ public class FlightController extends AbstractNodeMain
                                 pitch_att_pid_terms.y = request.getPitchAttKI();
                                 pitch_att_pid_terms.z = request.getPitchAttKD();
 
-                                // Re-start PID controllers
-                                m_rate_controller.reset(roll_rate_pid_terms, pitch_rate_pid_terms, yaw_rate_pid_terms);
-                                m_att_controller.reset(roll_att_pid_terms, pitch_att_pid_terms);
+                                // Hand the new gains to the control thread, which
+                                // switches to them at its next tick
+                                ControllerGains gains = new ControllerGains(roll_rate_pid_terms,
+                                        pitch_rate_pid_terms, yaw_rate_pid_terms, roll_att_pid_terms,
+                                        pitch_att_pid_terms, m_retune_resets_integrators);
+                                m_control_chain.setGains(gains);
+                                if (m_gains_recorder != null)
+                                    recordGains(gains);
 
                                 response.setSuccess(true);
                             }
                         });
 
+        if (m_gains_recorder != null)
+            recordGains(m_initial_gains);
+
+        if (m_local_receiver != null)
+            m_local_receiver.start("LocalImu");
+
+        if (m_control_loop != null)
+        {
+            m_control_loop.start();
+
+            // Publish control loop timing once a second
+            DiagnosticsPublisher diagnostics = new DiagnosticsPublisher("flight_controller");
+            m_control_loop.addTo(diagnostics, "flight_controller: control loop ");
+            diagnostics.start(connectedNode, this.m_diagnostics_topic, 1000);
+        }
+    }
+
+    @Override
+    public void onShutdown(Node node)
+    {
+        if (m_local_receiver != null)
+            m_local_receiver.stop();
+        if (m_control_loop != null)
+            m_control_loop.stop();
     }
 
 } // End class
@@ -0,0 +1,105 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.File;
+import java.io.IOException;
+
+// Converts a FlightRecorder log into the indexed columnar format of
+// ColumnarLogWriter, a slice of records at a time, so it can run in the
+// background on the phone after a flight without holding more than one
+// block per record type in memory or the CPU for long:
+//
+//     FlightLogConverter converter = new FlightLogConverter(raw, columnar);
+//     while (converter.step(10000))
+//         Thread.yield();
+//
+// The output is written to a temporary file and renamed once complete, so
+// an interrupted conversion leaves no half-written log behind and can
+// simply be started again.
+class FlightLogConverter
+{
+    private final File m_out;
+    private final File m_temp;
+    private final FlightLogReader m_reader;
+    private final ColumnarLogWriter m_writer;
+    private final double[] m_record;
+    private long m_raw_bytes = FlightRecorder.HEADER_SIZE;
+    private boolean m_done;
+
+    public FlightLogConverter(File raw, File out) throws IOException
+    {
+        m_out = out;
+        m_temp = new File(out.getPath() + ".tmp");
+        m_reader = new FlightLogReader(raw);
+        try {
+            m_writer = new ColumnarLogWriter(m_temp);
+        } catch (IOException e) {
+            m_reader.close();
+            throw e;
+        }
+        m_record = new double[m_reader.getMaxWidth()];
+    }
+
+    // Converts up to records more records. Returns false once the whole log
+    // is converted and the output is in place.
+    public boolean step(int records) throws IOException
+    {
+        if (m_done)
+            return false;
+
+        for (int i = 0; i < records; i++) {
+            if (!m_reader.next(m_record)) {
+                finish();
+                return false;
+            }
+            m_writer.append(m_reader.getType(), m_record, m_reader.getWidth());
+            m_raw_bytes += 8 + 8 * m_reader.getWidth();
+        }
+        return true;
+    }
+
+    // Records converted so far, the bytes of the raw log they took and the
+    // size of the output so far
+    public long getRecords()
+    {
+        return m_writer.getRows();
+    }
+
+    public long getRawBytes()
+    {
+        return m_raw_bytes;
+    }
+
+    public long getSize()
+    {
+        return m_writer.getSize();
+    }
+
+    // Abandons an unfinished conversion
+    public void close() throws IOException
+    {
+        if (m_done)
+            return;
+        m_done = true;
+        try {
+            m_reader.close();
+            m_writer.close();
+        } finally {
+            m_temp.delete();
+        }
+    }
+
+    private void finish() throws IOException
+    {
+        m_done = true;
+        try {
+            m_reader.close();
+            m_writer.close();
+            if (!m_temp.renameTo(m_out))
+                throw new IOException("Could not rename " + m_temp + " to " + m_out);
+        } catch (IOException e) {
+            // close() does nothing once done, so clean up here
+            m_temp.delete();
+            throw e;
+        }
+    }
+}
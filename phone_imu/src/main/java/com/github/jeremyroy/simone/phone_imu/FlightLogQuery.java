@@ -0,0 +1,181 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Converts FlightRecorder logs to the indexed columnar format and pulls
+// time ranges and fields out of them as CSV, reading only the blocks that
+// hold them.
+//
+// Usage: FlightLogQuery convert log.fdr [out.fdc]
+//        FlightLogQuery info log.fdc
+//        FlightLogQuery query log.fdc type [-from s] [-to s] [-c column,...]
+//                       [-where column low high]
+//
+// type is imu, setpoint, pid, motors or gains. -from and -to are seconds
+// since the first record of the log. -c picks the columns, printed in the
+// order given with the stamp always first; -where keeps only rows whose
+// column is within [low, high]. Stamps are printed as nanoseconds since the
+// first record. What the query read is reported on standard error.
+public class FlightLogQuery
+{
+    private static final int STEP_RECORDS = 64 * 1024;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length >= 2 && args[0].equals("convert")) {
+            File raw = new File(args[1]);
+            File out = new File(args.length > 2 ? args[2] : raw.getPath().replaceAll("\\.fdr$", "") + ".fdc");
+            convert(raw, out);
+        } else if (args.length == 2 && args[0].equals("info")) {
+            info(new File(args[1]));
+        } else if (args.length >= 3 && args[0].equals("query")) {
+            query(args);
+        } else {
+            System.err.println("Usage: FlightLogQuery convert log.fdr [out.fdc]");
+            System.err.println("       FlightLogQuery info log.fdc");
+            System.err.println("       FlightLogQuery query log.fdc type [-from s] [-to s] [-c column,...] "
+                    + "[-where column low high]");
+            System.exit(1);
+        }
+    }
+
+    private static void convert(File raw, File out) throws IOException
+    {
+        long start = System.nanoTime();
+        FlightLogConverter converter = new FlightLogConverter(raw, out);
+        try {
+            while (converter.step(STEP_RECORDS))
+                ;
+        } finally {
+            converter.close();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long records = converter.getRecords();
+        // Against the part of the raw log in use, not its preallocated size
+        long raw_bytes = converter.getRawBytes();
+        System.out.printf("%s: %d records, %d bytes of raw log in %d bytes, %.1fx, in %.2f s, %.0f records/s%n",
+                out, records, raw_bytes, out.length(), (double)raw_bytes / out.length(), elapsed,
+                records / elapsed);
+    }
+
+    private static void info(File file) throws IOException
+    {
+        ColumnarLogReader reader = new ColumnarLogReader(file);
+        try {
+            long first = reader.getFirstStamp();
+            for (int type = 1; type <= FlightRecorder.GAINS; type++) {
+                long blocks = 0, rows = 0, bytes = 0;
+                long last = first;
+                for (ColumnarLogReader.Block block : reader.getBlocks()) {
+                    if (block.type == type) {
+                        blocks++;
+                        rows += block.rows;
+                        bytes += block.length;
+                        last = Math.max(last, block.last);
+                    }
+                }
+                if (blocks == 0)
+                    continue;
+                int width = reader.getWidth(type);
+                System.out.printf("%s: %d rows in %d blocks, %.2f bytes per value, up to %.3f s%n  %s%n",
+                        FlightRecorder.typeName(type), rows, blocks, (double)bytes / (rows * width),
+                        (last - first) / 1e9, join(FlightRecorder.columnNames(type, width)));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void query(String[] args) throws IOException
+    {
+        final ColumnarLogReader reader = new ColumnarLogReader(new File(args[1]));
+        try {
+            int type = FlightRecorder.typeOf(args[2]);
+            int width = reader.getWidth(type);
+            if (width == 0)
+                throw new IllegalArgumentException("No " + args[2] + " records in " + args[1]);
+            String[] names = FlightRecorder.columnNames(type, width);
+
+            final long first = reader.getFirstStamp();
+            ColumnarLogReader.Query query = new ColumnarLogReader.Query(type);
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].equals("-from")) {
+                    query.from = first + (long)(Double.parseDouble(args[++i]) * 1e9);
+                } else if (args[i].equals("-to")) {
+                    query.to = first + (long)(Double.parseDouble(args[++i]) * 1e9);
+                } else if (args[i].equals("-c")) {
+                    String[] wanted = args[++i].split(",");
+                    Set<String> seen = new HashSet<String>();
+                    seen.add(names[FlightRecorder.STAMP]);
+                    int[] columns = new int[wanted.length + 1];
+                    int n = 1;
+                    for (String name : wanted) {
+                        if (seen.add(name))
+                            columns[n++] = column(names, name);
+                    }
+                    query.columns = Arrays.copyOf(columns, n);
+                } else if (args[i].equals("-where")) {
+                    query.where = column(names, args[++i]);
+                    query.low = Double.parseDouble(args[++i]);
+                    query.high = Double.parseDouble(args[++i]);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+
+            final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+            int[] columns = query.columns;
+            if (columns == null) {
+                columns = new int[width];
+                for (int c = 0; c < width; c++)
+                    columns[c] = c;
+            }
+            StringBuilder header = new StringBuilder();
+            for (int c = 0; c < columns.length; c++)
+                header.append(c == 0 ? "" : ",").append(names[columns[c]]);
+            out.write(header.append('\n').toString());
+
+            long start = System.nanoTime();
+            final StringBuilder line = new StringBuilder();
+            ColumnarLogReader.Stats stats = reader.query(query, new ColumnarLogReader.RowHandler() {
+                @Override
+                public void row(double[] values) throws IOException {
+                    line.setLength(0);
+                    line.append(RecordStamps.get(values, FlightRecorder.STAMP) - first);
+                    for (int c = 1; c < values.length; c++)
+                        line.append(',').append(values[c]);
+                    out.write(line.append('\n').toString());
+                }
+            });
+            out.flush();
+            System.err.printf("%d rows, %d of %d blocks read, %d bytes, in %.3f s%n", stats.rows,
+                    stats.blocks_read, stats.blocks, stats.bytes_read, (System.nanoTime() - start) / 1e9);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int column(String[] names, String name)
+    {
+        for (int c = 1; c < names.length; c++) {
+            if (names[c].equals(name))
+                return c;
+        }
+        throw new IllegalArgumentException("Unknown column " + name);
+    }
+
+    private static String join(String[] names)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < names.length; i++)
+            text.append(i == 0 ? "" : ",").append(names[i]);
+        return text.toString();
+    }
+}
@@ -0,0 +1,161 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Streams the records of a FlightRecorder log from disk through a small
+// buffer, so logs of any size can be read without loading them. Optionally
+// only records of one type are returned; several readers over the same file
+// then give independent cursors per stream.
+//
+//     FlightLogReader reader = new FlightLogReader(file, FlightRecorder.IMU);
+//     double[] record = new double[FlightRecorder.IMU_WIDTH];
+//     while (reader.next(record))
+//         ...
+//     reader.close();
+class FlightLogReader
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileInputStream m_in;
+    private final FileChannel m_channel;
+    private final ByteBuffer m_buffer;
+    private final int m_filter;
+    private final int[] m_types;
+    private final int[] m_widths;
+
+    private int m_type;
+    private int m_width;
+    private boolean m_end;
+
+    public FlightLogReader(File file) throws IOException
+    {
+        this(file, 0);
+    }
+
+    // type 0 returns every record
+    public FlightLogReader(File file, int type) throws IOException
+    {
+        m_filter = type;
+        m_in = new FileInputStream(file);
+        m_channel = m_in.getChannel();
+        m_buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        m_buffer.limit(0);
+
+        try {
+            // An interrupted start can leave the file empty
+            if (!fill(FlightRecorder.HEADER_SIZE))
+                throw new EOFException(file + " is too short for a flight log");
+            byte[] magic = new byte[FlightRecorder.MAGIC.length];
+            m_buffer.get(magic);
+            if (!Arrays.equals(magic, FlightRecorder.MAGIC) && !Arrays.equals(magic, FlightRecorder.OLD_MAGIC))
+                throw new IOException(file + " is not a flight log");
+            int version = m_buffer.getInt();
+            if (version != FlightRecorder.VERSION)
+                throw new IOException(file + " is version " + version + ", expected " + FlightRecorder.VERSION);
+
+            int channels = m_buffer.getInt();
+            if (channels < 0 || channels > (FlightRecorder.HEADER_SIZE - 16) / 8)
+                throw new IOException(file + " has a corrupt header");
+            m_types = new int[channels];
+            m_widths = new int[channels];
+            for (int c = 0; c < channels; c++) {
+                m_types[c] = m_buffer.getInt();
+                m_widths[c] = m_buffer.getInt();
+            }
+            m_buffer.position(FlightRecorder.HEADER_SIZE);
+        } catch (IOException e) {
+            m_in.close();
+            throw e;
+        }
+    }
+
+    // Record types of the channels in the log, and their widths
+    public int[] getChannelTypes()
+    {
+        return m_types.clone();
+    }
+
+    public int[] getChannelWidths()
+    {
+        return m_widths.clone();
+    }
+
+    // Largest record width in the log
+    public int getMaxWidth()
+    {
+        int width = 0;
+        for (int w : m_widths)
+            width = Math.max(width, w);
+        return width;
+    }
+
+    // Reads the next record, of the filtered type if any, into record,
+    // which must hold its width. Returns false at the end of the log.
+    public boolean next(double[] record) throws IOException
+    {
+        while (!m_end) {
+            if (!fill(8) || (m_type = m_buffer.getInt()) == 0) {
+                m_end = true;
+                break;
+            }
+            m_width = m_buffer.getInt();
+            if (m_width <= 0 || m_width > (BUFFER_SIZE - 8) / 8)
+                throw new IOException("Corrupt record of width " + m_width);
+            int bytes = 8 * m_width;
+            if (!fill(bytes))
+                throw new EOFException("Truncated record");
+
+            if (m_filter != 0 && m_type != m_filter) {
+                m_buffer.position(m_buffer.position() + bytes);
+                continue;
+            }
+            if (m_width > record.length)
+                throw new IOException("Record of type " + m_type + " is wider than its header says");
+            for (int i = 0; i < m_width; i++)
+                record[i] = m_buffer.getDouble();
+            return true;
+        }
+        return false;
+    }
+
+    // Type and width of the record last returned by next()
+    public int getType()
+    {
+        return m_type;
+    }
+
+    public int getWidth()
+    {
+        return m_width;
+    }
+
+    public void close() throws IOException
+    {
+        m_in.close();
+    }
+
+    // Makes at least bytes available in the buffer, or returns false at the
+    // end of the file
+    private boolean fill(int bytes) throws IOException
+    {
+        if (m_buffer.remaining() >= bytes)
+            return true;
+
+        m_buffer.compact();
+        while (m_buffer.position() < bytes) {
+            if (m_channel.read(m_buffer) < 0) {
+                m_buffer.flip();
+                return false;
+            }
+        }
+        m_buffer.flip();
+        return true;
+    }
+}
@@ -0,0 +1,315 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Onboard flight data recorder. Hot-path threads append fixed-layout
+// records of doubles to a channel each, a lock-free SpscRing, without
+// allocating or blocking; a full ring drops the record and counts it. A
+// background thread drains the channels into a log file of fixed size,
+// memory-mapped, so writing a record is a copy into the page cache and a
+// crash of the app loses nothing already drained. Once the file is full,
+// further records are counted and dropped.
+//
+// The file is little-endian:
+//
+//     header, HEADER_SIZE bytes:
+//         magic "SIMFDLOG", int version, int channel count,
+//         then per channel: int type, int width
+//     records, to the end of the file or the first type 0:
+//         int type, int width, width doubles
+//
+// Every record starts with its System.nanoTime() stamp, stored as raw long
+// bits in a double by RecordStamps, followed by the fields listed below for
+// its type. Records are in the order they were drained, a run from each
+// channel in turn, not in stamp order: readers that need the flight in
+// order, as FlightReplay does, merge the types by stamp.
+class FlightRecorder
+{
+    // Record types and layouts
+    static final int IMU = 1;
+    static final int SETPOINT = 2;
+    static final int PID = 3;
+    static final int MOTORS = 4;
+    static final int GAINS = 5;
+
+    static final int STAMP = 0;
+
+    static final int IMU_SEQ = 1;
+    static final int IMU_QW = 2;        // then qx, qy, qz as published
+    static final int IMU_GX = 6;        // then gy, gz
+    static final int IMU_AX = 9;        // then ay, az
+    static final int IMU_WIDTH = 12;
+
+    static final int SETPOINT_THRUST = 1;
+    static final int SETPOINT_ROLL = 2;
+    static final int SETPOINT_PITCH = 3;
+    static final int SETPOINT_YAW = 4;
+    static final int SETPOINT_WIDTH = 5;
+
+    // One per control tick: the IMU sample it ran on (-1 if it repeated the
+    // last one), the P, I and D terms of the roll and pitch attitude PIDs
+    // and the roll, pitch and yaw rate PIDs, then the time step in
+    // nanoseconds given to the PIDs, 0 for a fixed step
+    static final int PID_SEQ = 1;
+    static final int PID_ROLL_ATT = 2;
+    static final int PID_PITCH_ATT = 5;
+    static final int PID_ROLL_RATE = 8;
+    static final int PID_PITCH_RATE = 11;
+    static final int PID_YAW_RATE = 14;
+    static final int PID_DT = 17;
+    static final int PID_WIDTH = 18;
+
+    // Duties in percent as sent to the motors, 1 if they were enabled, and
+    // the IMU sample the command was computed from, as in PID_SEQ, or -1 if
+    // it is not known, as for commands that came over the motor_ctrl topic
+    static final int MOTORS_1 = 1;      // then motors 2 to 4
+    static final int MOTORS_ENABLED = 5;
+    static final int MOTORS_SEQ = 6;
+    static final int MOTORS_WIDTH = 7;
+
+    // Controller configuration at start and after every update_pids: (P, I,
+    // D) of the roll, pitch and yaw rate PIDs and the roll and pitch
+    // attitude PIDs, then 1 or 0 for whether integrators were reset and
+    // whether the quaternion attitude and time step aware modes are on
+    static final int GAINS_ROLL_RATE = 1;
+    static final int GAINS_PITCH_RATE = 4;
+    static final int GAINS_YAW_RATE = 7;
+    static final int GAINS_ROLL_ATT = 10;
+    static final int GAINS_PITCH_ATT = 13;
+    static final int GAINS_RESET = 16;
+    static final int GAINS_QUATERNION = 17;
+    static final int GAINS_TIME_STEP_AWARE = 18;
+    static final int GAINS_WIDTH = 19;
+
+    // Names of the record types and of their fields, for tools
+    private static final String[] TYPE_NAMES = { null, "imu", "setpoint", "pid", "motors", "gains" };
+    private static final String[][] COLUMN_NAMES = {
+        null,
+        { "stamp", "seq", "qw", "qx", "qy", "qz", "gx", "gy", "gz", "ax", "ay", "az" },
+        { "stamp", "thrust", "roll", "pitch", "yaw" },
+        { "stamp", "seq", "roll_att_p", "roll_att_i", "roll_att_d", "pitch_att_p", "pitch_att_i",
+          "pitch_att_d", "roll_rate_p", "roll_rate_i", "roll_rate_d", "pitch_rate_p", "pitch_rate_i",
+          "pitch_rate_d", "yaw_rate_p", "yaw_rate_i", "yaw_rate_d", "dt" },
+        { "stamp", "m1", "m2", "m3", "m4", "enabled", "seq" },
+        { "stamp", "roll_rate_kp", "roll_rate_ki", "roll_rate_kd", "pitch_rate_kp", "pitch_rate_ki",
+          "pitch_rate_kd", "yaw_rate_kp", "yaw_rate_ki", "yaw_rate_kd", "roll_att_kp", "roll_att_ki",
+          "roll_att_kd", "pitch_att_kp", "pitch_att_ki", "pitch_att_kd", "reset", "quaternion",
+          "time_step_aware" },
+    };
+
+    // The version is only in the version field. Logs before version 3 began
+    // "SIMFDR01", still recognised so readers can report their version.
+    static final byte[] MAGIC = { 'S', 'I', 'M', 'F', 'D', 'L', 'O', 'G' };
+    static final byte[] OLD_MAGIC = { 'S', 'I', 'M', 'F', 'D', 'R', '0', '1' };
+    // Version 2 added the PID_SEQ field, the GAINS records and MOTORS_SEQ,
+    // version 3 PID_DT; readers reject logs of other versions rather than
+    // misread them
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 256;
+
+    private static final int CAPACITY = 4096;       // records per channel
+    private static final long DRAIN_PERIOD_MS = 10;
+
+    private final File m_file;
+    private final long m_size;
+    private final List<Channel> m_channels = new ArrayList<Channel>();
+
+    private RandomAccessFile m_out;
+    private MappedByteBuffer m_buffer;
+    private Thread m_thread;
+    private volatile boolean m_running;
+
+    private final AtomicLong m_records = new AtomicLong();
+    private final AtomicLong m_full = new AtomicLong();
+
+    // size_bytes is the size of the log file, preallocated on start
+    public FlightRecorder(File file, long size_bytes)
+    {
+        if (size_bytes <= HEADER_SIZE || size_bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Log size must be between the header size and 2 GB");
+        m_file = file;
+        m_size = size_bytes;
+    }
+
+    public static String typeName(int type)
+    {
+        return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "type" + type;
+    }
+
+    // Record type called name, or 0 if there is none
+    public static int typeOf(String name)
+    {
+        for (int type = 1; type < TYPE_NAMES.length; type++) {
+            if (TYPE_NAMES[type].equals(name))
+                return type;
+        }
+        return 0;
+    }
+
+    // Field names of a record type, or generic names for unknown types
+    public static String[] columnNames(int type, int width)
+    {
+        if (type > 0 && type < COLUMN_NAMES.length && COLUMN_NAMES[type].length == width)
+            return COLUMN_NAMES[type].clone();
+        String[] names = new String[width];
+        names[0] = "stamp";
+        for (int i = 1; i < width; i++)
+            names[i] = "c" + i;
+        return names;
+    }
+
+    // Adds a channel for one producer thread. Must be called before start().
+    public synchronized Channel newChannel(String name, int type, int width)
+    {
+        if (m_thread != null)
+            throw new IllegalStateException("Recorder already started");
+        if ((HEADER_SIZE - 16) / 8 <= m_channels.size())
+            throw new IllegalStateException("Too many channels");
+
+        Channel channel = new Channel(name, type, width);
+        m_channels.add(channel);
+        return channel;
+    }
+
+    public void addTo(DiagnosticsPublisher diagnostics, String prefix)
+    {
+        diagnostics.addCounter(prefix + "records", m_records);
+        diagnostics.addCounter(prefix + "log full drops", m_full);
+        for (Channel channel : m_channels)
+            diagnostics.addCounter(prefix + channel.m_name + " drops", channel.m_ring.getDropped());
+    }
+
+    // Creates and maps the log file, writes the header and starts draining
+    public synchronized void start() throws IOException
+    {
+        m_out = new RandomAccessFile(m_file, "rw");
+        m_out.setLength(0);
+        m_out.setLength(m_size);
+        m_buffer = m_out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, m_size);
+        m_buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        m_buffer.put(MAGIC);
+        m_buffer.putInt(VERSION);
+        m_buffer.putInt(m_channels.size());
+        for (Channel channel : m_channels) {
+            m_buffer.putInt(channel.m_type);
+            m_buffer.putInt(channel.m_width);
+        }
+        m_buffer.position(HEADER_SIZE);
+
+        m_running = true;
+        m_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "FlightRecorder");
+        m_thread.start();
+    }
+
+    // Drains what is left, flushes the file to storage and closes it
+    public synchronized void stop()
+    {
+        if (m_thread == null)
+            return;
+
+        m_running = false;
+        m_thread.interrupt();
+        try {
+            m_thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        m_thread = null;
+
+        drain();
+        m_buffer.force();
+        try {
+            m_out.close();
+        } catch (IOException e) {
+            // Everything was already forced out
+        }
+    }
+
+    private void drainLoop()
+    {
+        while (m_running) {
+            if (drain() == 0) {
+                try {
+                    Thread.sleep(DRAIN_PERIOD_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Copies every queued record into the file, returning how many
+    private int drain()
+    {
+        MappedByteBuffer buffer = m_buffer;
+        int drained = 0;
+        for (int c = 0; c < m_channels.size(); c++) {
+            Channel channel = m_channels.get(c);
+            double[] record = channel.m_drain_record;
+            int bytes = 8 + 8 * channel.m_width;
+            while (channel.m_ring.poll(record)) {
+                drained++;
+                if (buffer.remaining() < bytes) {
+                    m_full.incrementAndGet();
+                    continue;
+                }
+                buffer.putInt(channel.m_type);
+                buffer.putInt(channel.m_width);
+                for (int i = 0; i < channel.m_width; i++)
+                    buffer.putDouble(record[i]);
+                m_records.incrementAndGet();
+            }
+        }
+        return drained;
+    }
+
+    // One producer's queue of records of a single type
+    public static class Channel
+    {
+        private final String m_name;
+        private final int m_type;
+        private final int m_width;
+        private final SpscRing m_ring;
+        private final double[] m_drain_record;
+
+        private Channel(String name, int type, int width)
+        {
+            m_name = name;
+            m_type = type;
+            m_width = width;
+            m_ring = new SpscRing(CAPACITY, width);
+            m_drain_record = new double[width];
+        }
+
+        public int getWidth()
+        {
+            return m_width;
+        }
+
+        // Producer: queues record[0..width), with record[STAMP] already
+        // filled in by stamp(). Returns false if the record was dropped.
+        public boolean append(double[] record)
+        {
+            return m_ring.offer(record);
+        }
+
+        public static void stamp(double[] record, long nanos)
+        {
+            RecordStamps.put(record, STAMP, nanos);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Reruns recorded flights through the flight controller's control chain
+// (quat2Euler or the quaternion error, attitude controller, rate controller,
+// quad X mixer) as fast as the CPU allows, and compares what it computes
+// with what was recorded.
+//
+// Each log is streamed from disk by one FlightLogReader per record type,
+// merged by stamp: gains changes and setpoints are applied when they
+// happened, and every recorded tick is rerun on the IMU sample it used, with
+// the same time step. The PID terms are compared with the recorded terms,
+// and the motor commands with the duties the motor node recorded for the
+// same IMU sample. Commands recorded without a sample, as when they came
+// over the motor_ctrl topic, are compared with the newest unmatched command
+// replayed before they were recorded instead, and counted separately.
+// Commands left without a counterpart on either side, as after a dropped
+// message or record, are counted as unmatched rather than shifting the
+// comparisons after them.
+// Replaying with the recorded gains on unchanged code should match exactly;
+// differences show the effect of a code change, or of the gains given with
+// -g, on real flights.
+//
+// Logs are replayed in parallel, one per task on a pool of the given size.
+//
+// Usage: FlightReplay [-t threads] [-g gains] [-e tolerance] log...
+//
+// gains are 15 comma separated values in update_pids order: roll, pitch and
+// yaw rate then roll and pitch attitude, each as kp,ki,kd.
+public class FlightReplay
+{
+    private static final int IMU_HISTORY = 256;     // samples, a power of two
+    private static final int PENDING = 1024;        // commands awaiting comparison, a power of two
+
+    // Order in which records with equal stamps are applied
+    private static final int[] TYPES = { FlightRecorder.GAINS, FlightRecorder.SETPOINT,
+            FlightRecorder.IMU, FlightRecorder.PID, FlightRecorder.MOTORS };
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        double[] gains = null;
+        double tolerance = 1e-9;
+        final List<File> logs = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-t"))
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-e"))
+                tolerance = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-g"))
+                gains = parseGains(args[++i]);
+            else
+                logs.add(new File(args[i]));
+        }
+        if (logs.isEmpty()) {
+            System.err.println("Usage: FlightReplay [-t threads] [-g gains] [-e tolerance] log...");
+            System.exit(1);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long ticks = 0;
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final File log : logs) {
+                final double[] override = gains;
+                final double limit = tolerance;
+                futures.add(pool.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws IOException {
+                        return replay(log, override, limit);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < logs.size(); i++) {
+                Result r = futures.get(i).get();
+                ticks += r.ticks;
+                System.out.printf("%s: %d ticks, %.0f ticks/s, %d commands compared (%d by time), "
+                        + "%d differ, max motor diff %.3g, rms %.3g, max PID term diff %.3g, "
+                        + "%d missing IMU samples, %d replayed and %d recorded commands unmatched%n",
+                        logs.get(i), r.ticks, r.ticks / (r.nanos / 1e9), r.compared, r.compared_by_time,
+                        r.mismatches, r.max_motor_diff, Math.sqrt(r.sum_sq_motor_diff / Math.max(1, r.compared)),
+                        r.max_term_diff, r.missing_imu, r.unmatched_replayed, r.unmatched_recorded);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d logs on %d threads: %d ticks in %.2f s, %.0f ticks/s%n",
+                logs.size(), threads, ticks, elapsed, ticks / elapsed);
+    }
+
+    // Replays one log. gains, if not null, replace the recorded ones;
+    // commands further than tolerance from the recorded ones count as
+    // mismatches.
+    public static Result replay(File log, double[] gains, double tolerance) throws IOException
+    {
+        Result result = new Result();
+        long start = System.nanoTime();
+
+        // The first gains record is the configuration the flight started with
+        double[] initial = new double[FlightRecorder.GAINS_WIDTH];
+        FlightLogReader first = new FlightLogReader(log, FlightRecorder.GAINS);
+        try {
+            if (!first.next(initial))
+                throw new IOException(log + " has no gains record");
+        } finally {
+            first.close();
+        }
+        if (gains != null)
+            System.arraycopy(gains, 0, initial, FlightRecorder.GAINS_ROLL_RATE, gains.length);
+
+        ControllerGains config = toGains(initial);
+        AttitudeController att = new AttitudeController(config.getRollAtt(), config.getPitchAtt());
+        RateController rate = new RateController(config.getRollRate(), config.getPitchRate(), config.getYawRate());
+        ControlChain chain = new ControlChain(att, rate);
+        chain.setQuaternionError(initial[FlightRecorder.GAINS_QUATERNION] != 0);
+
+        Stream[] streams = new Stream[TYPES.length];
+        try {
+            for (int s = 0; s < TYPES.length; s++)
+                streams[s] = new Stream(log, TYPES[s]);
+            // Already applied
+            streams[0].advance();
+
+            SetpointMailbox.Setpoint setpoint = new SetpointMailbox.Setpoint();
+            double[] history = new double[IMU_HISTORY * 5];
+            double qw = 1, qx = 0, qy = 0, qz = 0;
+            double[] motors = new double[4];
+
+            // Replayed commands awaiting their recorded counterpart, oldest
+            // first, with the position of the last one of each IMU sample
+            double[] pending = new double[PENDING * 4];
+            int[] pending_seq = new int[PENDING];
+            long[] pending_stamp = new long[PENDING];
+            boolean[] pending_matched = new boolean[PENDING];
+            long[] pending_by_seq = new long[PENDING];
+            Arrays.fill(pending_by_seq, -1);
+            long pending_head = 0, pending_tail = 0;
+            Vect3F[] terms = { new Vect3F(), new Vect3F(), new Vect3F(), new Vect3F(), new Vect3F() };
+            int[] term_index = { FlightRecorder.PID_ROLL_ATT, FlightRecorder.PID_PITCH_ATT,
+                    FlightRecorder.PID_ROLL_RATE, FlightRecorder.PID_PITCH_RATE, FlightRecorder.PID_YAW_RATE };
+
+            while (true) {
+                // Earliest record across the streams
+                Stream next = null;
+                for (Stream stream : streams) {
+                    if (stream.more && (next == null || stream.stamp < next.stamp))
+                        next = stream;
+                }
+                if (next == null)
+                    break;
+                double[] record = next.record;
+
+                switch (next.type) {
+                case FlightRecorder.GAINS:
+                    if (gains == null) {
+                        chain.setGains(toGains(record));
+                    } else if (record[FlightRecorder.GAINS_RESET] != 0) {
+                        System.arraycopy(gains, 0, record, FlightRecorder.GAINS_ROLL_RATE, gains.length);
+                        chain.setGains(toGains(record));
+                    }
+                    break;
+
+                case FlightRecorder.SETPOINT:
+                    setpoint.thrust = record[FlightRecorder.SETPOINT_THRUST];
+                    setpoint.roll = record[FlightRecorder.SETPOINT_ROLL];
+                    setpoint.pitch = record[FlightRecorder.SETPOINT_PITCH];
+                    setpoint.yaw = record[FlightRecorder.SETPOINT_YAW];
+                    chain.setSetpoint(setpoint);
+                    break;
+
+                case FlightRecorder.IMU: {
+                    int slot = ((int)record[FlightRecorder.IMU_SEQ] & (IMU_HISTORY - 1)) * 5;
+                    history[slot] = record[FlightRecorder.IMU_SEQ];
+                    System.arraycopy(record, FlightRecorder.IMU_QW, history, slot + 1, 4);
+                    break;
+                }
+
+                case FlightRecorder.PID: {
+                    int seq = (int)record[FlightRecorder.PID_SEQ];
+                    if (seq >= 0) {
+                        int slot = (seq & (IMU_HISTORY - 1)) * 5;
+                        if (history[slot] == seq) {
+                            qw = history[slot + 1];
+                            qx = history[slot + 2];
+                            qy = history[slot + 3];
+                            qz = history[slot + 4];
+                        } else {
+                            result.missing_imu++;
+                        }
+                    }
+
+                    // The time step the controller used, which MiniPID
+                    // holds to 0.25 to 4 nominal periods as on the phone
+                    long now = next.stamp;
+                    long dt = (long)record[FlightRecorder.PID_DT];
+                    chain.tick(qw, qx, qy, qz, setpoint.thrust, setpoint.yaw, dt, motors);
+                    result.ticks++;
+
+                    att.getTerms(terms[0], terms[1]);
+                    rate.getTerms(terms[2], terms[3], terms[4]);
+                    for (int t = 0; t < terms.length; t++) {
+                        int i = term_index[t];
+                        result.max_term_diff = Math.max(result.max_term_diff, Math.max(
+                                Math.abs(terms[t].x - record[i]), Math.max(
+                                Math.abs(terms[t].y - record[i + 1]),
+                                Math.abs(terms[t].z - record[i + 2]))));
+                    }
+
+                    // Queue for the motor node's record; the oldest is
+                    // given up on if it never recorded them
+                    if (pending_head - pending_tail == PENDING) {
+                        if (!pending_matched[(int)(pending_tail % PENDING)])
+                            result.unmatched_replayed++;
+                        pending_tail++;
+                    }
+                    int slot = (int)(pending_head % PENDING);
+                    System.arraycopy(motors, 0, pending, slot * 4, 4);
+                    // Plus two on motor 4, as the motor node adds
+                    pending[slot * 4 + 3] += 2.0;
+                    pending_seq[slot] = seq;
+                    pending_stamp[slot] = now;
+                    pending_matched[slot] = false;
+                    if (seq >= 0)
+                        pending_by_seq[seq & (PENDING - 1)] = pending_head;
+                    pending_head++;
+                    break;
+                }
+
+                case FlightRecorder.MOTORS: {
+                    // The replayed command for the same IMU sample
+                    int seq = (int)record[FlightRecorder.MOTORS_SEQ];
+                    long position = -1;
+                    if (seq >= 0) {
+                        long p = pending_by_seq[seq & (PENDING - 1)];
+                        int slot = (int)(p % PENDING);
+                        if (p >= pending_tail && p < pending_head && pending_seq[slot] == seq
+                                && !pending_matched[slot])
+                            position = p;
+                    } else {
+                        // Without one, the newest replayed before this was
+                        // recorded; older unmatched ones never arrived
+                        for (long p = pending_head - 1; p >= pending_tail; p--) {
+                            int slot = (int)(p % PENDING);
+                            if (!pending_matched[slot] && pending_stamp[slot] <= next.stamp) {
+                                position = p;
+                                break;
+                            }
+                        }
+                        if (position >= 0) {
+                            for (; pending_tail < position; pending_tail++) {
+                                if (!pending_matched[(int)(pending_tail % PENDING)])
+                                    result.unmatched_replayed++;
+                            }
+                            result.compared_by_time++;
+                        }
+                    }
+                    if (position < 0) {
+                        result.unmatched_recorded++;
+                        break;
+                    }
+
+                    int slot = (int)(position % PENDING);
+                    pending_matched[slot] = true;
+                    int p = slot * 4;
+                    double worst = 0;
+                    for (int m = 0; m < 4; m++) {
+                        double diff = Math.abs(pending[p + m] - record[FlightRecorder.MOTORS_1 + m]);
+                        result.sum_sq_motor_diff += diff * diff;
+                        worst = Math.max(worst, diff);
+                    }
+                    result.max_motor_diff = Math.max(result.max_motor_diff, worst);
+                    if (worst > tolerance)
+                        result.mismatches++;
+                    result.compared++;
+                    break;
+                }
+                }
+
+                next.advance();
+            }
+
+            for (long p = pending_tail; p < pending_head; p++) {
+                if (!pending_matched[(int)(p % PENDING)])
+                    result.unmatched_replayed++;
+            }
+        } finally {
+            for (Stream stream : streams) {
+                if (stream != null)
+                    stream.reader.close();
+            }
+        }
+
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static ControllerGains toGains(double[] record)
+    {
+        return new ControllerGains(vect(record, FlightRecorder.GAINS_ROLL_RATE),
+                vect(record, FlightRecorder.GAINS_PITCH_RATE), vect(record, FlightRecorder.GAINS_YAW_RATE),
+                vect(record, FlightRecorder.GAINS_ROLL_ATT), vect(record, FlightRecorder.GAINS_PITCH_ATT),
+                record[FlightRecorder.GAINS_RESET] != 0);
+    }
+
+    private static Vect3F vect(double[] record, int index)
+    {
+        return new Vect3F(record[index], record[index + 1], record[index + 2]);
+    }
+
+    private static double[] parseGains(String list)
+    {
+        String[] fields = list.split(",");
+        if (fields.length != 15)
+            throw new IllegalArgumentException("Expected 15 gains, got " + fields.length);
+        double[] gains = new double[15];
+        for (int i = 0; i < 15; i++)
+            gains[i] = Double.parseDouble(fields[i]);
+        return gains;
+    }
+
+    // Cursor over the records of one type, with the current record's stamp
+    private static class Stream
+    {
+        final int type;
+        final FlightLogReader reader;
+        final double[] record;
+        long stamp;
+        boolean more;
+
+        Stream(File log, int type) throws IOException
+        {
+            this.type = type;
+            reader = new FlightLogReader(log, type);
+            record = new double[Math.max(reader.getMaxWidth(), FlightRecorder.GAINS_WIDTH)];
+            advance();
+        }
+
+        void advance() throws IOException
+        {
+            more = reader.next(record);
+            if (more)
+                stamp = RecordStamps.get(record, FlightRecorder.STAMP);
+        }
+    }
+
+    // Comparison of one replayed log with its recording
+    public static class Result
+    {
+        public long ticks;
+        public long compared;
+        public long compared_by_time;       // recorded without an IMU sample
+        public long mismatches;
+        public long unmatched_replayed;     // no recorded command
+        public long unmatched_recorded;     // no replayed command
+        public long missing_imu;
+        public double max_motor_diff;
+        public double sum_sq_motor_diff;
+        public double max_term_diff;
+        public long nanos;
+    }
+}
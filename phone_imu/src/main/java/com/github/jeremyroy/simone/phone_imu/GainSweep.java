@@ -0,0 +1,297 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Batch tuning of the attitude and rate controller gains off the phone.
+//
+// Each candidate set of gains flies a roll step and a pitch step through the
+// real ControlChain (attitude controller, rate controller and quad X mixer)
+// against a QuadSim plant, and is scored on the step responses:
+//
+//     score = rise + settling + 2 * overshoot + 5 * saturation
+//
+// with rise and settling times in seconds, overshoot as a fraction of the
+// step and saturation as the fraction of ticks with a motor at 0 or 100%.
+// Lower is better; candidates that diverge are dropped. Roll and pitch use
+// the same gains, and the yaw rate gains stay at the flight controller's
+// defaults.
+//
+// Candidates are split into chunks run on a pool with one thread per core.
+// The ranked table is written as CSV with columns named after the
+// update_pids request fields, so a row can be sent to the phone as is.
+//
+// Usage: GainSweep random [candidates] [seed] [threads] [csv file]
+//        GainSweep grid [steps per gain] [threads] [csv file]
+public class GainSweep
+{
+    // Gain ranges searched: attitude P, I, D then rate P, I, D. The PIDs
+    // integrate and differentiate per tick, so at 50 Hz D gains are large
+    // and I gains small compared with per-second figures. The best scores
+    // lie well inside these; keep it so when changing the plant or score,
+    // as a best candidate on a bound means the optimum is beyond it.
+    private static final double[] LOW = { 0.0, 0.0, 0.0, 0.0, 0.0, 0.0 };
+    private static final double[] HIGH = { 30.0, 1.0, 240.0, 6.0, 1.0, 20.0 };
+
+    // Flight controller defaults
+    private static final Vect3F YAW_RATE = new Vect3F(2.5, 0.0, 0.0);
+
+    private static final double STEP = 0.2;          // rad
+    private static final double DURATION = 3.0;      // s per step
+    private static final int CONTROL_RATE = 50;      // Hz, as PhoneImu publishes
+    private static final int SUBSTEPS = 20;          // plant steps per control tick
+    private static final double HOVER = 50.0;        // % thrust
+    private static final double SETTLED = 0.05;      // of the step
+    private static final double DIVERGED = 1.5;      // rad
+
+    private static final int CHUNK = 64;
+
+    // Most candidates a grid may have, 10 steps per gain, a few minutes on
+    // one desktop core
+    private static final long MAX_GRID = 1000000;
+
+    public static void main(String[] args) throws Exception
+    {
+        boolean grid = args.length > 0 && args[0].equals("grid");
+        List<double[]> candidates;
+        int threads;
+        String csv;
+        if (grid) {
+            int steps = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+            threads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+            csv = args.length > 3 ? args[3] : null;
+            candidates = gridCandidates(steps);
+        } else {
+            int count = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+            long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+            threads = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+            csv = args.length > 4 ? args[4] : null;
+            candidates = randomCandidates(count, new Random(seed));
+        }
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        List<Result> results = sweep(candidates, threads);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Collections.sort(results, new Comparator<Result>() {
+            @Override
+            public int compare(Result a, Result b) {
+                return Double.compare(a.score, b.score);
+            }
+        });
+
+        System.out.printf("%d candidates on %d threads in %.2f s (%.0f simulations/s), %d diverged%n",
+                candidates.size(), threads, elapsed, 2 * candidates.size() / elapsed,
+                candidates.size() - results.size());
+
+        Writer out = csv != null ? new FileWriter(csv) : null;
+        try {
+            if (out != null)
+                writeTable(new PrintWriter(out), results, results.size());
+            else
+                writeTable(new PrintWriter(System.out), results, Math.min(results.size(), 20));
+        } finally {
+            if (out != null)
+                out.close();
+        }
+    }
+
+    // Scores every candidate on a pool of the given size. Diverged
+    // candidates are left out.
+    public static List<Result> sweep(final List<double[]> candidates, int threads) throws Exception
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<Result>>> chunks = new ArrayList<Future<List<Result>>>();
+            for (int first = 0; first < candidates.size(); first += CHUNK) {
+                final int from = first;
+                final int to = Math.min(first + CHUNK, candidates.size());
+                chunks.add(pool.submit(new Callable<List<Result>>() {
+                    @Override
+                    public List<Result> call() {
+                        List<Result> results = new ArrayList<Result>(to - from);
+                        for (int i = from; i < to; i++) {
+                            Result result = evaluate(candidates.get(i));
+                            if (result != null)
+                                results.add(result);
+                        }
+                        return results;
+                    }
+                }));
+            }
+
+            List<Result> results = new ArrayList<Result>(candidates.size());
+            for (Future<List<Result>> chunk : chunks)
+                results.addAll(chunk.get());
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Flies a roll step and a pitch step with gains, or returns null if
+    // either diverges
+    public static Result evaluate(double[] gains)
+    {
+        Result result = new Result(gains);
+        if (!fly(gains, true, result) || !fly(gains, false, result))
+            return null;
+
+        result.rise /= 2;
+        result.overshoot /= 2;
+        result.settling /= 2;
+        result.saturation /= 2;
+        result.score = result.rise + result.settling + 2 * result.overshoot + 5 * result.saturation;
+        return result;
+    }
+
+    // Adds one step response's metrics to result
+    private static boolean fly(double[] gains, boolean roll, Result result)
+    {
+        Vect3F att = new Vect3F(gains[0], gains[1], gains[2]);
+        Vect3F rate = new Vect3F(gains[3], gains[4], gains[5]);
+        ControlChain chain = new ControlChain(new AttitudeController(att, att),
+                new RateController(rate, rate, YAW_RATE));
+        QuadSim sim = new QuadSim(chain.getMixer());
+        sim.reset(0.0, 0.0, HOVER);
+
+        SetpointMailbox.Setpoint setpoint = new SetpointMailbox.Setpoint();
+        setpoint.thrust = HOVER;
+        if (roll)
+            setpoint.roll = STEP;
+        else
+            setpoint.pitch = STEP;
+        chain.setSetpoint(setpoint);
+
+        Quat q = new Quat();
+        double[] motors = new double[chain.getMixer().getMotorCount()];
+        double dt = 1.0 / CONTROL_RATE;
+        int ticks = (int)(DURATION * CONTROL_RATE);
+
+        double rise_start = -1, rise_end = -1, peak = 0, settled = 0;
+        int saturated = 0;
+        for (int tick = 0; tick < ticks; tick++) {
+            sim.getImuQuat(q);
+            chain.tick(q.w, q.x, q.y, q.z, HOVER, 0.0, motors);
+            for (int m = 0; m < motors.length; m++) {
+                if (motors[m] <= Mixer.MIN_OUTPUT || motors[m] >= Mixer.MAX_OUTPUT) {
+                    saturated++;
+                    break;
+                }
+            }
+            for (int s = 0; s < SUBSTEPS; s++)
+                sim.step(motors, dt / SUBSTEPS);
+
+            double angle = roll ? sim.getRoll() : sim.getPitch();
+            if (Double.isNaN(angle) || Math.abs(angle) > DIVERGED)
+                return false;
+
+            double t = (tick + 1) * dt;
+            double fraction = angle / STEP;
+            if (rise_start < 0 && fraction >= 0.1)
+                rise_start = t;
+            if (rise_end < 0 && fraction >= 0.9)
+                rise_end = t;
+            peak = Math.max(peak, fraction);
+            if (Math.abs(1 - fraction) > SETTLED)
+                settled = t;
+        }
+
+        result.rise += rise_end >= 0 ? rise_end - rise_start : DURATION;
+        result.overshoot += Math.max(0.0, peak - 1);
+        result.settling += settled;
+        result.saturation += (double)saturated / ticks;
+        return true;
+    }
+
+    public static List<double[]> randomCandidates(int count, Random random)
+    {
+        List<double[]> candidates = new ArrayList<double[]>(count);
+        for (int i = 0; i < count; i++) {
+            double[] gains = new double[LOW.length];
+            for (int g = 0; g < gains.length; g++)
+                gains[g] = LOW[g] + random.nextDouble() * (HIGH[g] - LOW[g]);
+            candidates.add(gains);
+        }
+        return candidates;
+    }
+
+    // Every combination of steps evenly spaced values per gain, ends included
+    public static List<double[]> gridCandidates(int steps)
+    {
+        if (steps < 1)
+            throw new IllegalArgumentException("Steps per gain must be positive");
+
+        int dims = LOW.length;
+        long count = 1;
+        for (int g = 0; g < dims && count <= MAX_GRID; g++)
+            count *= steps;
+        if (count > MAX_GRID)
+            throw new IllegalArgumentException(steps + " steps per gain make more than " + MAX_GRID
+                    + " candidates; use fewer steps or a random sweep");
+
+        List<double[]> candidates = new ArrayList<double[]>((int)count);
+        int[] index = new int[dims];
+        for (long n = 0; n < count; n++) {
+            double[] gains = new double[dims];
+            for (int g = 0; g < dims; g++)
+                gains[g] = steps > 1 ? LOW[g] + index[g] * (HIGH[g] - LOW[g]) / (steps - 1) : LOW[g];
+            candidates.add(gains);
+
+            for (int g = 0; g < dims && ++index[g] == steps; g++)
+                index[g] = 0;
+        }
+        return candidates;
+    }
+
+    private static void writeTable(PrintWriter out, List<Result> results, int rows)
+    {
+        out.print("rank,score,rise_s,overshoot_pct,settling_s,saturation_pct");
+        for (String axis : new String[] { "roll_rate", "pitch_rate", "yaw_rate", "roll_att", "pitch_att" })
+            out.print("," + axis + "_kp," + axis + "_ki," + axis + "_kd");
+        out.println();
+
+        for (int i = 0; i < rows; i++) {
+            Result r = results.get(i);
+            double[] g = r.gains;
+            out.print(String.format(Locale.US, "%d,%.4f,%.3f,%.1f,%.3f,%.1f", i + 1, r.score,
+                    r.rise, 100 * r.overshoot, r.settling, 100 * r.saturation));
+            out.print(String.format(Locale.US, ",%.4f,%.4f,%.4f", g[3], g[4], g[5]));
+            out.print(String.format(Locale.US, ",%.4f,%.4f,%.4f", g[3], g[4], g[5]));
+            out.print(String.format(Locale.US, ",%.4f,%.4f,%.4f", YAW_RATE.x, YAW_RATE.y, YAW_RATE.z));
+            out.print(String.format(Locale.US, ",%.4f,%.4f,%.4f", g[0], g[1], g[2]));
+            out.print(String.format(Locale.US, ",%.4f,%.4f,%.4f", g[0], g[1], g[2]));
+            out.println();
+        }
+        out.flush();
+    }
+
+    // Metrics for one candidate, averaged over its roll and pitch steps
+    public static class Result
+    {
+        public final double[] gains;
+        public double score;
+        public double rise;
+        public double overshoot;
+        public double settling;
+        public double saturation;
+
+        Result(double[] gains)
+        {
+            this.gains = gains;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ros.concurrent.CancellableLoop;
+import org.ros.message.MessageFactory;
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Publisher;
+
+import std_msgs.Float64MultiArray;
+import std_msgs.MultiArrayDimension;
+
+// Ships every raw sensor event to remote consumers in batches, so the full
+// hardware rate can be recorded off the phone without paying for a whole
+// sensor_msgs/Imu per reading.
+//
+// The sensor thread copies each event into a preallocated SpscRing without
+// allocating or blocking; a full ring drops the event and counts it. A loop
+// on the node gathers up to batch_size events, or whatever has arrived
+// within the flush deadline of the first, into a std_msgs/Float64MultiArray
+// of batch_size x WIDTH values, one row per event:
+//
+//     stamp, sensor, x, y, z, w
+//
+// stamp is the event time in seconds since the epoch (sub-microsecond
+// resolution in a double), sensor the android.hardware.Sensor type and x, y,
+// z, w the event's first four values, padded with zeros.
+class ImuBatcher
+{
+    static final int STAMP = 0;
+    static final int SENSOR = 1;
+    static final int X = 2;
+    static final int Y = 3;
+    static final int Z = 4;
+    static final int W = 5;
+    static final int WIDTH = 6;
+
+    private static final int MIN_CAPACITY = 256;
+
+    private final int m_batch_size;
+    private final long m_flush_ns;
+    private final SpscRing m_ring;
+
+    // Producer's record, and the consumer's record and batch being gathered
+    private final double[] m_record = new double[WIDTH];
+    private final double[] m_row = new double[WIDTH];
+    private final double[] m_batch;
+
+    private final AtomicLong m_batches = new AtomicLong();
+
+    public ImuBatcher(int batch_size, long flush_deadline_ms)
+    {
+        if (batch_size <= 0)
+            throw new IllegalArgumentException("Batch size must be positive");
+
+        m_batch_size = batch_size;
+        m_flush_ns = flush_deadline_ms * 1000000L;
+        m_ring = new SpscRing(Math.max(MIN_CAPACITY, 4 * batch_size), WIDTH);
+        m_batch = new double[batch_size * WIDTH];
+    }
+
+    public void addTo(DiagnosticsPublisher diagnostics, String prefix)
+    {
+        diagnostics.addCounter(prefix + "batches", m_batches);
+        diagnostics.addCounter(prefix + "dropped events", m_ring.getDropped());
+    }
+
+    // Sensor thread: queues one event stamped stamp_ns since the epoch
+    public void add(long stamp_ns, int sensor, float[] values)
+    {
+        double[] record = m_record;
+        record[STAMP] = stamp_ns * 1e-9;
+        record[SENSOR] = sensor;
+        for (int i = 0; i < 4; i++)
+            record[X + i] = i < values.length ? values[i] : 0.0;
+        m_ring.offer(record);
+    }
+
+    public void start(ConnectedNode connectedNode, String topic)
+    {
+        final Publisher<Float64MultiArray> publisher =
+                connectedNode.newPublisher(topic, Float64MultiArray._TYPE);
+        final MessageFactory factory = connectedNode.getTopicMessageFactory();
+
+        connectedNode.executeCancellableLoop(new CancellableLoop() {
+            protected void loop() throws InterruptedException {
+                int count = gather();
+
+                Float64MultiArray array = publisher.newMessage();
+                List<MultiArrayDimension> dims = new ArrayList<MultiArrayDimension>(2);
+                dims.add(dimension(factory, "events", count, count * WIDTH));
+                dims.add(dimension(factory, "stamp,sensor,x,y,z,w", WIDTH, WIDTH));
+                array.getLayout().setDim(dims);
+                array.getLayout().setDataOffset(0);
+
+                double[] data = new double[count * WIDTH];
+                System.arraycopy(m_batch, 0, data, 0, data.length);
+                array.setData(data);
+
+                publisher.publish(array);
+                m_batches.incrementAndGet();
+            }
+        });
+    }
+
+    // Waits for an event, then gathers events into m_batch until it is full
+    // or the flush deadline passes. Returns the number gathered.
+    private int gather() throws InterruptedException
+    {
+        m_ring.take(m_row);
+        System.arraycopy(m_row, 0, m_batch, 0, WIDTH);
+        int count = 1;
+
+        long deadline = System.nanoTime() + m_flush_ns;
+        while (count < m_batch_size) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !m_ring.poll(m_row, remaining))
+                break;
+            System.arraycopy(m_row, 0, m_batch, count * WIDTH, WIDTH);
+            count++;
+        }
+        return count;
+    }
+
+    private static MultiArrayDimension dimension(MessageFactory factory, String label, int size, int stride)
+    {
+        MultiArrayDimension dim = factory.newFromType(MultiArrayDimension._TYPE);
+        dim.setLabel(label);
+        dim.setSize(size);
+        dim.setStride(stride);
+        return dim;
+    }
+}
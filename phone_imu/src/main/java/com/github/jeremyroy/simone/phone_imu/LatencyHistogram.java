@@ -0,0 +1,106 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed memory latency histogram, laid out like an HDR histogram: values
+// below 2^SUB_BITS nanoseconds get their own bucket, and every power of two
+// above that is split into 2^(SUB_BITS - 1) linear buckets, which keeps the
+// relative error under ~3% from nanoseconds to minutes.
+//
+// record() is allocation-free and safe to call from any thread. A reporting
+// thread periodically drains the counts into a Summary, which resets the
+// histogram for the next interval without losing concurrent samples.
+class LatencyHistogram
+{
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+
+    // Anything above ~18 minutes is recorded as the maximum
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    static final int BUCKETS = SUB_COUNT + (MAX_BITS - SUB_BITS) * HALF_COUNT;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong m_max = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+        else if (nanos > MAX_VALUE)
+            nanos = MAX_VALUE;
+
+        m_counts.incrementAndGet(indexOf(nanos));
+
+        long max = m_max.get();
+        while (nanos > max && !m_max.compareAndSet(max, nanos))
+            max = m_max.get();
+    }
+
+    // Moves everything recorded since the last drain into summary
+    public void drain(Summary summary)
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = m_counts.getAndSet(i, 0);
+            summary.m_counts[i] = c;
+            count += c;
+        }
+
+        summary.count = count;
+        summary.max = m_max.getAndSet(0);
+        summary.p50 = summary.valueAt(0.50);
+        summary.p90 = summary.valueAt(0.90);
+        summary.p99 = summary.valueAt(0.99);
+    }
+
+    static int indexOf(long value)
+    {
+        if (value < SUB_COUNT)
+            return (int)value;
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int)((value >> shift) - HALF_COUNT);
+    }
+
+    // Highest value that falls in the bucket at index
+    static long valueOf(int index)
+    {
+        if (index < SUB_COUNT)
+            return index;
+
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    // Percentiles of one reporting interval, in nanoseconds
+    public static class Summary
+    {
+        public long count;
+        public long p50;
+        public long p90;
+        public long p99;
+        public long max;
+
+        private final long[] m_counts = new long[BUCKETS];
+
+        private long valueAt(double fraction)
+        {
+            if (count == 0)
+                return 0;
+
+            long rank = (long)Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += m_counts[i];
+                if (seen >= rank)
+                    return Math.min(valueOf(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// In-process fast path between PhoneImu, FlightController and MotorNode when
+// they run in the same process. IMU samples and motor commands are handed
+// over through SpscRings as flat records of doubles instead of being
+// serialized through the phone_imu and motor_ctrl topics and back. The
+// nodes keep publishing those topics for remote observers, but stop
+// listening to them.
+//
+// Timestamps are kept with RecordStamps. The IMU stamp is the sample's
+// header stamp, the gyroscope event time in event-driven mode; the others
+// are System.nanoTime() values.
+class LocalTransport
+{
+    // IMU sample record
+    static final int IMU_SEQ = 0;
+    static final int IMU_STAMP = 1;
+    static final int IMU_QW = 2;
+    static final int IMU_QX = 3;
+    static final int IMU_QY = 4;
+    static final int IMU_QZ = 5;
+    static final int IMU_GX = 6;
+    static final int IMU_GY = 7;
+    static final int IMU_GZ = 8;
+    static final int IMU_AX = 9;
+    static final int IMU_AY = 10;
+    static final int IMU_AZ = 11;
+    static final int IMU_WIDTH = 12;
+
+    // Motor command record, thrusts in percent
+    static final int MOTOR_STAMP = 0;
+    static final int MOTOR_1 = 1;
+    static final int MOTOR_2 = 2;
+    static final int MOTOR_3 = 3;
+    static final int MOTOR_4 = 4;
+    static final int MOTOR_SEQ = 5;     // IMU sample the command came from, or -1
+    static final int MOTOR_WIDTH = 6;
+
+    private static final int CAPACITY = 64;
+
+    private final SpscRing m_imu = new SpscRing(CAPACITY, IMU_WIDTH);
+    private final SpscRing m_motors = new SpscRing(CAPACITY, MOTOR_WIDTH);
+
+    // PhoneImu to FlightController
+    public SpscRing getImuChannel()
+    {
+        return m_imu;
+    }
+
+    // FlightController to MotorNode
+    public SpscRing getMotorChannel()
+    {
+        return m_motors;
+    }
+
+    public void addTo(DiagnosticsPublisher diagnostics, String prefix)
+    {
+        diagnostics.addCounter(prefix + "imu drops", m_imu.getDropped());
+        diagnostics.addCounter(prefix + "motor drops", m_motors.getDropped());
+    }
+
+    // Thread handing every record of a channel to onRecord, in order
+    public static abstract class Receiver implements Runnable
+    {
+        private final SpscRing m_channel;
+        private final double[] m_record;
+        private Thread m_thread;
+
+        protected Receiver(SpscRing channel)
+        {
+            m_channel = channel;
+            m_record = new double[channel.getWidth()];
+        }
+
+        protected abstract void onRecord(double[] record);
+
+        public void start(String name)
+        {
+            m_thread = new Thread(this, name);
+            m_thread.setPriority(Thread.MAX_PRIORITY);
+            m_thread.start();
+        }
+
+        public void stop()
+        {
+            m_thread.interrupt();
+            try {
+                m_thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (true) {
+                    m_channel.take(m_record);
+                    onRecord(m_record);
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }
+    }
+}
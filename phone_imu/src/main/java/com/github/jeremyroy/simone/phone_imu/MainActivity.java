@@ -4,8 +4,14 @@ import android.hardware.SensorManager;
 import android.media.AudioManager;
 import android.content.Context;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.ros.android.RosActivity;
 import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMain;
 import org.ros.node.NodeMainExecutor;
 
 /**
@@ -13,6 +19,67 @@ import org.ros.node.NodeMainExecutor;
  */
 public class MainActivity extends RosActivity {
 
+    // Publish IMU samples as gyroscope readings arrive instead of polling
+    // the latest readings every sensor period
+    private static final boolean EVENT_DRIVEN_IMU = false;
+
+    // Fuse the raw gyroscope and accelerometer into the orientation on the
+    // phone instead of using the rotation vector; implies EVENT_DRIVEN_IMU.
+    // The IMU then publishes at the gyroscope rate rather than the 50 Hz the
+    // gains were tuned at, which would rescale the I and D terms of an IMU
+    // driven controller, so it also turns on TIME_STEP_AWARE_PID, timed by
+    // the gyroscope event stamps
+    private static final boolean ONBOARD_FUSION = false;
+
+    // Also publish every sensor event on phone_imu/batch, this many per
+    // message or whatever arrived within the deadline; 0 disables
+    private static final int IMU_BATCH_SIZE = 0;
+    private static final long IMU_BATCH_DEADLINE_MS = 100;
+
+    // Rate of the flight controller's control thread; 0 runs the control
+    // law from the IMU callback instead
+    private static final int CONTROL_RATE_HZ = 0;
+
+    // Attitude error from the IMU quaternion instead of Euler angles. Only
+    // the onboard fusion publishes a quaternion; the rotation vector path
+    // publishes Euler angles in its place, so this turns on ONBOARD_FUSION
+    private static final boolean QUATERNION_ATTITUDE = false;
+
+    // Scale PID integral and derivative terms to the measured tick interval,
+    // from the IMU stamps or the control thread's clock, held to 0.25 to 4
+    // nominal periods; always on with ONBOARD_FUSION or QUATERNION_ATTITUDE
+    private static final boolean TIME_STEP_AWARE_PID = false;
+
+    // Rate of the averaged IMU, motor and controller telemetry topics for the
+    // ground station, independent of the control rate; 0 disables
+    private static final int TELEMETRY_RATE_HZ = 10;
+
+    // Size of the onboard flight log, written to the app's external files
+    // directory; 0 disables recording
+    private static final int FLIGHT_RECORDER_MB = 0;
+
+    // Convert the flight logs of earlier runs to the indexed columnar format
+    // for FlightLogQuery, in the background at low priority
+    private static final boolean CONVERT_FLIGHT_LOGS = false;
+    private static final int CONVERT_STEP_RECORDS = 4096;
+
+    // Hand IMU samples and motor commands directly between the nodes in this
+    // process instead of through their topics, which are still published
+    private static final boolean LOCAL_FAST_PATH = false;
+
+    // Write the motor PWM in small paced chunks instead of whole AudioTrack
+    // buffers, for lower actuation latency (see Motors.setStreaming)
+    private static final boolean STREAMING_MOTOR_OUTPUT = false;
+
+    // Trace the latency of every stage from the sensor callback to the
+    // motors, published with the motor node's diagnostics. Over ROS this
+    // relies on the IMU header seq arriving unchanged (see PipelineTrace)
+    private static final boolean PIPELINE_TRACE = false;
+
+    private NodeMainExecutor mNodeMainExecutor;
+    private final List<NodeMain> mNodes = new ArrayList<NodeMain>();
+    private FlightRecorder mRecorder;
+
     public MainActivity() {
         // The RosActivity constructor configures the notification title and ticker
         // messages.
@@ -23,9 +90,49 @@ public class MainActivity extends RosActivity {
     protected void init(NodeMainExecutor nodeMainExecutor) {
         SensorManager sensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
         AudioManager audioManager = (AudioManager)getSystemService(Context.AUDIO_SERVICE);
+        boolean onboardFusion = ONBOARD_FUSION || QUATERNION_ATTITUDE;
         PhoneImu imu = new PhoneImu(sensorManager);
+        imu.setEventDriven(EVENT_DRIVEN_IMU);
+        imu.setOnboardFusion(onboardFusion);
+        imu.setBatching(IMU_BATCH_SIZE, IMU_BATCH_DEADLINE_MS);
+        imu.setTelemetryRate(TELEMETRY_RATE_HZ);
         MotorNode motor = new MotorNode(audioManager);
+        motor.setStreaming(STREAMING_MOTOR_OUTPUT);
         FlightController controller = new FlightController();
+        controller.setControlRate(CONTROL_RATE_HZ);
+        controller.setQuaternionAttitude(QUATERNION_ATTITUDE);
+        controller.setTimeStepAware(TIME_STEP_AWARE_PID || onboardFusion);
+        controller.setTelemetryRate(TELEMETRY_RATE_HZ);
+
+        if (PIPELINE_TRACE) {
+            PipelineTrace trace = new PipelineTrace();
+            imu.setPipelineTrace(trace);
+            controller.setPipelineTrace(trace);
+            motor.setPipelineTrace(trace);
+        }
+
+        if (LOCAL_FAST_PATH) {
+            LocalTransport transport = new LocalTransport();
+            imu.setLocalTransport(transport);
+            controller.setLocalTransport(transport);
+            motor.setLocalTransport(transport);
+        }
+
+        if (CONVERT_FLIGHT_LOGS)
+            convertFlightLogs(getExternalFilesDir(null));
+
+        if (FLIGHT_RECORDER_MB > 0) {
+            File log = new File(getExternalFilesDir(null), "flight-" + System.currentTimeMillis() + ".fdr");
+            mRecorder = new FlightRecorder(log, FLIGHT_RECORDER_MB * 1024L * 1024L);
+            imu.setFlightRecorder(mRecorder);
+            controller.setFlightRecorder(mRecorder);
+            motor.setFlightRecorder(mRecorder);
+            try {
+                mRecorder.start();
+            } catch (IOException e) {
+                throw new RuntimeException("Flight recorder failed to start", e);
+            }
+        }
 
         // At this point, the user has already been prompted to either enter the URI
         // of a master to use or to start a master locally.
@@ -37,5 +144,74 @@ public class MainActivity extends RosActivity {
         nodeMainExecutor.execute(imu, nodeConfiguration);
         nodeMainExecutor.execute(motor, nodeConfiguration);
         nodeMainExecutor.execute(controller, nodeConfiguration);
+
+        // In pipeline order, for shutting them down
+        mNodeMainExecutor = nodeMainExecutor;
+        mNodes.add(imu);
+        mNodes.add(controller);
+        mNodes.add(motor);
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Shut the nodes down first, so the flight log gets the last records
+        // they write, then flush it to storage
+        if (mRecorder != null) {
+            for (NodeMain node : mNodes)
+                mNodeMainExecutor.shutdownNodeMain(node);
+            mRecorder.stop();
+        }
+        super.onDestroy();
+    }
+
+    // Converts the flight logs in dir that have no columnar copy yet, a
+    // slice at a time on a low priority thread so flying is not held up. A
+    // log that cannot be converted is renamed to .fdr.failed, so it is kept
+    // but not tried again on every start.
+    private static void convertFlightLogs(File dir) {
+        final List<File> logs = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".fdr") && !columnarLog(file).exists())
+                    logs.add(file);
+            }
+        }
+        if (logs.isEmpty())
+            return;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (File log : logs) {
+                    // Nothing may escape this thread, or it takes the app down
+                    try {
+                        convertFlightLog(log);
+                    } catch (IOException e) {
+                        log.renameTo(new File(log.getPath() + ".failed"));
+                    } catch (RuntimeException e) {
+                        log.renameTo(new File(log.getPath() + ".failed"));
+                    }
+                }
+            }
+        }, "FlightLogConverter");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void convertFlightLog(File log) throws IOException {
+        FlightLogConverter converter = new FlightLogConverter(log, columnarLog(log));
+        try {
+            while (converter.step(CONVERT_STEP_RECORDS))
+                Thread.yield();
+        } finally {
+            converter.close();
+        }
+    }
+
+    private static File columnarLog(File log) {
+        String name = log.getName();
+        return new File(log.getParentFile(), name.substring(0, name.length() - 4) + ".fdc");
     }
 }
\ No newline at end of file
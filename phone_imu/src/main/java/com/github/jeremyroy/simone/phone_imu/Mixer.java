@@ -0,0 +1,176 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Turns a thrust command and roll, pitch and yaw thrust adjustments into
+// per-motor thrusts, in percent, using a mixing matrix.
+//
+// Each motor has one row of four coefficients, applied to thrust, roll,
+// pitch and yaw. The matrix is stored row-major in a flat array and applied
+// with the four terms of each row unrolled, and all four rows for quads.
+//
+// When the mix does not fit within the motor range, DESATURATE (the
+// default) keeps the difference between motors, which is what produces
+// attitude control, and moves the collective thrust instead: the whole
+// vector is shifted down from the top or up from the bottom, and if the
+// adjustments alone span more than the range they are scaled down to fit.
+// CLIP reproduces the original behaviour of clamping each motor on its own.
+class Mixer
+{
+    public enum Saturation { DESATURATE, CLIP }
+
+    public static final double MIN_OUTPUT = 0.0;
+    public static final double MAX_OUTPUT = 100.0;
+
+    private final int m_motors;
+    private final double[] m_matrix;
+    private Saturation m_saturation = Saturation.DESATURATE;
+
+    // matrix holds one {thrust, roll, pitch, yaw} row per motor
+    public Mixer(double[][] matrix)
+    {
+        if (matrix.length == 0)
+            throw new IllegalArgumentException("Mixer needs at least one motor");
+
+        m_motors = matrix.length;
+        m_matrix = new double[4 * m_motors];
+        for (int i = 0; i < m_motors; i++) {
+            if (matrix[i].length != 4)
+                throw new IllegalArgumentException("Mixer rows must have 4 coefficients");
+            System.arraycopy(matrix[i], 0, m_matrix, 4 * i, 4);
+        }
+    }
+
+    // Quad in X configuration with this vehicle's motor order and sign
+    // conventions, as previously hardcoded in the flight controller
+    public static Mixer quadX()
+    {
+        return new Mixer(new double[][] {
+            { 1.0, -1.0, -1.0, -1.0 },
+            { 1.0,  1.0, -1.0,  1.0 },
+            { 1.0,  1.0,  1.0, -1.0 },
+            { 1.0, -1.0,  1.0,  1.0 },
+        });
+    }
+
+    // Quad in + configuration, motors on the pitch and roll axes in the
+    // same order and spin directions as quadX()
+    public static Mixer quadPlus()
+    {
+        return geometry(new double[] { -90, 0, 90, 180 }, new double[] { -1, 1, -1, 1 });
+    }
+
+    // Flat hexacopter, motors 60 degrees apart with alternating spin
+    public static Mixer hexX()
+    {
+        return geometry(new double[] { -150, -90, -30, 30, 90, 150 },
+                new double[] { -1, 1, -1, 1, -1, 1 });
+    }
+
+    // Builds a matrix for motors in the roll/pitch plane. angles are in
+    // degrees from the positive roll axis towards positive pitch, which
+    // puts quadX()'s motors at -135, -45, 45 and 135. spins are the yaw
+    // coefficients, +1 or -1. Roll and pitch coefficients are scaled so the
+    // largest is 1.
+    public static Mixer geometry(double[] angles, double[] spins)
+    {
+        if (angles.length != spins.length)
+            throw new IllegalArgumentException("Need one spin direction per motor");
+
+        double[][] matrix = new double[angles.length][];
+        double largest = 0;
+        for (int i = 0; i < angles.length; i++) {
+            double a = Math.toRadians(angles[i]);
+            matrix[i] = new double[] { 1.0, Math.cos(a), Math.sin(a), spins[i] };
+            largest = Math.max(largest, Math.max(Math.abs(matrix[i][1]), Math.abs(matrix[i][2])));
+        }
+        for (int i = 0; i < angles.length; i++) {
+            // Drop rounding residue such as cos(90 degrees)
+            for (int j = 1; j <= 2; j++) {
+                double c = matrix[i][j] / largest;
+                matrix[i][j] = Math.abs(c) < 1e-12 ? 0.0 : c;
+            }
+        }
+        return new Mixer(matrix);
+    }
+
+    public int getMotorCount()
+    {
+        return m_motors;
+    }
+
+    // Coefficient applied to input (0 thrust, 1 roll, 2 pitch, 3 yaw) for
+    // the given motor
+    public double getCoefficient(int motor, int input)
+    {
+        return m_matrix[4 * motor + input];
+    }
+
+    public void setSaturation(Saturation saturation)
+    {
+        m_saturation = saturation;
+    }
+
+    public Saturation getSaturation()
+    {
+        return m_saturation;
+    }
+
+    // Writes the thrust for each motor, in percent, to out[0..motors)
+    public void mix(double thrust, double roll, double pitch, double yaw, double[] out)
+    {
+        final double[] m = m_matrix;
+
+        if (m_motors == 4) {
+            // Quads, fully unrolled
+            out[0] = m[0] * thrust + m[1] * roll + m[2] * pitch + m[3] * yaw;
+            out[1] = m[4] * thrust + m[5] * roll + m[6] * pitch + m[7] * yaw;
+            out[2] = m[8] * thrust + m[9] * roll + m[10] * pitch + m[11] * yaw;
+            out[3] = m[12] * thrust + m[13] * roll + m[14] * pitch + m[15] * yaw;
+        } else {
+            for (int i = 0, k = 0; i < m_motors; i++, k += 4)
+                out[i] = m[k] * thrust + m[k + 1] * roll + m[k + 2] * pitch + m[k + 3] * yaw;
+        }
+
+        if (m_saturation == Saturation.CLIP) {
+            for (int i = 0; i < m_motors; i++)
+                out[i] = clip(out[i]);
+            return;
+        }
+
+        double low = out[0];
+        double high = out[0];
+        for (int i = 1; i < m_motors; i++) {
+            low = Math.min(low, out[i]);
+            high = Math.max(high, out[i]);
+        }
+
+        // Everything fits
+        if (low >= MIN_OUTPUT && high <= MAX_OUTPUT)
+            return;
+
+        // Adjustments wider than the motor range: scale the vector to span
+        // exactly the range, giving up thrust to keep the attitude response.
+        // Assumes every motor has the same thrust coefficient.
+        double spread = high - low;
+        if (spread > MAX_OUTPUT - MIN_OUTPUT) {
+            double scale = (MAX_OUTPUT - MIN_OUTPUT) / spread;
+            double shift = MIN_OUTPUT - low * scale;
+            for (int i = 0; i < m_motors; i++)
+                out[i] = clip(out[i] * scale + shift);
+            return;
+        }
+
+        // Otherwise shift the collective thrust until the vector fits
+        double shift = high > MAX_OUTPUT ? MAX_OUTPUT - high : MIN_OUTPUT - low;
+        for (int i = 0; i < m_motors; i++)
+            out[i] = clip(out[i] + shift);
+    }
+
+    private static double clip(double value)
+    {
+        if (value < MIN_OUTPUT)
+            value = MIN_OUTPUT;
+        else if (value > MAX_OUTPUT)
+            value = MAX_OUTPUT;
+        return value;
+    }
+}
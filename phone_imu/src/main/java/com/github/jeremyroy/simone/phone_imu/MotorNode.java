@@ -22,17 +22,35 @@ public class MotorNode extends AbstractNodeMain
 
     private String topic_name;
     private String motor_service_name;
+    private String diagnostics_topic_name;
 
     private Motors m_motors;
 
+    // In-process fast path from the flight controller, if enabled
+    private LocalTransport m_local_transport;
+    private LocalTransport.Receiver m_local_receiver;
+
+    // Sensor to motor latency tracing, if enabled
+    private PipelineTrace m_trace;
+
+    // Duties recorded onboard, if enabled
+    private FlightRecorder m_recorder;
+    private FlightRecorder.Channel m_recorder_channel;
+    private final double[] m_recorder_record = new double[FlightRecorder.MOTORS_WIDTH];
+
     public MotorNode(AudioManager am) {
         this(am, "motor_ctrl", "enable_motors");
     }
 
     public MotorNode(AudioManager am, String topic, String motor_service) {
+        this(am, topic, motor_service, "diagnostics");
+    }
+
+    public MotorNode(AudioManager am, String topic, String motor_service, String diagnostics_topic) {
         /* Set up topic */
         this.topic_name = topic;
         this.motor_service_name = motor_service;
+        this.diagnostics_topic_name = diagnostics_topic;
 
         /* Set up the motors object */
         // Get the recommended sample rate from the phone
@@ -44,6 +62,35 @@ public class MotorNode extends AbstractNodeMain
         m_motors = new Motors(sampleRate);
     }
 
+    // Writes the PWM in small chunks paced against the audio playback
+    // position, see Motors.setStreaming. Must be called before the node is
+    // started.
+    public void setStreaming(boolean enabled) {
+        m_motors.setStreaming(enabled);
+    }
+
+    // Takes motor commands directly from a FlightController in this process
+    // instead of from the motor control topic. Must be called before the
+    // node is started.
+    public void setLocalTransport(LocalTransport transport) {
+        m_local_transport = transport;
+    }
+
+    // Matches incoming commands against the samples traced by the IMU and
+    // flight controller, and publishes the per stage latencies. Must be
+    // called before the node is started.
+    public void setPipelineTrace(PipelineTrace trace) {
+        m_trace = trace;
+    }
+
+    // Records every command's duties, as sent to the motors, and publishes
+    // the recorder's counters with this node's diagnostics. Must be called
+    // before the node and the recorder are started.
+    public void setFlightRecorder(FlightRecorder recorder) {
+        m_recorder = recorder;
+        m_recorder_channel = recorder.newChannel("motors", FlightRecorder.MOTORS, FlightRecorder.MOTORS_WIDTH);
+    }
+
     @Override
     public GraphName getDefaultNodeName() {
         return GraphName.of("simone/motor_node");
@@ -55,20 +102,52 @@ public class MotorNode extends AbstractNodeMain
         // Start motors
         m_motors.start_motors();
 
-        // Set up motor command subscriber
-        Subscriber<simone_msgs.MotorCTRL> subscriber =
-                connectedNode.newSubscriber(this.topic_name, simone_msgs.MotorCTRL._TYPE);
-        subscriber.addMessageListener(new MessageListener<simone_msgs.MotorCTRL>() {
-            @Override
-            public void onNewMessage(simone_msgs.MotorCTRL message){
-                if (m_motors.is_enabled()) {
-                    m_motors.setMotorDuty(Motors.MOTOR_1, message.getM1());
-                    m_motors.setMotorDuty(Motors.MOTOR_2, message.getM2());
-                    m_motors.setMotorDuty(Motors.MOTOR_3, message.getM3());
-                    m_motors.setMotorDuty(Motors.MOTOR_4, message.getM4() + 2.0); // Plus two to account for different ESC
+        if (m_local_transport != null) {
+            // Take motor commands straight from the flight controller, timed
+            // from when it sent them
+            m_local_receiver = new LocalTransport.Receiver(m_local_transport.getMotorChannel()) {
+                @Override
+                protected void onRecord(double[] record) {
+                    long origin = 0;
+                    int seq = (int)record[LocalTransport.MOTOR_SEQ];
+                    if (m_trace != null && seq >= 0)
+                        origin = m_trace.commandReceived(seq, System.nanoTime());
+
+                    if (m_motors.is_enabled()) {
+                        // Plus two on motor 4 to account for different ESC
+                        m_motors.setAllDuties(record[LocalTransport.MOTOR_1], record[LocalTransport.MOTOR_2],
+                                record[LocalTransport.MOTOR_3], record[LocalTransport.MOTOR_4] + 2.0,
+                                RecordStamps.get(record, LocalTransport.MOTOR_STAMP), origin);
+                    }
+                    if (m_recorder_channel != null)
+                        recordDuties(seq, record[LocalTransport.MOTOR_1], record[LocalTransport.MOTOR_2],
+                                record[LocalTransport.MOTOR_3], record[LocalTransport.MOTOR_4] + 2.0);
+                }
+            };
+            m_local_receiver.start("LocalMotors");
+        } else {
+            // Set up motor command subscriber
+            Subscriber<simone_msgs.MotorCTRL> subscriber =
+                    connectedNode.newSubscriber(this.topic_name, simone_msgs.MotorCTRL._TYPE);
+            subscriber.addMessageListener(new MessageListener<simone_msgs.MotorCTRL>() {
+                @Override
+                public void onNewMessage(simone_msgs.MotorCTRL message){
+                    long receipt = System.nanoTime();
+                    long origin = 0;
+                    if (m_trace != null)
+                        origin = m_trace.commandReceived(message.getM1(), message.getM2(),
+                                message.getM3(), message.getM4(), receipt);
+
+                    if (m_motors.is_enabled()) {
+                        // Plus two on motor 4 to account for different ESC
+                        m_motors.setAllDuties(message.getM1(), message.getM2(),
+                                message.getM3(), message.getM4() + 2.0, receipt, origin);
+                    }
+                    if (m_recorder_channel != null)
+                        recordDuties(-1, message.getM1(), message.getM2(), message.getM3(), message.getM4() + 2.0);
                 }
-            }
-        });
+            });
+        }
 
         // Set up motor command
         ServiceServer<EnableMotorsRequest, EnableMotorsResponse> server =
@@ -90,11 +169,37 @@ public class MotorNode extends AbstractNodeMain
                             }
                         });
 
+        // Publish actuation latency percentiles and output buffer health once a second
+        DiagnosticsPublisher diagnostics = new DiagnosticsPublisher("motor_node");
+        m_motors.getLatency().addTo(diagnostics, "motor_node: actuation ");
+        m_motors.getPacer().addTo(diagnostics, "motor_node: output ");
+        if (m_local_transport != null)
+            m_local_transport.addTo(diagnostics, "motor_node: local ");
+        if (m_trace != null)
+            m_trace.addTo(diagnostics, "pipeline: ");
+        if (m_recorder != null)
+            m_recorder.addTo(diagnostics, "flight recorder: ");
+        diagnostics.start(connectedNode, this.diagnostics_topic_name, 1000);
+    }
+
+    // seq is the IMU sample the command came from, or -1 if unknown
+    private void recordDuties(int seq, double duty1, double duty2, double duty3, double duty4) {
+        double[] record = m_recorder_record;
+        FlightRecorder.Channel.stamp(record, System.nanoTime());
+        record[FlightRecorder.MOTORS_1] = duty1;
+        record[FlightRecorder.MOTORS_1 + 1] = duty2;
+        record[FlightRecorder.MOTORS_1 + 2] = duty3;
+        record[FlightRecorder.MOTORS_1 + 3] = duty4;
+        record[FlightRecorder.MOTORS_ENABLED] = m_motors.is_enabled() ? 1.0 : 0.0;
+        record[FlightRecorder.MOTORS_SEQ] = seq;
+        m_recorder_channel.append(record);
     }
 
     @Override
     public void onShutdown(Node node)
     {
+        if (m_local_receiver != null)
+            m_local_receiver.stop();
         m_motors.stop_motors();
     }
 
@@ -0,0 +1,21 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.IOException;
+
+// Destination for the waveform rendered by Motors. Samples are 16 bit PCM,
+// interleaved stereo (left, right), at the sample rate passed to open().
+public interface MotorSink
+{
+    // Prepares the sink and returns how many samples Motors should render
+    // per write. Always a whole number of stereo frames.
+    int open(int sampleRate) throws IOException;
+
+    // Writes length samples starting at offset, blocking if the sink is full
+    void write(short[] samples, int offset, int length) throws IOException;
+
+    // Number of stereo frames that have actually been played (or consumed)
+    // so far. Frames written but not yet played are the sink's latency.
+    long getPlaybackPosition();
+
+    void close() throws IOException;
+}
@@ -1,8 +1,6 @@
 package com.github.jeremyroy.simone.phone_imu;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
+import java.io.IOException;
 
 // Motors API for Jeremy
 public class Motors {
@@ -11,29 +9,57 @@ public class Motors {
     public static final int MOTOR_3 = 2;
     public static final int MOTOR_4 = 3;
 
+    // Default ESC pulse range, 5-10% of a 50 Hz period
+    public static final double DEFAULT_MIN_PULSE_US = 1000;
+    public static final double DEFAULT_MAX_PULSE_US = 2000;
+
+    // Frame rate and timestamps published along with the pulse widths
+    static final int FRAME_RATE = 4;
+    static final int STAMP_RECEIPT = 5;
+    static final int STAMP_WRITE = 6;
+    static final int STAMP_ORIGIN = 7;
+
     private Audio audio = null;
+    private PwmSynth synth = null;
+    private MotorSink sink = null;
+
+    // Pulse widths, published to the audio thread as one snapshot
+    private final SeqLock duties = new SeqLock(8);
+    private final ActuationLatency latency = new ActuationLatency();
+    private final StreamPacer pacer;
 
-    private double duty0 = 0;
-    private double duty1 = 0;
-    private double duty2 = 0;
-    private double duty3 = 0;
     private int sampleRate;
+    private int frameRate;
 
-    // Parameters for mapping motor duty cycles
-    private int upper_bound = 10;
-    private int lower_bound = 5;
-    private int resolution = 2; //Number of decimal places to keep for duty cycle, which is stored as a percent
+    // Parameters for mapping motor duty cycles onto ESC pulse widths
+    private double min_pulse_us = DEFAULT_MIN_PULSE_US;
+    private double max_pulse_us = DEFAULT_MAX_PULSE_US;
 
-    private boolean enabled;
+    // Last commanded duty cycles, in percent
+    private final double[] commanded = new double[4];
+
+    private volatile boolean enabled;
+    private volatile boolean streaming = false;
 
     public Motors(int sampleRate) {
+        this(sampleRate, new AudioTrackSink());
+    }
+
+    public Motors(int sampleRate, MotorSink sink) {
+        this(sampleRate, PwmSynth.DEFAULT_FREQ, sink);
+    }
+
+    public Motors(int sampleRate, int frameRate, MotorSink sink) {
         this.sampleRate = sampleRate;
+        this.sink = sink;
+        synth = new PwmSynth(sampleRate, duties, latency);
+        pacer = new StreamPacer(sampleRate);
         audio = new Audio();
 
-        setMotorDuty(MOTOR_1, 0);
-        setMotorDuty(MOTOR_2, 0);
-        setMotorDuty(MOTOR_3, 0);
-        setMotorDuty(MOTOR_4, 0);
+        checkFraming(frameRate, min_pulse_us, max_pulse_us);
+        this.frameRate = frameRate;
+
+        publishDuties(0, 0, 0, 0, 0);
 
         enabled = false;
     }
@@ -51,31 +77,150 @@ public class Motors {
         return val;
     }
 
-    // Expects duty to be an int and passed as a percent
-    public void setMotorDuty(int motor, double duty) {
+    // Maps a 0-100% duty cycle onto the ESC pulse range, in microseconds
+    private double mapDuty(double duty) {
         // Fix if duty if out of range
         duty = truncate(duty, 0.0, 100.0);
 
-        // Map a 0-100% duty cycle range to 2-8%
-        float mapped_duty = (float)(duty / 100.0 * (upper_bound - lower_bound) + lower_bound);
-        mapped_duty = (float)(Math.floor(mapped_duty * Math.pow(10, resolution)) / Math.pow(10, resolution));
-
-        switch (motor) {
-            case MOTOR_1:
-                duty0 = mapped_duty;
-                break;
-            case MOTOR_2:
-                duty1 = mapped_duty;
-                break;
-            case MOTOR_3:
-                duty2 = mapped_duty;
-                break;
-            case MOTOR_4:
-                duty3 = mapped_duty;
-                break;
-            default:
-                throw new IndexOutOfBoundsException("Motor number must be between 0-3");
-        }
+        return duty / 100.0 * (max_pulse_us - min_pulse_us) + min_pulse_us;
+    }
+
+    private void checkFraming(int frameRate, double min_pulse_us, double max_pulse_us) {
+        if (min_pulse_us < 0 || max_pulse_us < min_pulse_us)
+            throw new IllegalArgumentException("Invalid pulse range");
+        if (frameRate < PwmSynth.MIN_FREQ || frameRate > PwmSynth.maxFreq(sampleRate, max_pulse_us))
+            throw new IllegalArgumentException("Frame rate must be between " + PwmSynth.MIN_FREQ
+                    + " and " + PwmSynth.maxFreq(sampleRate, max_pulse_us) + " Hz for this pulse range");
+    }
+
+    // Expects duty to be an int and passed as a percent
+    public synchronized void setMotorDuty(int motor, double duty) {
+        if (motor < MOTOR_1 || motor > MOTOR_4)
+            throw new IndexOutOfBoundsException("Motor number must be between 0-3");
+
+        commanded[motor] = duty;
+        publishDuties(commanded[MOTOR_1], commanded[MOTOR_2], commanded[MOTOR_3], commanded[MOTOR_4],
+                System.nanoTime());
+    }
+
+    // Sets all four motors at once. The audio thread picks up either all of
+    // the new values or none of them at its next PWM period.
+    public void setAllDuties(double duty1, double duty2, double duty3, double duty4) {
+        setAllDuties(duty1, duty2, duty3, duty4, System.nanoTime());
+    }
+
+    // As above, where receiptNanos is the System.nanoTime() at which the
+    // command was received, for actuation latency measurements
+    public void setAllDuties(double duty1, double duty2, double duty3, double duty4,
+                             long receiptNanos) {
+        setAllDuties(duty1, duty2, duty3, duty4, receiptNanos, 0);
+    }
+
+    // As above, where originNanos is the System.nanoTime() at which the
+    // sensor sample the command was computed from arrived, or 0 if unknown
+    public void setAllDuties(double duty1, double duty2, double duty3, double duty4,
+                             long receiptNanos, long originNanos) {
+        long write = publishDuties(duty1, duty2, duty3, duty4, receiptNanos, originNanos);
+        latency.getReceiptToWrite().record(write - receiptNanos);
+    }
+
+    // PWM frames per second. Higher rates update the motors more often, up
+    // to getMaxFrameRate(), which depends on the sample rate and pulse range.
+    // Takes effect at the next PWM period.
+    public synchronized void setFrameRate(int frameRate) {
+        checkFraming(frameRate, min_pulse_us, max_pulse_us);
+        this.frameRate = frameRate;
+        republish();
+    }
+
+    public synchronized int getFrameRate() {
+        return frameRate;
+    }
+
+    public synchronized int getMaxFrameRate() {
+        return PwmSynth.maxFreq(sampleRate, max_pulse_us);
+    }
+
+    // Pulse widths, in microseconds, for 0% and 100% duty. Use a shorter
+    // range (e.g. 125-250 us for OneShot125 ESCs) to run at higher frame rates.
+    public synchronized void setPulseRange(double min_us, double max_us) {
+        checkFraming(frameRate, min_us, max_us);
+        min_pulse_us = min_us;
+        max_pulse_us = max_us;
+        republish();
+    }
+
+    private void republish() {
+        publishDuties(commanded[MOTOR_1], commanded[MOTOR_2], commanded[MOTOR_3], commanded[MOTOR_4], 0);
+    }
+
+    private long publishDuties(double duty1, double duty2, double duty3, double duty4,
+                               long receiptNanos) {
+        return publishDuties(duty1, duty2, duty3, duty4, receiptNanos, 0);
+    }
+
+    // Returns the time at which the duties were published
+    private synchronized long publishDuties(double duty1, double duty2, double duty3, double duty4,
+                                            long receiptNanos, long originNanos) {
+        commanded[MOTOR_1] = duty1;
+        commanded[MOTOR_2] = duty2;
+        commanded[MOTOR_3] = duty3;
+        commanded[MOTOR_4] = duty4;
+
+        double pulse1 = mapDuty(duty1);
+        double pulse2 = mapDuty(duty2);
+        double pulse3 = mapDuty(duty3);
+        double pulse4 = mapDuty(duty4);
+
+        long write = System.nanoTime();
+
+        duties.beginWrite();
+        duties.putDouble(MOTOR_1, pulse1);
+        duties.putDouble(MOTOR_2, pulse2);
+        duties.putDouble(MOTOR_3, pulse3);
+        duties.putDouble(MOTOR_4, pulse4);
+        duties.putLong(FRAME_RATE, frameRate);
+        duties.putLong(STAMP_RECEIPT, receiptNanos);
+        duties.putLong(STAMP_WRITE, write);
+        duties.putLong(STAMP_ORIGIN, originNanos);
+        duties.endWrite();
+
+        return write;
+    }
+
+    public ActuationLatency getLatency() {
+        return latency;
+    }
+
+    // Streaming mode writes small chunks, starting at one PWM period, and
+    // keeps only about two of them queued in the sink, which cuts actuation
+    // latency well below a minimum-size AudioTrack buffer. The chunk grows
+    // when the sink underruns and shrinks again once playback is stable.
+    // Only meaningful for real-time sinks. Takes effect on the next start.
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    // Streaming mode metrics: frames queued ahead of the playback head,
+    // current chunk size in frames and the number of underruns so far
+    public long getBufferDepth() {
+        return pacer.getDepth();
+    }
+
+    public int getChunkSize() {
+        return pacer.getChunkSize();
+    }
+
+    public long getUnderrunCount() {
+        return pacer.getUnderruns();
+    }
+
+    StreamPacer getPacer() {
+        return pacer;
     }
 
     public void start_motors() {
@@ -87,10 +232,7 @@ public class Motors {
     }
 
     public void pause_motors() {
-        setMotorDuty(MOTOR_1, 0);
-        setMotorDuty(MOTOR_2, 0);
-        setMotorDuty(MOTOR_3, 0);
-        setMotorDuty(MOTOR_4, 0);
+        publishDuties(0, 0, 0, 0, 0);
 
         enabled = false;
     }
@@ -104,17 +246,7 @@ public class Motors {
     }
 
     protected class Audio implements Runnable {
-        private AudioTrack at = null;
-        protected Thread thread = null;
-
-        private int buff_size = AudioTrack.getMinBufferSize(sampleRate,
-                AudioFormat.CHANNEL_OUT_STEREO,
-                AudioFormat.ENCODING_PCM_16BIT);
-        private int freq = 50;
-
-        // Amplitude percentages for first and second motor on each channel
-        private int amplitude1 = (int)(8 / 100.0 * 32767);
-        private int amplitude2 = (int)(2 / 100.0 * 32767);
+        protected volatile Thread thread = null;
 
         public void run() {
             processAudio();
@@ -141,68 +273,46 @@ public class Motors {
         }
 
         public void processAudio() {
-            at = new AudioTrack(AudioManager.STREAM_MUSIC,
-                    sampleRate,
-                    AudioFormat.CHANNEL_OUT_STEREO,
-                    AudioFormat.ENCODING_PCM_16BIT,
-                    buff_size,
-                    AudioTrack.MODE_STREAM);
+            try {
+                int buff_size = sink.open(sampleRate);
 
-            double K = 2.0 * Math.PI / sampleRate;
-            double phaseL = 0;
-            double phaseR = 0;
-
-            at.play();
-
-            while (thread != null) {
+                // Reuse a single buffer for the lifetime of the sink
                 short samples[] = new short[buff_size];
-                for (int i = 0; i < buff_size; i++) {
-                    // Left sample
-                    if (i % 2 == 0) {
-                        // Motor 1
-                        if (phaseL < Math.PI) {
-                            double cut_off_phase = duty0 / 100.0 * 2.0 * Math.PI;
-                            samples[i] = (phaseL > cut_off_phase) ? (short) 0 : (short) amplitude1;
-                        }
-                        // Motor 2
-                        else {
-                            // For motor 2, the cut off phase is offset by PI since the second
-                            // half of each period is reserved for motor 2, while the first half of
-                            // each period is reserved for motor 1. Note that this limits the duty
-                            // cycle to 50%.
-                            double cut_off_phase = (duty1 / 100.0 * 2.0 * Math.PI) + Math.PI;
-                            samples[i] = (phaseL > cut_off_phase) ? (short) 0 : (short) amplitude2;
-                        }
 
-                        phaseL += (phaseL < 2.0 * Math.PI) ? freq * K : (freq * K) - (2.0 * Math.PI);
-                    }
-                    // Right sample
+                try {
+                    if (streaming)
+                        streamAudio(samples);
                     else {
-                        // Motor 3
-                        if (phaseR < Math.PI) {
-                            double cut_off_phase = duty2 / 100.0 * 2.0 * Math.PI;
-                            samples[i] = (phaseR > cut_off_phase) ? (short) 0 : (short) amplitude1;
+                        while (thread != null) {
+                            synth.render(samples, 0, buff_size);
+                            sink.write(samples, 0, buff_size);
+                            synth.reportPlayback(sink.getPlaybackPosition());
                         }
-                        // Motor 4
-                        else {
-                            // For motor 4, the cut off phase is offset by PI since the second
-                            // half of each period is reserved for motor 4, while the first half of
-                            // each period is reserved for motor 3. Note that this limits the duty
-                            // cycle to 50%.
-                            double cut_off_phase = (duty3 / 100.0 * 2.0 * Math.PI) + Math.PI;
-                            samples[i] = (phaseR > cut_off_phase) ? (short) 0 : (short) amplitude2;
-                        }
-
-                        phaseR += (phaseR < 2.0 * Math.PI) ? freq * K : (freq * K) - (2.0 * Math.PI);
                     }
+                } finally {
+                    sink.close();
                 }
-
-                at.write(samples, 0, buff_size);
+            } catch (IOException e) {
+                thread = null;
+                throw new RuntimeException("Motor output failed", e);
             }
+        }
 
-            at.stop();
-            at.release();
+        private void streamAudio(short[] samples) throws IOException {
+            pacer.start(PwmSynth.periodOf(sampleRate, getFrameRate()), samples.length / 2);
 
+            while (thread != null) {
+                // Wait first so the chunk carries the freshest duties
+                pacer.awaitRoom(sink);
+                // Keep the smallest chunk at one period of the current frame rate
+                if (synth.getPeriod() != pacer.getMinChunk())
+                    pacer.setMinChunk(synth.getPeriod());
+                int length = 2 * pacer.getChunk();
+                synth.render(samples, 0, length);
+                sink.write(samples, 0, length);
+                pacer.wrote(length / 2);
+                synth.reportPlayback(sink.getPlaybackPosition());
+            }
         }
     }
 }
@@ -4,11 +4,17 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.ros.concurrent.CancellableLoop;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
 import org.ros.node.topic.Publisher;
 
 import std_msgs.Header;
@@ -21,18 +27,102 @@ public class PhoneImu extends AbstractNodeMain implements SensorEventListener
     private final Sensor mAccSensor;
     private final Sensor mGyroSensor;
     private final Sensor mQuatSensor;
+    private final Sensor mRawAccSensor;
 
     private int mSensorPeriodUs;
 
     private String topic_name;
+    private String diagnostics_topic_name;
+    // Latest readings, owned by the sensor thread
     private double[] mOrientation;
     private double[] mAngularVelocity;
     private double[] mLinearAcceleration;
+    private long mGyroStamp;
+    private long mGyroCount;
+
+    // The readings above as handed to the publisher, which copies them out
+    // in one piece without ever blocking the sensor thread
+    private static final int STATE_ORIENTATION = 0;     // x, y, z, w
+    private static final int STATE_GYRO = 4;            // x, y, z
+    private static final int STATE_ACCEL = 7;           // x, y, z
+    private static final int STATE_GYRO_STAMP = 10;     // sensor event timestamp
+    private static final int STATE_GYRO_COUNT = 11;
+    private final SeqLock mSensorState = new SeqLock(12);
+
+    // Publisher's copy of the last coherent set of readings, with the
+    // timestamp and number of the gyroscope reading it includes
+    private final double[] mSampleOrientation = new double[4];
+    private final double[] mSampleAngularVelocity = new double[3];
+    private final double[] mSampleLinearAcceleration = new double[3];
+    private long mSampleGyroStamp;
+    private long mSampleGyroCount;
+
+    // Rotation vector conversion scratch
+    private final float[] mRotationMatrix = new float[9];
+    private final float[] mEulerAngles = new float[3];
 
     private double[] mCovOrientation;
     private double[] mCovAngularVelocity;
     private double[] mCovLinearAcceleration;
 
+    // In-process fast path to the flight controller, if enabled
+    private LocalTransport mLocalTransport;
+    private final double[] mLocalRecord = new double[LocalTransport.IMU_WIDTH];
+
+    // Onboard recording of every published sample, if enabled
+    private FlightRecorder.Channel mRecorder;
+    private final double[] mRecorderRecord = new double[FlightRecorder.IMU_WIDTH];
+
+    // Sensor to motor latency tracing, if enabled
+    private PipelineTrace mTrace;
+    private volatile long mSensorStamp;
+
+    // Publish once per gyroscope sample instead of polling
+    private boolean mEventDriven = false;
+    private HandlerThread mSensorThread;
+    private Publisher<sensor_msgs.Imu> mPublisher;
+    private int mSequenceNumber;
+
+    // Wall clock minus the sensor event time base, in ns
+    private long mStampOffset;
+    private boolean mTimeBaseChecked;
+
+    // Event-driven mode: spacing of gyroscope samples seen so far
+    private long mLastGyroStamp;
+    private double mGyroInterval;
+
+    // Polling mode: gyroscope readings in the last sample published
+    private long mPublishedGyroCount;
+
+    // Samples published without a new gyroscope reading, and readings that
+    // were never published
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    // Onboard fusion: attitude from the raw gyroscope and accelerometer in
+    // place of the rotation vector, if enabled
+    private static final double MAX_FUSION_STEP = 0.1;  // s
+    private AttitudeEstimator mEstimator;
+    private long mLastFusionStamp;
+    private final Quat mFusedOrientation = new Quat();
+    private final Vect3F mFusedAcceleration = new Vect3F();
+
+    // Every sensor event, batched onto a topic of its own, if enabled
+    private ImuBatcher mBatcher;
+
+    // Samples averaged down for remote telemetry, if enabled. Orientation
+    // and stamp (ns since the epoch, see RecordStamps) are the latest values.
+    private static final int TELEMETRY_STAMP = 0;
+    private static final int TELEMETRY_ORIENTATION = 1;     // x, y, z, w
+    private static final int TELEMETRY_GYRO = 5;            // x, y, z
+    private static final int TELEMETRY_ACCEL = 8;           // x, y, z
+    private static final int TELEMETRY_WIDTH = 11;
+    private int mTelemetryRate = 0;
+    private Decimator mTelemetry;
+    private final double[] mTelemetryRecord = new double[TELEMETRY_WIDTH];
+    private final double[] mTelemetryWindow = new double[TELEMETRY_WIDTH];
+    private int mTelemetrySequenceNumber;
+
     public PhoneImu(SensorManager sensorManager) {
         this(sensorManager, "phone_imu", 20000);
     }
@@ -43,8 +133,13 @@ public class PhoneImu extends AbstractNodeMain implements SensorEventListener
     }
 
     public PhoneImu(SensorManager sensorManager, String topic, int sensor_period_us) {
-        // Set up topic
+        this(sensorManager, topic, sensor_period_us, "diagnostics");
+    }
+
+    public PhoneImu(SensorManager sensorManager, String topic, int sensor_period_us, String diagnostics_topic) {
+        // Set up topics
         this.topic_name = topic;
+        this.diagnostics_topic_name = diagnostics_topic;
 
         // Initialize the sampling period
         mSensorPeriodUs = sensor_period_us; // Default 50 Hz
@@ -54,6 +149,7 @@ public class PhoneImu extends AbstractNodeMain implements SensorEventListener
         mQuatSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
         mGyroSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
         mAccSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
+        mRawAccSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
 
         mOrientation = new double[4];
         mAngularVelocity = new double[3];
@@ -64,71 +160,371 @@ public class PhoneImu extends AbstractNodeMain implements SensorEventListener
         mCovLinearAcceleration = new double[9];
     }
 
+    // Also hands every sample directly to a FlightController in this process.
+    // Must be called before the node is started.
+    public void setLocalTransport(LocalTransport transport) {
+        this.mLocalTransport = transport;
+    }
+
+    // Stamps every sample into trace. Must be called before the node is started.
+    public void setPipelineTrace(PipelineTrace trace) {
+        this.mTrace = trace;
+    }
+
+    // Records every published sample. Must be called before the node and the
+    // recorder are started.
+    public void setFlightRecorder(FlightRecorder recorder) {
+        this.mRecorder = recorder.newChannel("imu", FlightRecorder.IMU, FlightRecorder.IMU_WIDTH);
+    }
+
+    // Publishes once per fresh gyroscope sample, from the sensor thread and
+    // stamped with the sensor's own timestamp, instead of polling the latest
+    // readings every sensor period. Must be called before the node is started.
+    public void setEventDriven(boolean enabled) {
+        this.mEventDriven = enabled;
+    }
+
+    // Estimates the orientation on the phone from the raw gyroscope and
+    // accelerometer, both run as fast as they go, and publishes a true
+    // quaternion with every gyroscope reading. Linear acceleration is the
+    // accelerometer less gravity along the estimate. Heading is relative to
+    // the phone at start up and drifts slowly. Implies event-driven
+    // publishing, so samples come at the gyroscope rate: a flight controller
+    // run from them needs FlightController.setTimeStepAware(true) to keep its
+    // I and D terms at the tuned scale, timed by the gyroscope event stamps
+    // the samples carry. Must be called before the node is started.
+    public void setOnboardFusion(boolean enabled) {
+        this.mEstimator = enabled ? new AttitudeEstimator() : null;
+    }
+
+    // Also runs the sensors as fast as they go and publishes every event,
+    // batchSize at a time or whatever arrived within flushDeadlineMs of the
+    // first, as a Float64MultiArray on <topic>/batch (see ImuBatcher). The
+    // sensor_msgs/Imu topic keeps its rate. Must be called before the node
+    // is started; a batch size of 0 disables batching.
+    public void setBatching(int batchSize, long flushDeadlineMs) {
+        this.mBatcher = batchSize > 0 ? new ImuBatcher(batchSize, flushDeadlineMs) : null;
+    }
+
+    // Also publishes the samples averaged down to rateHz on
+    // <topic>/telemetry, for the ground station and viewers, so the main
+    // topic can run at the control rate without them. Angular velocity and
+    // linear acceleration are averaged; orientation is the latest. 0
+    // disables. Must be called before the node is started.
+    public void setTelemetryRate(int rateHz) {
+        if (rateHz < 0)
+            throw new IllegalArgumentException("Telemetry rate must not be negative");
+        this.mTelemetryRate = rateHz;
+    }
+
+    public void addTo(DiagnosticsPublisher diagnostics, String prefix) {
+        diagnostics.addCounter(prefix + "duplicate samples", mDuplicates);
+        diagnostics.addCounter(prefix + "dropped samples", mDropped);
+    }
+
     @Override
     public GraphName getDefaultNodeName() {
         return GraphName.of("simone/phone_imu");
     }
 
     public void onStart(ConnectedNode connectedNode) {
-        final Publisher<sensor_msgs.Imu> publisher = connectedNode.newPublisher(this.topic_name, "sensor_msgs/Imu");
+        mPublisher = connectedNode.newPublisher(this.topic_name, "sensor_msgs/Imu");
+
+        // Report duplicate and dropped samples once a second
+        DiagnosticsPublisher diagnostics = new DiagnosticsPublisher("phone_imu");
+        addTo(diagnostics, "phone_imu: ");
+        if (mBatcher != null) {
+            mBatcher.addTo(diagnostics, "phone_imu batch: ");
+            mBatcher.start(connectedNode, this.topic_name + "/batch");
+        }
+        diagnostics.start(connectedNode, this.diagnostics_topic_name, 1000);
 
-        mSensorManager.registerListener(this, mQuatSensor, mSensorPeriodUs);
-        mSensorManager.registerListener(this, mGyroSensor, mSensorPeriodUs);
-        mSensorManager.registerListener(this, mAccSensor, mSensorPeriodUs);
+        if (mTelemetryRate > 0)
+            startTelemetry(connectedNode);
 
-        // Start sensor loop
-        connectedNode.executeCancellableLoop(new CancellableLoop() {
-            private int sequenceNumber;
+        mStampOffset = System.currentTimeMillis() * 1000000L - SystemClock.elapsedRealtimeNanos();
+        int sensorPeriodUs = mBatcher != null ? SensorManager.SENSOR_DELAY_FASTEST : mSensorPeriodUs;
+
+        if (mEventDriven || mEstimator != null) {
+            // Sensor events, and so publishing, on a thread of their own
+            mSensorThread = new HandlerThread("PhoneImuSensors", android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            mSensorThread.start();
+            Handler handler = new Handler(mSensorThread.getLooper());
 
-            protected void setup() {
-                this.sequenceNumber = 0;
+            if (mEstimator != null) {
+                mSensorManager.registerListener(this, mGyroSensor, SensorManager.SENSOR_DELAY_FASTEST, handler);
+                mSensorManager.registerListener(this, mRawAccSensor, SensorManager.SENSOR_DELAY_FASTEST, handler);
+                return;
             }
+            mSensorManager.registerListener(this, mQuatSensor, sensorPeriodUs, handler);
+            mSensorManager.registerListener(this, mGyroSensor, sensorPeriodUs, handler);
+            mSensorManager.registerListener(this, mAccSensor, sensorPeriodUs, handler);
+            return;
+        }
 
+        mSensorManager.registerListener(this, mQuatSensor, sensorPeriodUs);
+        mSensorManager.registerListener(this, mGyroSensor, sensorPeriodUs);
+        mSensorManager.registerListener(this, mAccSensor, sensorPeriodUs);
+
+        // Start sensor loop
+        connectedNode.executeCancellableLoop(new CancellableLoop() {
             protected void loop() throws InterruptedException {
-                sensor_msgs.Imu data = publisher.newMessage();
-                Time current_time = new Time();
+                readSample();
 
-                long time = System.currentTimeMillis();
+                // Count readings this sample repeats or skips. Skipped
+                // readings are expected when batching runs the sensors fast.
+                long fresh = mSampleGyroCount - mPublishedGyroCount;
+                if (fresh == 0)
+                    mDuplicates.incrementAndGet();
+                else if (fresh > 1 && mBatcher == null)
+                    mDropped.addAndGet(fresh - 1);
+                mPublishedGyroCount = mSampleGyroCount;
 
+                long time = System.currentTimeMillis();
+                Time current_time = new Time();
                 current_time.secs = (int) (time / 1000);
                 current_time.nsecs = (int) ((time % 1000) * 1000000);
 
-                data.getHeader().setSeq(sequenceNumber);
-                data.getHeader().setStamp(current_time);
-                data.getHeader().setFrameId("phone");
-
-                data.getOrientation().setW(mOrientation[3]);
-                data.getOrientation().setX(mOrientation[0]);
-                data.getOrientation().setY(mOrientation[1]);
-                data.getOrientation().setZ(mOrientation[2]);
+                long sensorStamp = mSensorStamp;
+                if (mTrace != null && sensorStamp != 0)
+                    mTrace.published(mSequenceNumber, sensorStamp, System.nanoTime());
 
-                data.getAngularVelocity().setX(mAngularVelocity[0]);
-                data.getAngularVelocity().setY(mAngularVelocity[1]);
-                data.getAngularVelocity().setZ(mAngularVelocity[2]);
+                publish(current_time);
+                Thread.sleep(mSensorPeriodUs / 1000);
+            }
+        });
+    }
 
-                data.getLinearAcceleration().setX(mLinearAcceleration[0]);
-                data.getLinearAcceleration().setY(mLinearAcceleration[1]);
-                data.getLinearAcceleration().setZ(mLinearAcceleration[2]);
+    @Override
+    public void onShutdown(Node node) {
+        mSensorManager.unregisterListener(this);
+        if (mSensorThread != null)
+            mSensorThread.quit();
+    }
 
-                data.setOrientationCovariance(mCovOrientation);
-                data.setAngularVelocityCovariance(mCovAngularVelocity);
-                data.setLinearAccelerationCovariance(mCovLinearAcceleration);
+    private void startTelemetry(ConnectedNode connectedNode) {
+        mTelemetry = Decimator.forRate(TELEMETRY_WIDTH, mTelemetryRate);
+        mTelemetry.setLatest(TELEMETRY_STAMP);
+        for (int i = 0; i < 4; i++)
+            mTelemetry.setLatest(TELEMETRY_ORIENTATION + i);
 
-                publisher.publish(data);
-                ++this.sequenceNumber;
-                Thread.sleep(mSensorPeriodUs / 1000);
+        final Publisher<sensor_msgs.Imu> publisher =
+                connectedNode.newPublisher(this.topic_name + "/telemetry", "sensor_msgs/Imu");
+        // Look twice per window so none are missed
+        final long pollMs = Math.max(1, 500 / mTelemetryRate);
+        connectedNode.executeCancellableLoop(new CancellableLoop() {
+            protected void loop() throws InterruptedException {
+                Thread.sleep(pollMs);
+                if (mTelemetry.poll(mTelemetryWindow) > 0)
+                    publishTelemetry(publisher, mTelemetryWindow);
             }
         });
     }
 
+    private void publishTelemetry(Publisher<sensor_msgs.Imu> publisher, double[] window) {
+        sensor_msgs.Imu data = publisher.newMessage();
+
+        data.getHeader().setSeq(mTelemetrySequenceNumber++);
+        data.getHeader().setStamp(Time.fromNano(RecordStamps.get(window, TELEMETRY_STAMP)));
+        data.getHeader().setFrameId("phone");
+
+        data.getOrientation().setX(window[TELEMETRY_ORIENTATION]);
+        data.getOrientation().setY(window[TELEMETRY_ORIENTATION + 1]);
+        data.getOrientation().setZ(window[TELEMETRY_ORIENTATION + 2]);
+        data.getOrientation().setW(window[TELEMETRY_ORIENTATION + 3]);
+
+        data.getAngularVelocity().setX(window[TELEMETRY_GYRO]);
+        data.getAngularVelocity().setY(window[TELEMETRY_GYRO + 1]);
+        data.getAngularVelocity().setZ(window[TELEMETRY_GYRO + 2]);
+
+        data.getLinearAcceleration().setX(window[TELEMETRY_ACCEL]);
+        data.getLinearAcceleration().setY(window[TELEMETRY_ACCEL + 1]);
+        data.getLinearAcceleration().setZ(window[TELEMETRY_ACCEL + 2]);
+
+        data.setOrientationCovariance(mCovOrientation);
+        data.setAngularVelocityCovariance(mCovAngularVelocity);
+        data.setLinearAccelerationCovariance(mCovLinearAcceleration);
+
+        publisher.publish(data);
+    }
+
+    // Feeds the sample just published into the telemetry decimator
+    private void decimate(Time stamp) {
+        double[] record = mTelemetryRecord;
+        RecordStamps.put(record, TELEMETRY_STAMP, stamp.totalNsecs());
+        for (int i = 0; i < 4; i++)
+            record[TELEMETRY_ORIENTATION + i] = mSampleOrientation[i];
+        for (int i = 0; i < 3; i++) {
+            record[TELEMETRY_GYRO + i] = mSampleAngularVelocity[i];
+            record[TELEMETRY_ACCEL + i] = mSampleLinearAcceleration[i];
+        }
+        mTelemetry.add(record, System.nanoTime());
+    }
+
+    // Event-driven mode: a gyroscope reading was just committed. Publishes
+    // it stamped with the sensor's timestamp. Called on the sensor thread.
+    private void onGyroSample(long callbackStart) {
+        readSample();
+        long timestamp = mSampleGyroStamp;
+
+        if (mLastGyroStamp != 0) {
+            long interval = timestamp - mLastGyroStamp;
+            if (interval <= 0) {
+                // Same reading delivered again
+                mDuplicates.incrementAndGet();
+                return;
+            }
+            if (mBatcher != null && mEstimator == null && interval < mSensorPeriodUs * 1000L) {
+                // Sensors run fast for the batches; keep to the sensor period
+                return;
+            }
+
+            // Gaps of more than one and a half typical intervals mean the
+            // sensor or its FIFO lost readings. The sensor period is only a
+            // hint, so the typical interval is learnt from the stream.
+            if (mGyroInterval == 0)
+                mGyroInterval = interval;
+            else if (interval > 1.5 * mGyroInterval)
+                mDropped.addAndGet(Math.round(interval / mGyroInterval) - 1);
+            else
+                mGyroInterval += (interval - mGyroInterval) / 16;
+        }
+        mLastGyroStamp = timestamp;
+
+        long stamp = timestamp + mStampOffset;
+        Time sensor_time = new Time();
+        sensor_time.secs = (int) (stamp / 1000000000L);
+        sensor_time.nsecs = (int) (stamp % 1000000000L);
+
+        if (mTrace != null)
+            mTrace.published(mSequenceNumber, callbackStart, System.nanoTime());
+
+        publish(sensor_time);
+    }
+
+    // Sensor thread: publishes the current readings as one update
+    private void commitState() {
+        SeqLock state = mSensorState;
+        state.beginWrite();
+        for (int i = 0; i < 4; i++)
+            state.putDouble(STATE_ORIENTATION + i, mOrientation[i]);
+        for (int i = 0; i < 3; i++) {
+            state.putDouble(STATE_GYRO + i, mAngularVelocity[i]);
+            state.putDouble(STATE_ACCEL + i, mLinearAcceleration[i]);
+        }
+        state.putLong(STATE_GYRO_STAMP, mGyroStamp);
+        state.putLong(STATE_GYRO_COUNT, mGyroCount);
+        state.endWrite();
+    }
+
+    // Publisher: copies the latest coherent set of readings into mSample*,
+    // retrying if the sensor thread updated them meanwhile
+    private void readSample() {
+        SeqLock state = mSensorState;
+        int stamp;
+        do {
+            stamp = state.readBegin();
+            for (int i = 0; i < 4; i++)
+                mSampleOrientation[i] = state.getDouble(STATE_ORIENTATION + i);
+            for (int i = 0; i < 3; i++) {
+                mSampleAngularVelocity[i] = state.getDouble(STATE_GYRO + i);
+                mSampleLinearAcceleration[i] = state.getDouble(STATE_ACCEL + i);
+            }
+            mSampleGyroStamp = state.getLong(STATE_GYRO_STAMP);
+            mSampleGyroCount = state.getLong(STATE_GYRO_COUNT);
+        } while (!state.validate(stamp));
+    }
+
+    // Publishes the readings last copied by readSample() as the next sample
+    private void publish(Time stamp) {
+        sensor_msgs.Imu data = mPublisher.newMessage();
+
+        data.getHeader().setSeq(mSequenceNumber);
+        data.getHeader().setStamp(stamp);
+        data.getHeader().setFrameId("phone");
+
+        data.getOrientation().setW(mSampleOrientation[3]);
+        data.getOrientation().setX(mSampleOrientation[0]);
+        data.getOrientation().setY(mSampleOrientation[1]);
+        data.getOrientation().setZ(mSampleOrientation[2]);
+
+        data.getAngularVelocity().setX(mSampleAngularVelocity[0]);
+        data.getAngularVelocity().setY(mSampleAngularVelocity[1]);
+        data.getAngularVelocity().setZ(mSampleAngularVelocity[2]);
+
+        data.getLinearAcceleration().setX(mSampleLinearAcceleration[0]);
+        data.getLinearAcceleration().setY(mSampleLinearAcceleration[1]);
+        data.getLinearAcceleration().setZ(mSampleLinearAcceleration[2]);
+
+        data.setOrientationCovariance(mCovOrientation);
+        data.setAngularVelocityCovariance(mCovAngularVelocity);
+        data.setLinearAccelerationCovariance(mCovLinearAcceleration);
+
+        if (mLocalTransport != null)
+            publishLocal(mSequenceNumber, stamp);
+        if (mTelemetry != null)
+            decimate(stamp);
+        if (mRecorder != null)
+            record(mSequenceNumber);
+
+        mPublisher.publish(data);
+        ++mSequenceNumber;
+    }
+
+    private void record(int sequenceNumber) {
+        double[] record = mRecorderRecord;
+        FlightRecorder.Channel.stamp(record, System.nanoTime());
+        record[FlightRecorder.IMU_SEQ] = sequenceNumber;
+        record[FlightRecorder.IMU_QW] = mSampleOrientation[3];
+        for (int i = 0; i < 3; i++) {
+            record[FlightRecorder.IMU_QW + 1 + i] = mSampleOrientation[i];
+            record[FlightRecorder.IMU_GX + i] = mSampleAngularVelocity[i];
+            record[FlightRecorder.IMU_AX + i] = mSampleLinearAcceleration[i];
+        }
+        mRecorder.append(record);
+    }
+
+    private void publishLocal(int sequenceNumber, Time stamp) {
+        double[] record = mLocalRecord;
+        record[LocalTransport.IMU_SEQ] = sequenceNumber;
+        RecordStamps.put(record, LocalTransport.IMU_STAMP, stamp.totalNsecs());
+
+        record[LocalTransport.IMU_QW] = mSampleOrientation[3];
+        record[LocalTransport.IMU_QX] = mSampleOrientation[0];
+        record[LocalTransport.IMU_QY] = mSampleOrientation[1];
+        record[LocalTransport.IMU_QZ] = mSampleOrientation[2];
+
+        record[LocalTransport.IMU_GX] = mSampleAngularVelocity[0];
+        record[LocalTransport.IMU_GY] = mSampleAngularVelocity[1];
+        record[LocalTransport.IMU_GZ] = mSampleAngularVelocity[2];
+
+        record[LocalTransport.IMU_AX] = mSampleLinearAcceleration[0];
+        record[LocalTransport.IMU_AY] = mSampleLinearAcceleration[1];
+        record[LocalTransport.IMU_AZ] = mSampleLinearAcceleration[2];
+
+        mLocalTransport.getImuChannel().offer(record);
+    }
+
     @Override
     public void onSensorChanged(SensorEvent event) {
+        long start = System.nanoTime();
+
+        if (!mTimeBaseChecked) {
+            // Sensors not stamped against elapsedRealtime: line the first
+            // reading up with the wall clock instead
+            if (Math.abs(event.timestamp - SystemClock.elapsedRealtimeNanos()) > 1000000000L)
+                mStampOffset = System.currentTimeMillis() * 1000000L - event.timestamp;
+            mTimeBaseChecked = true;
+        }
+        if (mBatcher != null)
+            mBatcher.add(event.timestamp + mStampOffset, event.sensor.getType(), event.values);
+
         if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR)
         {
             //float[] quat = new float[4];
 
-            float[] rotation_matrix = new float[9];
-            float[] orientation = new float[3];
+            float[] rotation_matrix = mRotationMatrix;
+            float[] orientation = mEulerAngles;
 
             SensorManager.getRotationMatrixFromVector(rotation_matrix, event.values);
             SensorManager.getOrientation(rotation_matrix, orientation);
@@ -146,12 +542,48 @@ public class PhoneImu extends AbstractNodeMain implements SensorEventListener
         {
             float[] ang_vel = event.values;
             this.setAngularVelocity(ang_vel[0], ang_vel[1], ang_vel[2]);
+            this.mGyroStamp = event.timestamp;
+            this.mGyroCount++;
+            if (mEstimator != null)
+                fuseGyro(ang_vel, event.timestamp);
+        }
+        else if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER && mEstimator != null)
+        {
+            float[] acc = event.values;
+            mEstimator.updateAccel(acc[0], acc[1], acc[2]);
+            mEstimator.removeGravity(acc[0], acc[1], acc[2], mFusedAcceleration);
+            this.setLinearAcceleration(mFusedAcceleration.x, mFusedAcceleration.y, mFusedAcceleration.z);
         }
         else if (event.sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION)
         {
             float[] acc = event.values;
             this.setLinearAcceleration(acc[0], acc[1], acc[2]);
         }
+
+        commitState();
+
+        if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR && mTrace != null) {
+            long end = System.nanoTime();
+            mTrace.sensorCallback(start, end);
+            mSensorStamp = end;
+        }
+        if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE && (mEventDriven || mEstimator != null))
+            onGyroSample(start);
+    }
+
+    // Onboard fusion: advances the estimate over the time since the last
+    // gyroscope reading. Gaps too long to integrate across are skipped.
+    private void fuseGyro(float[] ang_vel, long timestamp) {
+        if (mLastFusionStamp != 0) {
+            double dt = (timestamp - mLastFusionStamp) * 1e-9;
+            if (dt < MAX_FUSION_STEP)
+                mEstimator.updateGyro(ang_vel[0], ang_vel[1], ang_vel[2], dt);
+        }
+        mLastFusionStamp = timestamp;
+
+        mEstimator.getQuaternion(mFusedOrientation);
+        Quat q = mFusedOrientation;
+        this.setOrientation(q.x, q.y, q.z, q.w);
     }
 
     @Override
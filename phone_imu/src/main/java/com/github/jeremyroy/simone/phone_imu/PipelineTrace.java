@@ -0,0 +1,182 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Follows IMU samples from the sensor callback to the motor command they
+// produce, when PhoneImu, FlightController and MotorNode share a process
+// and so a System.nanoTime() clock.
+//
+// Samples are identified by the IMU header sequence number (or the
+// LocalTransport record's). Over ROS this relies on the seq PhoneImu puts in
+// the header reaching FlightController unchanged: a publisher that numbered
+// messages itself, as roscpp's do, would pair stamps of different samples
+// and make the figures meaningless. The local fast path does not depend on
+// it.
+// Each node stamps its stage into a fixed ring of
+// slots keyed by that number, and the time between consecutive stamps goes
+// into one LatencyHistogram per stage:
+//
+//     sensor callback   time spent in PhoneImu.onSensorChanged
+//     publish wait      end of the callback to the publish loop sending it
+//     imu delivery      publish to FlightController receiving it
+//     control           receipt to the motor command being sent
+//     motor delivery    command sent to MotorNode receiving it
+//
+// MotorCTRL carries no sequence number, so commands arriving over ROS are
+// matched by value against the last few sent. From there Motors'
+// ActuationLatency carries on to the first PWM sample being played, using
+// the origin stamp returned by commandReceived().
+//
+// Stamps for a sample that has been overwritten in the ring by a newer one
+// are dropped rather than misattributed. Nothing here allocates.
+class PipelineTrace
+{
+    private static final int SLOTS = 64;
+
+    private static final int SEQ = 0;
+    private static final int SENSOR = 1;
+    private static final int PUBLISH = 2;
+    private static final int RECEIPT = 3;
+    private static final int COMMAND = 4;
+    private static final int FIELDS = 5;
+
+    private final AtomicLongArray m_slots = new AtomicLongArray(SLOTS * FIELDS);
+
+    // Last commands sent, for matching MotorCTRL messages by value
+    private static final int COMMANDS = 8;
+    private static final int CMD_SEQ = 4;
+    private final SeqLock[] m_commands = new SeqLock[COMMANDS];
+    private volatile int m_next_command;
+
+    private final LatencyHistogram m_sensor_callback = new LatencyHistogram();
+    private final LatencyHistogram m_publish_wait = new LatencyHistogram();
+    private final LatencyHistogram m_imu_delivery = new LatencyHistogram();
+    private final LatencyHistogram m_control = new LatencyHistogram();
+    private final LatencyHistogram m_motor_delivery = new LatencyHistogram();
+
+    public PipelineTrace()
+    {
+        for (int i = 0; i < COMMANDS; i++)
+            m_commands[i] = new SeqLock(5);
+        for (int i = 0; i < SLOTS; i++)
+            m_slots.set(i * FIELDS + SEQ, -1);
+    }
+
+    // PhoneImu: a sensor callback ran from start to end
+    public void sensorCallback(long start, long end)
+    {
+        m_sensor_callback.record(end - start);
+    }
+
+    // PhoneImu: sample seq, whose sensor callback finished at sensor, was
+    // handed to the publisher at now
+    public void published(int seq, long sensor, long now)
+    {
+        int base = (seq & (SLOTS - 1)) * FIELDS;
+
+        // Invalidate the slot while it is being refilled
+        m_slots.set(base + SEQ, -1);
+        m_slots.set(base + SENSOR, sensor);
+        m_slots.set(base + PUBLISH, now);
+        m_slots.set(base + RECEIPT, 0);
+        m_slots.set(base + COMMAND, 0);
+        m_slots.set(base + SEQ, seq);
+
+        m_publish_wait.record(now - sensor);
+    }
+
+    // FlightController: sample seq arrived at now
+    public void received(int seq, long now)
+    {
+        int base = slotOf(seq);
+        if (base < 0)
+            return;
+
+        m_slots.set(base + RECEIPT, now);
+        m_imu_delivery.record(now - m_slots.get(base + PUBLISH));
+    }
+
+    // FlightController: the command computed from sample seq was sent at now
+    public void commandSent(int seq, double m1, double m2, double m3, double m4, long now)
+    {
+        int base = slotOf(seq);
+        if (base < 0)
+            return;
+
+        long receipt = m_slots.get(base + RECEIPT);
+        if (receipt == 0)
+            return;
+
+        m_slots.set(base + COMMAND, now);
+        m_control.record(now - receipt);
+
+        SeqLock command = m_commands[m_next_command];
+        m_next_command = (m_next_command + 1) % COMMANDS;
+        command.beginWrite();
+        command.putDouble(0, m1);
+        command.putDouble(1, m2);
+        command.putDouble(2, m3);
+        command.putDouble(3, m4);
+        command.putLong(CMD_SEQ, seq);
+        command.endWrite();
+    }
+
+    // MotorNode: a MotorCTRL message with these thrusts arrived at now.
+    // Returns the sensor stamp of the sample that produced it, or 0 if it
+    // could not be matched.
+    public long commandReceived(double m1, double m2, double m3, double m4, long now)
+    {
+        // Newest first, in case the same thrusts were sent repeatedly
+        int next = m_next_command;
+        for (int i = 1; i <= COMMANDS; i++) {
+            SeqLock command = m_commands[(next - i + COMMANDS) % COMMANDS];
+            double c1, c2, c3, c4;
+            long seq;
+            int stamp;
+            do {
+                stamp = command.readBegin();
+                c1 = command.getDouble(0);
+                c2 = command.getDouble(1);
+                c3 = command.getDouble(2);
+                c4 = command.getDouble(3);
+                seq = command.getLong(CMD_SEQ);
+            } while (!command.validate(stamp));
+
+            if (stamp != 0 && c1 == m1 && c2 == m2 && c3 == m3 && c4 == m4)
+                return commandReceived((int)seq, now);
+        }
+        return 0;
+    }
+
+    // MotorNode: the command computed from sample seq arrived at now
+    public long commandReceived(int seq, long now)
+    {
+        int base = slotOf(seq);
+        if (base < 0)
+            return 0;
+
+        long sent = m_slots.get(base + COMMAND);
+        long sensor = m_slots.get(base + SENSOR);
+        // Check the slot was not reused while reading it
+        if (sent == 0 || slotOf(seq) < 0)
+            return 0;
+
+        m_motor_delivery.record(now - sent);
+        return sensor;
+    }
+
+    private int slotOf(int seq)
+    {
+        int base = (seq & (SLOTS - 1)) * FIELDS;
+        return m_slots.get(base + SEQ) == seq ? base : -1;
+    }
+
+    public void addTo(DiagnosticsPublisher diagnostics, String prefix)
+    {
+        diagnostics.addHistogram(prefix + "sensor callback", m_sensor_callback);
+        diagnostics.addHistogram(prefix + "publish wait", m_publish_wait);
+        diagnostics.addHistogram(prefix + "imu delivery", m_imu_delivery);
+        diagnostics.addHistogram(prefix + "control", m_control);
+        diagnostics.addHistogram(prefix + "motor delivery", m_motor_delivery);
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Recovers the pulse width of each motor from a stream rendered by PwmSynth.
+//
+// Every non-zero run of samples on a channel is one pulse. Its peak tells
+// which motor it belongs to (the first motor of each channel is driven at a
+// higher amplitude than the second) and its area, in full amplitude samples,
+// is the pulse width.
+public class PwmDecoder
+{
+    private static final int THRESHOLD = (PwmSynth.AMPLITUDE_1 + PwmSynth.AMPLITUDE_2) / 2;
+
+    private final int m_sample_rate;
+    private final int m_freq;
+
+    // Latest complete pulse of each motor, in samples
+    private final double[] m_width = new double[4];
+    private final long[] m_pulses = new long[4];
+
+    // Pulse currently being measured on each channel
+    private final long[] m_run_area = new long[2];
+    private final int[] m_run_peak = new int[2];
+
+    public PwmDecoder(int sampleRate)
+    {
+        this(sampleRate, PwmSynth.DEFAULT_FREQ);
+    }
+
+    public PwmDecoder(int sampleRate, int freq)
+    {
+        m_sample_rate = sampleRate;
+        m_freq = freq;
+    }
+
+    // Consumes interleaved stereo samples; length must be a whole number of frames
+    public void process(short[] samples, int offset, int length)
+    {
+        for (int i = offset; i < offset + length; i += 2) {
+            feed(0, samples[i]);
+            feed(1, samples[i + 1]);
+        }
+    }
+
+    // Width of the last complete pulse, in samples
+    public double getWidth(int motor)
+    {
+        return m_width[motor];
+    }
+
+    // Width of the last complete pulse, in microseconds
+    public double getWidthUs(int motor)
+    {
+        return m_width[motor] * 1e6 / m_sample_rate;
+    }
+
+    // Width of the last complete pulse as a percent of the PWM period, which
+    // is the mapped duty cycle Motors was asked to produce
+    public double getDuty(int motor)
+    {
+        return m_width[motor] * m_freq * 100.0 / m_sample_rate;
+    }
+
+    public long getPulseCount(int motor)
+    {
+        return m_pulses[motor];
+    }
+
+    private void feed(int channel, short sample)
+    {
+        if (sample > 0) {
+            m_run_area[channel] += sample;
+            if (sample > m_run_peak[channel])
+                m_run_peak[channel] = sample;
+            return;
+        }
+
+        int peak = m_run_peak[channel];
+        if (peak == 0)
+            return;
+
+        // Left channel carries motors 1 and 2, right channel motors 3 and 4
+        boolean first = peak > THRESHOLD;
+        int motor = 2 * channel + (first ? 0 : 1);
+        int amplitude = first ? PwmSynth.AMPLITUDE_1 : PwmSynth.AMPLITUDE_2;
+
+        m_width[motor] = (double)m_run_area[channel] / amplitude;
+        m_pulses[motor]++;
+
+        m_run_area[channel] = 0;
+        m_run_peak[channel] = 0;
+    }
+}
@@ -0,0 +1,298 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.Arrays;
+
+// Generates the stereo PWM waveform that drives the four ESCs.
+//
+// Each channel carries two motors: the first half of every PWM period holds
+// the pulse for the first motor and the second half the pulse for the second
+// motor. One period is rendered into a template which is only rebuilt when a
+// pulse width or the frame rate changes, and output buffers are filled by
+// copying from it using an integer frame counter. The class does not
+// allocate after construction.
+//
+// Pulse widths follow the sample clock rather than any decimal rounding: a
+// pulse of w samples is rendered as floor(w) full amplitude samples followed
+// by one edge sample scaled by the fractional part, so the reconstructed
+// falling edge crosses the ESC's threshold at a sub-sample time.
+//
+// Pulse widths (in microseconds, indexed by motor number), the frame rate
+// and the receipt and write timestamps of the command are read from a
+// SeqLock laid out by Motors. A coherent snapshot is taken at the start of
+// every period, so a period never mixes old and new motor values.
+//
+// Each adopted command is timed through the rest of the actuation path: when
+// it is rendered, and when the frame it starts on is played by the sink.
+//
+// Periods are laid out as by the per-sample phase accumulator this
+// replaced. That accumulator wrapped at the first sample past each multiple
+// of sampleRate / freq frames and left that sample silent, so period k
+// starts at frame ceil(k * sampleRate / freq) + 1, after one leading frame
+// with the first pulses high. Where the rate does not divide the sample
+// rate the period lengths alternate (110 and 111 frames at 44.1 kHz and
+// 400 Hz); a Bresenham remainder keeps them in step, so the frame rate is
+// exact. The accumulator's double phase sometimes wrapped one sample late
+// where a boundary falls exactly on a frame; those boundaries are not
+// copied.
+//
+// Pulse edges are the sample-clock edges described above, so they end up to
+// two frames after the accumulator's, which started each pulse a frame
+// late but cut it at the nominal width. And where the accumulator applied a
+// duty change at the next sample, a change here waits for the period
+// boundary, so a period never mixes old and new values.
+class PwmSynth
+{
+    public static final int DEFAULT_FREQ = 50;
+
+    // Lowest frame rate the template is sized for
+    public static final int MIN_FREQ = 25;
+
+    // Amplitude percentages for first and second motor on each channel
+    static final short AMPLITUDE_1 = (short)(int)(8 / 100.0 * 32767);
+    static final short AMPLITUDE_2 = (short)(int)(2 / 100.0 * 32767);
+
+    // Adopted commands waiting for their first frame to be played
+    private static final int MAX_PENDING = 8;
+
+    private final int m_sample_rate;
+    private final short[] m_template;  // One interleaved (L, R) PWM period
+
+    private int m_freq;                // Current frame rate, in Hz
+    private int m_period;              // Nominal length of one PWM period, in stereo frames
+    private int m_half;                // Start of the second pulses within a period
+    private int m_length;              // Length of the current period, in stereo frames
+    private int m_remainder;           // Fraction of a frame the periods run behind, in 1/m_freq
+    private int m_frame;               // Position within the current period
+    private boolean m_lead_in = true;  // The leading frame is still to be rendered
+    private long m_frames_rendered;    // Total frames rendered so far
+
+    // Pulse widths requested by the motors, adopted at the next period boundary
+    private final SeqLock m_duties;
+    private int m_duties_seq;
+
+    // Pulse widths the template was last built from
+    private double m_applied0 = Double.NaN;
+    private double m_applied1 = Double.NaN;
+    private double m_applied2 = Double.NaN;
+    private double m_applied3 = Double.NaN;
+
+    private final ActuationLatency m_latency;
+    private final long[] m_pending_frame = new long[MAX_PENDING];
+    private final long[] m_pending_receipt = new long[MAX_PENDING];
+    private final long[] m_pending_synth = new long[MAX_PENDING];
+    private final long[] m_pending_origin = new long[MAX_PENDING];
+    private int m_pending_count;
+
+    public PwmSynth(int sampleRate, SeqLock duties, ActuationLatency latency)
+    {
+        if (sampleRate < 2 * MIN_FREQ)
+            throw new IllegalArgumentException("Invalid sample rate");
+
+        m_sample_rate = sampleRate;
+        m_template = new short[2 * (sampleRate / MIN_FREQ + 1)];
+
+        setFreq(DEFAULT_FREQ);
+        m_frame = 0;
+
+        m_duties = duties;
+        m_duties_seq = duties.getSequence() - 2;
+
+        m_latency = latency;
+    }
+
+    // Length of one PWM period, in stereo frames
+    public static int periodOf(int sampleRate, int freq)
+    {
+        return Math.round((float)sampleRate / freq);
+    }
+
+    // Highest frame rate at which a pulse of maxPulseUs still fits in half a
+    // period, with at least one silent sample before the next pulse starts
+    public static int maxFreq(int sampleRate, double maxPulseUs)
+    {
+        int pulse = (int)Math.ceil(maxPulseUs * sampleRate / 1e6);
+        int freq = sampleRate / (2 * (pulse + 1));
+        while (freq > 0 && roomOf(sampleRate, freq) < pulse + 1)
+            freq--;
+        return freq;
+    }
+
+    // Frames from the start of a period to its second pulses: half a period,
+    // less the frame the periods start after the phase wrap
+    private static int halfOf(int sampleRate, int freq)
+    {
+        return sampleRate / (2 * freq) - 1;
+    }
+
+    // Frames each pulse has, in the shortest period
+    private static int roomOf(int sampleRate, int freq)
+    {
+        int half = halfOf(sampleRate, freq);
+        return Math.min(half, sampleRate / freq - half);
+    }
+
+    // Nominal period length and frame rate as seen by the audio thread
+    public int getPeriod()
+    {
+        return m_period;
+    }
+
+    public int getFreq()
+    {
+        return m_freq;
+    }
+
+    // Fills out[offset, offset + length) with interleaved stereo samples.
+    // Length must be a whole number of frames.
+    public void render(short[] out, int offset, int length)
+    {
+        if ((length & 1) != 0)
+            throw new IllegalArgumentException("Length must be a multiple of 2 samples");
+
+        int end = offset + length;
+        if (m_lead_in && offset < end) {
+            out[offset++] = AMPLITUDE_1;
+            out[offset++] = AMPLITUDE_1;
+            m_frames_rendered++;
+            m_lead_in = false;
+        }
+
+        while (offset < end) {
+            // Changes only take effect on a period boundary
+            if (m_frame == 0) {
+                refresh();
+                nextLength();
+            }
+
+            int count = Math.min(end - offset, 2 * (m_length - m_frame));
+            System.arraycopy(m_template, 2 * m_frame, out, offset, count);
+            offset += count;
+
+            m_frame += count / 2;
+            m_frames_rendered += count / 2;
+            if (m_frame == m_length)
+                m_frame = 0;
+        }
+    }
+
+    private void setFreq(int freq)
+    {
+        m_freq = freq;
+        m_period = periodOf(m_sample_rate, freq);
+        m_half = halfOf(m_sample_rate, freq);
+        m_remainder = 0;
+    }
+
+    // Length of the period about to start: the frames up to the next
+    // boundary at sampleRate / freq, with the fraction of a frame carried
+    private void nextLength()
+    {
+        int total = m_remainder + m_sample_rate;
+        m_length = (total + m_freq - 1) / m_freq - (m_remainder > 0 ? 1 : 0);
+        m_remainder = total % m_freq;
+    }
+
+    // Called after rendered samples have been handed to the sink, with the
+    // sink's playback position. Estimates when each newly adopted command
+    // starts playing from how far ahead of the playback head it was rendered.
+    public void reportPlayback(long playbackPosition)
+    {
+        if (m_pending_count == 0)
+            return;
+
+        long now = System.nanoTime();
+        for (int i = 0; i < m_pending_count; i++) {
+            long queued = Math.max(0, m_pending_frame[i] - playbackPosition);
+            long output = now + queued * 1000000000L / m_sample_rate;
+
+            m_latency.getSynthToOutput().record(output - m_pending_synth[i]);
+            m_latency.getTotal().record(output - m_pending_receipt[i]);
+            if (m_pending_origin[i] != 0)
+                m_latency.getSensorToOutput().record(output - m_pending_origin[i]);
+        }
+        m_pending_count = 0;
+    }
+
+    private void refresh()
+    {
+        // Nothing published since the last period
+        if (m_duties.getSequence() == m_duties_seq)
+            return;
+
+        double pulse0, pulse1, pulse2, pulse3;
+        int freq;
+        long receipt, write, origin;
+        int stamp;
+        do {
+            stamp = m_duties.readBegin();
+            pulse0 = m_duties.getDouble(Motors.MOTOR_1);
+            pulse1 = m_duties.getDouble(Motors.MOTOR_2);
+            pulse2 = m_duties.getDouble(Motors.MOTOR_3);
+            pulse3 = m_duties.getDouble(Motors.MOTOR_4);
+            freq = (int)m_duties.getLong(Motors.FRAME_RATE);
+            receipt = m_duties.getLong(Motors.STAMP_RECEIPT);
+            write = m_duties.getLong(Motors.STAMP_WRITE);
+            origin = m_duties.getLong(Motors.STAMP_ORIGIN);
+        } while (!m_duties.validate(stamp));
+        m_duties_seq = stamp;
+
+        // Internal updates (start up, pause) carry no receipt time
+        if (receipt != 0) {
+            long now = System.nanoTime();
+            m_latency.getWriteToSynth().record(now - write);
+
+            if (m_pending_count < MAX_PENDING) {
+                m_pending_frame[m_pending_count] = m_frames_rendered;
+                m_pending_receipt[m_pending_count] = receipt;
+                m_pending_synth[m_pending_count] = now;
+                m_pending_origin[m_pending_count] = origin;
+                m_pending_count++;
+            }
+        }
+
+        boolean changed = false;
+        if (freq != m_freq && freq >= MIN_FREQ) {
+            setFreq(freq);
+            changed = true;
+        }
+
+        if (changed || pulse0 != m_applied0 || pulse1 != m_applied1
+                || pulse2 != m_applied2 || pulse3 != m_applied3) {
+            m_applied0 = pulse0;
+            m_applied1 = pulse1;
+            m_applied2 = pulse2;
+            m_applied3 = pulse3;
+            rebuild();
+        }
+    }
+
+    private void rebuild()
+    {
+        Arrays.fill(m_template, (short)0);
+
+        // Motors 1 and 3 own the first half of each period, motors 2 and 4
+        // the second half
+        writePulse(0, 0, m_applied0, AMPLITUDE_1);
+        writePulse(0, m_half, m_applied1, AMPLITUDE_2);
+        writePulse(1, 0, m_applied2, AMPLITUDE_1);
+        writePulse(1, m_half, m_applied3, AMPLITUDE_2);
+    }
+
+    private void writePulse(int channel, int start, double width_us, short amplitude)
+    {
+        // Leave at least one silent sample at the end of the half period,
+        // even in the shorter periods
+        double width = width_us * m_sample_rate / 1e6;
+        double limit = roomOf(m_sample_rate, m_freq) - 1;
+        if (width > limit)
+            width = limit;
+        else if (!(width > 0))
+            return;
+
+        int whole = (int)width;
+        for (int i = 0; i < whole; i++)
+            m_template[2 * (start + i) + channel] = amplitude;
+
+        m_template[2 * (start + whole) + channel] = (short)Math.round((width - whole) * amplitude);
+    }
+}
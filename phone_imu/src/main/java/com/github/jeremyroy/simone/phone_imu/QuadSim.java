@@ -0,0 +1,98 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Roll and pitch dynamics of the vehicle, for running the control chain in
+// closed loop off the phone.
+//
+// Each axis is a rigid body driven by the mixer's net differential thrust,
+// with a little aerodynamic damping, and each motor follows its command
+// through a first-order lag. Heading and altitude are not modelled.
+//
+// The axes are wired the way ControlChain drives them: the attitude
+// controller's pitch output feeds the mixer's roll input through the rate
+// controller with a sign flip, and vice versa, so the mixer's roll torque
+// turns what quat2Euler reports as pitch, and its pitch torque turns roll,
+// both negatively. getImuQuat() reports the attitude in the IMU's frame.
+class QuadSim
+{
+    // Rough figures for a phone-sized quad; adjust to the airframe
+    public static final double TORQUE_GAIN = 2.0;   // rad/s^2 per % of net differential thrust
+    public static final double DAMPING = 0.5;       // 1/s
+    public static final double MOTOR_LAG = 0.04;    // s
+
+    private final Mixer m_mixer;
+    private final double[] m_thrusts;
+
+    private double m_roll;
+    private double m_pitch;
+    private double m_roll_rate;
+    private double m_pitch_rate;
+
+    public QuadSim(Mixer mixer)
+    {
+        m_mixer = mixer;
+        m_thrusts = new double[mixer.getMotorCount()];
+    }
+
+    // At rest at the given attitude, in radians, with every motor at thrust
+    public void reset(double roll, double pitch, double thrust)
+    {
+        m_roll = roll;
+        m_pitch = pitch;
+        m_roll_rate = 0;
+        m_pitch_rate = 0;
+        for (int i = 0; i < m_thrusts.length; i++)
+            m_thrusts[i] = thrust;
+    }
+
+    // Advances by dt seconds with the motors commanded to commands, in percent
+    public void step(double[] commands, double dt)
+    {
+        double lag = dt / (MOTOR_LAG + dt);
+        double roll_torque = 0;
+        double pitch_torque = 0;
+        for (int i = 0; i < m_thrusts.length; i++) {
+            m_thrusts[i] += (commands[i] - m_thrusts[i]) * lag;
+            roll_torque += m_mixer.getCoefficient(i, 1) * m_thrusts[i];
+            pitch_torque += m_mixer.getCoefficient(i, 2) * m_thrusts[i];
+        }
+
+        // Semi-implicit Euler
+        m_pitch_rate += (-TORQUE_GAIN * roll_torque - DAMPING * m_pitch_rate) * dt;
+        m_roll_rate += (-TORQUE_GAIN * pitch_torque - DAMPING * m_roll_rate) * dt;
+        m_pitch += m_pitch_rate * dt;
+        m_roll += m_roll_rate * dt;
+    }
+
+    public double getRoll()
+    {
+        return m_roll;
+    }
+
+    public double getPitch()
+    {
+        return m_pitch;
+    }
+
+    public void getImuQuat(Quat out)
+    {
+        imuQuat(0.0, m_pitch, m_roll, out);
+    }
+
+    // IMU quaternion for the attitude quat2Euler reports as pitch, roll and
+    // yaw, built from the Z-Y-X Euler angles of the frame it works in
+    public static void imuQuat(double heading, double pitch, double roll, Quat out)
+    {
+        double phi = heading / 2, theta = -pitch / 2, psi = -roll / 2;
+        double cr = Math.cos(phi), sr = Math.sin(phi);
+        double cp = Math.cos(theta), sp = Math.sin(theta);
+        double cy = Math.cos(psi), sy = Math.sin(psi);
+
+        double w = cr * cp * cy + sr * sp * sy;
+        double x = sr * cp * cy - cr * sp * sy;
+        double y = cr * sp * cy + sr * cp * sy;
+        double z = cr * cp * sy - sr * sp * cy;
+
+        // quat2Euler reads (w, x, y, z) as (w, -x, z, y)
+        QuatMath.set(out, w, -x, z, y);
+    }
+}
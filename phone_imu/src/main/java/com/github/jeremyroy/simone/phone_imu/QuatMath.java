@@ -0,0 +1,106 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Small quaternion and vector kernels on top of Quat and Vect3F. Every
+// function writes into a caller-supplied output, so none of them allocate.
+// Outputs may alias inputs unless noted otherwise.
+//
+// Quaternions are Hamilton quaternions (w, x, y, z) rotating body frame
+// vectors into the reference frame.
+final class QuatMath
+{
+    private QuatMath() {}
+
+    public static void set(Quat out, double w, double x, double y, double z)
+    {
+        out.w = w;
+        out.x = x;
+        out.y = y;
+        out.z = z;
+    }
+
+    public static void set(Vect3F out, double x, double y, double z)
+    {
+        out.x = x;
+        out.y = y;
+        out.z = z;
+    }
+
+    // out = a * b
+    public static void multiply(Quat a, Quat b, Quat out)
+    {
+        double w = a.w * b.w - a.x * b.x - a.y * b.y - a.z * b.z;
+        double x = a.w * b.x + a.x * b.w + a.y * b.z - a.z * b.y;
+        double y = a.w * b.y - a.x * b.z + a.y * b.w + a.z * b.x;
+        double z = a.w * b.z + a.x * b.y - a.y * b.x + a.z * b.w;
+        set(out, w, x, y, z);
+    }
+
+    public static void conjugate(Quat q, Quat out)
+    {
+        set(out, q.w, -q.x, -q.y, -q.z);
+    }
+
+    public static void normalize(Quat q, Quat out)
+    {
+        double n = Math.sqrt(q.w * q.w + q.x * q.x + q.y * q.y + q.z * q.z);
+        if (n == 0.0)
+            set(out, 1.0, 0.0, 0.0, 0.0);
+        else
+            set(out, q.w / n, q.x / n, q.y / n, q.z / n);
+    }
+
+    // out = q v q*, for a unit quaternion q
+    public static void rotate(Quat q, Vect3F v, Vect3F out)
+    {
+        // t = 2 (q.xyz x v); out = v + w t + q.xyz x t
+        double tx = 2.0 * (q.y * v.z - q.z * v.y);
+        double ty = 2.0 * (q.z * v.x - q.x * v.z);
+        double tz = 2.0 * (q.x * v.y - q.y * v.x);
+        set(out,
+            v.x + q.w * tx + q.y * tz - q.z * ty,
+            v.y + q.w * ty + q.z * tx - q.x * tz,
+            v.z + q.w * tz + q.x * ty - q.y * tx);
+    }
+
+    // Body x axis expressed in the reference frame, i.e. the first column
+    // of the rotation matrix of unit quaternion q
+    public static void axisX(Quat q, Vect3F out)
+    {
+        set(out,
+            1.0 - 2.0 * (q.y * q.y + q.z * q.z),
+            2.0 * (q.x * q.y + q.w * q.z),
+            2.0 * (q.x * q.z - q.w * q.y));
+    }
+
+    public static double dot(Vect3F a, Vect3F b)
+    {
+        return a.x * b.x + a.y * b.y + a.z * b.z;
+    }
+
+    // out = a x b. out must not alias a or b.
+    public static void cross(Vect3F a, Vect3F b, Vect3F out)
+    {
+        out.x = a.y * b.z - a.z * b.y;
+        out.y = a.z * b.x - a.x * b.z;
+        out.z = a.x * b.y - a.y * b.x;
+    }
+
+    // Rotation vector of the shortest arc taking unit vector from onto unit
+    // vector to, as axis * 2 sin(angle / 2). Matches axis * angle to within
+    // 1% up to about 28 degrees and stays monotonic up to 180, using a single
+    // square root. out must not alias from or to.
+    public static void arcError(Vect3F from, Vect3F to, Vect3F out)
+    {
+        cross(from, to, out);
+
+        // |from x to| = sin(angle) and 1 + cos(angle) = 2 cos^2(angle / 2)
+        double c = 1.0 + dot(from, to);
+        if (c < 1e-9)
+            c = 1e-9;
+        double scale = Math.sqrt(2.0 / c);
+
+        out.x *= scale;
+        out.y *= scale;
+        out.z *= scale;
+    }
+}
@@ -23,6 +23,22 @@ class RateController
     }
 
     public Vect3F getOutput(Vect3F sensor_rates)
+    {
+        Vect3F thrust_adj = new Vect3F();
+        getOutput(sensor_rates, thrust_adj);
+        return thrust_adj;
+    }
+
+    // In-place variant: writes the thrust adjustments to thrust_adj, which
+    // may be the same object as sensor_rates
+    public void getOutput(Vect3F sensor_rates, Vect3F thrust_adj)
+    {
+        getOutput(sensor_rates, thrust_adj, 0);
+    }
+
+    // As above for a tick dt_nanos after the previous one, with the I and D
+    // terms scaled to match (see MiniPID.getOutput). 0 assumes one nominal period.
+    public void getOutput(Vect3F sensor_rates, Vect3F thrust_adj, long dt_nanos)
     {
         double sensor_roll_rate = sensor_rates.y;
         double sensor_pitch_rate = sensor_rates.x;
@@ -38,17 +54,38 @@ class RateController
         double pitch_thrust_adj = 0.0;
         double yaw_thrust_adj = 0.0;
         
-        roll_thrust_adj  = m_roll_rate_pid.getOutput(sensor_roll_rate);
-        pitch_thrust_adj = m_pitch_rate_pid.getOutput(sensor_pitch_rate);
-        yaw_thrust_adj   = m_yaw_rate_pid.getOutput(sensor_yaw_rate);
+        roll_thrust_adj  = m_roll_rate_pid.getOutput(sensor_roll_rate, m_roll_rate_pid.getSetpoint(), dt_nanos);
+        pitch_thrust_adj = m_pitch_rate_pid.getOutput(sensor_pitch_rate, m_pitch_rate_pid.getSetpoint(), dt_nanos);
+        yaw_thrust_adj   = m_yaw_rate_pid.getOutput(sensor_yaw_rate, m_yaw_rate_pid.getSetpoint(), dt_nanos);
 
-        // Format and return thrust adjustments
-        Vect3F thrust_adj = new Vect3F();
+        // Format thrust adjustments
         thrust_adj.x = roll_thrust_adj;
         thrust_adj.y = pitch_thrust_adj;
         thrust_adj.z = yaw_thrust_adj;
+    }
 
-        return thrust_adj;
+    // Changes the gains without clearing the integrators, whose state is
+    // rescaled to keep the I term's output the same
+    public void setGains(Vect3F roll, Vect3F pitch, Vect3F yaw)
+    {
+        m_roll_rate_pid.setPID(roll.x, roll.y, roll.z);
+        m_pitch_rate_pid.setPID(pitch.x, pitch.y, pitch.z);
+        m_yaw_rate_pid.setPID(yaw.x, yaw.y, yaw.z);
+    }
+
+    // P, I and D terms of the last output of each axis, as x, y and z
+    public void getTerms(Vect3F roll, Vect3F pitch, Vect3F yaw)
+    {
+        getTerms(m_roll_rate_pid, roll);
+        getTerms(m_pitch_rate_pid, pitch);
+        getTerms(m_yaw_rate_pid, yaw);
+    }
+
+    static void getTerms(MiniPID pid, Vect3F terms)
+    {
+        terms.x = pid.getLastPOutput();
+        terms.y = pid.getLastIOutput();
+        terms.z = pid.getLastDOutput();
     }
 
     public void reset(Vect3F roll, Vect3F pitch, Vect3F yaw)
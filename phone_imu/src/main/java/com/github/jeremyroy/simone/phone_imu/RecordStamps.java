@@ -0,0 +1,22 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Nanosecond timestamps kept in records of doubles, as passed through
+// SpscRing, Decimator and FlightRecorder. A stamp is stored as the raw bits
+// of its long, not converted: a double only holds 53 bits exactly, which
+// would round a nanosecond clock to the microsecond or worse. The stored
+// value is meaningless as a number, so it must be copied, never averaged;
+// mark its field with Decimator.setLatest().
+final class RecordStamps
+{
+    private RecordStamps() {}
+
+    public static void put(double[] record, int index, long nanos)
+    {
+        record[index] = Double.longBitsToDouble(nanos);
+    }
+
+    public static long get(double[] record, int index)
+    {
+        return Double.doubleToRawLongBits(record[index]);
+    }
+}
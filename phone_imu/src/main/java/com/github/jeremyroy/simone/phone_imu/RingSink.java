@@ -0,0 +1,78 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Keeps the most recent samples written by Motors in memory. Writes never
+// block, so the synthesizer runs as fast as the CPU allows. The contents
+// should only be read from the writing thread or once Motors has stopped.
+public class RingSink implements MotorSink
+{
+    private final short[] m_ring;
+    private final int m_buffer_size;
+
+    private long m_written;
+
+    // capacity and bufferSize are in samples
+    public RingSink(int capacity, int bufferSize)
+    {
+        if (capacity <= 0 || (capacity & 1) != 0 || bufferSize <= 0 || (bufferSize & 1) != 0)
+            throw new IllegalArgumentException("Sizes must be positive, even numbers of samples");
+
+        m_ring = new short[capacity];
+        m_buffer_size = bufferSize;
+    }
+
+    @Override
+    public int open(int sampleRate)
+    {
+        m_written = 0;
+        return m_buffer_size;
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length)
+    {
+        // Only the tail of an oversized write survives
+        if (length > m_ring.length) {
+            offset += length - m_ring.length;
+            m_written += length - m_ring.length;
+            length = m_ring.length;
+        }
+
+        int start = (int)(m_written % m_ring.length);
+        int first = Math.min(length, m_ring.length - start);
+        System.arraycopy(samples, offset, m_ring, start, first);
+        System.arraycopy(samples, offset + first, m_ring, 0, length - first);
+
+        m_written += length;
+    }
+
+    @Override
+    public long getPlaybackPosition()
+    {
+        // Consumed as soon as it is written
+        return m_written / 2;
+    }
+
+    @Override
+    public void close()
+    {
+        // Keep the contents around for inspection
+    }
+
+    public long getSamplesWritten()
+    {
+        return m_written;
+    }
+
+    // Copies the most recent dst.length samples, oldest first
+    public void copyTail(short[] dst)
+    {
+        int length = dst.length;
+        if (length > m_ring.length || length > m_written)
+            throw new IllegalArgumentException("Not enough samples in the ring");
+
+        int start = (int)((m_written - length) % m_ring.length);
+        int first = Math.min(length, m_ring.length - start);
+        System.arraycopy(m_ring, start, dst, 0, first);
+        System.arraycopy(m_ring, 0, dst, first, length - first);
+    }
+}
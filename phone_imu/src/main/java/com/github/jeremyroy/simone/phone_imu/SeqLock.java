@@ -0,0 +1,85 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Sequence lock around a small, fixed block of primitive values.
+//
+// Writers bracket their updates with beginWrite()/endWrite() and must be
+// serialized by the caller. Readers never block the writer: they take a
+// stamp with readBegin(), copy the values they need and retry if
+// validate(stamp) fails, which guarantees they saw one coherent update.
+//
+//     int stamp;
+//     do {
+//         stamp = lock.readBegin();
+//         a = lock.getDouble(0);
+//         b = lock.getDouble(1);
+//     } while (!lock.validate(stamp));
+//
+// Values are stored as raw long bits so that every access is a volatile
+// access, which is what makes the optimistic read safe without fences.
+class SeqLock
+{
+    private volatile int m_sequence;
+    private final AtomicLongArray m_values;
+
+    public SeqLock(int size)
+    {
+        m_values = new AtomicLongArray(size);
+    }
+
+    public int size()
+    {
+        return m_values.length();
+    }
+
+    public void beginWrite()
+    {
+        m_sequence++;
+    }
+
+    public void endWrite()
+    {
+        m_sequence++;
+    }
+
+    public void putDouble(int index, double value)
+    {
+        m_values.set(index, Double.doubleToRawLongBits(value));
+    }
+
+    public void putLong(int index, long value)
+    {
+        m_values.set(index, value);
+    }
+
+    // Returns a stamp to validate the read against, waiting out any write in progress
+    public int readBegin()
+    {
+        int stamp = m_sequence;
+        while ((stamp & 1) != 0)
+            stamp = m_sequence;
+        return stamp;
+    }
+
+    public boolean validate(int stamp)
+    {
+        return m_sequence == stamp;
+    }
+
+    public double getDouble(int index)
+    {
+        return Double.longBitsToDouble(m_values.get(index));
+    }
+
+    public long getLong(int index)
+    {
+        return m_values.get(index);
+    }
+
+    // Changes every time a write completes; cheap way to poll for updates
+    public int getSequence()
+    {
+        return m_sequence;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Latest thrust, attitude and yaw rate commands, published to the control
+// loop as one snapshot.
+//
+// Each command callback updates its part of the setpoint and republishes the
+// whole thing through a SeqLock. Writers are serialized with a lock among
+// themselves; the control loop never blocks and always reads a consistent
+// set of values. Commands arriving between two ticks coalesce, and the tick
+// only sees the latest combination.
+class SetpointMailbox
+{
+    private static final int THRUST = 0;
+    private static final int ROLL = 1;
+    private static final int PITCH = 2;
+    private static final int YAW = 3;
+
+    private final SeqLock m_values = new SeqLock(4);
+
+    // Writer side copy, guarded by this
+    private final Setpoint m_pending = new Setpoint();
+
+    public synchronized void setThrust(double thrust)
+    {
+        m_pending.thrust = thrust;
+        publish();
+    }
+
+    public synchronized void setAttitude(double roll, double pitch)
+    {
+        m_pending.roll = roll;
+        m_pending.pitch = pitch;
+        publish();
+    }
+
+    public synchronized void setYawrate(double yaw)
+    {
+        m_pending.yaw = yaw;
+        publish();
+    }
+
+    private void publish()
+    {
+        m_values.beginWrite();
+        m_values.putDouble(THRUST, m_pending.thrust);
+        m_values.putDouble(ROLL, m_pending.roll);
+        m_values.putDouble(PITCH, m_pending.pitch);
+        m_values.putDouble(YAW, m_pending.yaw);
+        m_values.endWrite();
+    }
+
+    // Copies the latest setpoint into out. Returns false, leaving out
+    // untouched, if nothing was published since out was last filled.
+    public boolean read(Setpoint out)
+    {
+        if (m_values.getSequence() == out.m_sequence)
+            return false;
+
+        int stamp;
+        do {
+            stamp = m_values.readBegin();
+            out.thrust = m_values.getDouble(THRUST);
+            out.roll = m_values.getDouble(ROLL);
+            out.pitch = m_values.getDouble(PITCH);
+            out.yaw = m_values.getDouble(YAW);
+        } while (!m_values.validate(stamp));
+
+        out.m_sequence = stamp;
+        return true;
+    }
+
+    // One consistent set of commands. Owned by the reading thread.
+    public static class Setpoint
+    {
+        public double thrust;
+        public double roll;
+        public double pitch;
+        public double yaw;
+
+        private int m_sequence;
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded, lock-free queue of fixed-width records of doubles, for exactly one
+// producer thread and one consumer thread.
+//
+// Records are copied in and out of one preallocated array, so neither side
+// allocates. The producer never blocks: offering to a full ring drops the
+// record and counts it. The consumer either polls or blocks in take(), in
+// which case the producer unparks it after publishing.
+class SpscRing
+{
+    private final int m_width;
+    private final int m_mask;
+    private final double[] m_records;
+
+    // Next slot to write and next slot to read, each only written by its own
+    // side. The head is a full volatile store so that a consumer about to
+    // park either sees the new record or is seen as waiting.
+    private final AtomicLong m_head = new AtomicLong();
+    private final AtomicLong m_tail = new AtomicLong();
+
+    // Producer side cache of the tail, to avoid reading it on every offer
+    private long m_tail_cache;
+
+    private volatile Thread m_waiter;
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    // capacity is rounded up to a power of two
+    public SpscRing(int capacity, int width)
+    {
+        if (capacity <= 0 || width <= 0)
+            throw new IllegalArgumentException("Capacity and width must be positive");
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        m_width = width;
+        m_mask = size - 1;
+        m_records = new double[size * width];
+    }
+
+    public int getWidth()
+    {
+        return m_width;
+    }
+
+    // Producer: copies record[0..width) into the ring. Returns false and
+    // counts a drop if the ring is full.
+    public boolean offer(double[] record)
+    {
+        long head = m_head.get();
+        if (head - m_tail_cache > m_mask) {
+            m_tail_cache = m_tail.get();
+            if (head - m_tail_cache > m_mask) {
+                m_dropped.incrementAndGet();
+                return false;
+            }
+        }
+
+        System.arraycopy(record, 0, m_records, (int)(head & m_mask) * m_width, m_width);
+        m_head.set(head + 1);
+
+        Thread waiter = m_waiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+        return true;
+    }
+
+    // Consumer: copies the oldest record into record[0..width). Returns
+    // false if the ring is empty.
+    public boolean poll(double[] record)
+    {
+        long tail = m_tail.get();
+        if (tail == m_head.get())
+            return false;
+
+        System.arraycopy(m_records, (int)(tail & m_mask) * m_width, record, 0, m_width);
+        m_tail.lazySet(tail + 1);
+        return true;
+    }
+
+    // Consumer: like poll(), but waits for a record to arrive
+    public void take(double[] record) throws InterruptedException
+    {
+        if (poll(record))
+            return;
+
+        m_waiter = Thread.currentThread();
+        try {
+            while (!poll(record)) {
+                LockSupport.park(this);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            m_waiter = null;
+        }
+    }
+
+    // Consumer: like take(), but gives up and returns false after timeout_ns
+    public boolean poll(double[] record, long timeout_ns) throws InterruptedException
+    {
+        if (poll(record))
+            return true;
+
+        long deadline = System.nanoTime() + timeout_ns;
+        m_waiter = Thread.currentThread();
+        try {
+            while (!poll(record)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return true;
+        } finally {
+            m_waiter = null;
+        }
+    }
+
+    // Records currently queued
+    public int size()
+    {
+        return (int)(m_head.get() - m_tail.get());
+    }
+
+    public AtomicLong getDropped()
+    {
+        return m_dropped;
+    }
+}
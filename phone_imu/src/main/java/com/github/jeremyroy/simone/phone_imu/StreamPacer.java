@@ -0,0 +1,134 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Paces small writes to a real-time sink so that only about two chunks of
+// audio are ever queued ahead of the playback head, instead of a whole
+// minimum-size buffer.
+//
+// The queue depth is the number of frames written minus the sink's playback
+// position. If the head has caught up with everything written by the time
+// the next chunk is ready, the sink ran dry: that is counted as an underrun
+// and the chunk size is doubled. After STABLE_SECONDS of audio without an
+// underrun the chunk shrinks again by one step, down to the minimum.
+//
+// All methods except the metric getters must be called from the audio thread.
+class StreamPacer
+{
+    private static final int STABLE_SECONDS = 2;
+
+    private final int m_sample_rate;
+
+    private int m_min_chunk;           // Smallest chunk and shrink step, in frames
+    private int m_max_chunk;           // Largest chunk, in frames
+    private int m_chunk;               // Current chunk, in frames
+    private long m_written;            // Frames written since start()
+    private long m_stable;             // Frames written since the last underrun or resize
+
+    private volatile int m_chunk_size;
+    private volatile long m_depth;
+    private final AtomicLong m_underruns = new AtomicLong();
+    private final LatencyHistogram m_depth_histogram = new LatencyHistogram();
+
+    public StreamPacer(int sampleRate)
+    {
+        m_sample_rate = sampleRate;
+    }
+
+    // Chunk sizes are in frames; minChunk is normally one PWM period
+    public void start(int minChunk, int maxChunk)
+    {
+        m_min_chunk = Math.max(1, Math.min(minChunk, maxChunk));
+        m_max_chunk = Math.max(m_min_chunk, maxChunk);
+        m_chunk = m_min_chunk;
+        m_chunk_size = m_chunk;
+        m_written = 0;
+        m_stable = 0;
+    }
+
+    // Changes the smallest chunk when the PWM period changes, and starts
+    // the chunk over from it as start() does
+    public void setMinChunk(int minChunk)
+    {
+        m_min_chunk = Math.max(1, Math.min(minChunk, m_max_chunk));
+        resize(m_min_chunk);
+    }
+
+    public int getMinChunk()
+    {
+        return m_min_chunk;
+    }
+
+    // Number of frames to render for the next write
+    public int getChunk()
+    {
+        return m_chunk;
+    }
+
+    // Blocks until the sink has room for the next chunk without queueing
+    // more than two chunks, updating the depth and underrun metrics.
+    public void awaitRoom(MotorSink sink)
+    {
+        long depth = m_written - sink.getPlaybackPosition();
+
+        if (m_written > 0 && depth <= 0) {
+            m_underruns.incrementAndGet();
+            resize(Math.min(2 * m_chunk, m_max_chunk));
+            depth = 0;
+        } else {
+            while (depth > m_chunk) {
+                LockSupport.parkNanos(framesToNanos(depth - m_chunk));
+                depth = m_written - sink.getPlaybackPosition();
+            }
+        }
+
+        m_depth = depth;
+        m_depth_histogram.record(framesToNanos(depth));
+    }
+
+    // Called once the chunk has been handed to the sink
+    public void wrote(int frames)
+    {
+        m_written += frames;
+        m_stable += frames;
+
+        if (m_stable >= (long)STABLE_SECONDS * m_sample_rate && m_chunk > m_min_chunk)
+            resize(Math.max(m_chunk - m_min_chunk, m_min_chunk));
+    }
+
+    private void resize(int chunk)
+    {
+        m_chunk = chunk;
+        m_chunk_size = chunk;
+        m_stable = 0;
+    }
+
+    private long framesToNanos(long frames)
+    {
+        return frames * 1000000000L / m_sample_rate;
+    }
+
+    // Current chunk size, in frames
+    public int getChunkSize()
+    {
+        return m_chunk_size;
+    }
+
+    // Frames queued ahead of the playback head before the last write
+    public long getDepth()
+    {
+        return m_depth;
+    }
+
+    public long getUnderruns()
+    {
+        return m_underruns.get();
+    }
+
+    public void addTo(DiagnosticsPublisher diagnostics, String prefix)
+    {
+        diagnostics.addHistogram(prefix + "buffer depth", m_depth_histogram);
+        diagnostics.addCounter(prefix + "underruns", m_underruns);
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// Streams the motor waveform to a 16 bit stereo WAV file. The RIFF sizes are
+// patched in when the sink is closed, so the file is only valid after close().
+public class WavFileSink implements MotorSink
+{
+    private static final int HEADER_SIZE = 44;
+
+    private final File m_file;
+    private final int m_buffer_size;
+    private final byte[] m_bytes;
+
+    private RandomAccessFile m_out = null;
+    private int m_sample_rate;
+    private long m_data_size;
+
+    public WavFileSink(File file)
+    {
+        this(file, 4096);
+    }
+
+    // bufferSize is the number of samples rendered per write
+    public WavFileSink(File file, int bufferSize)
+    {
+        if (bufferSize <= 0 || (bufferSize & 1) != 0)
+            throw new IllegalArgumentException("Buffer size must be a positive, even number of samples");
+
+        m_file = file;
+        m_buffer_size = bufferSize;
+        m_bytes = new byte[2 * bufferSize];
+    }
+
+    @Override
+    public int open(int sampleRate) throws IOException
+    {
+        m_sample_rate = sampleRate;
+        m_data_size = 0;
+
+        m_out = new RandomAccessFile(m_file, "rw");
+        m_out.setLength(0);
+        writeHeader();
+
+        return m_buffer_size;
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length) throws IOException
+    {
+        while (length > 0) {
+            int count = Math.min(length, m_buffer_size);
+            for (int i = 0; i < count; i++) {
+                short sample = samples[offset + i];
+                m_bytes[2 * i] = (byte)sample;
+                m_bytes[2 * i + 1] = (byte)(sample >> 8);
+            }
+            m_out.write(m_bytes, 0, 2 * count);
+            m_data_size += 2 * count;
+
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public long getPlaybackPosition()
+    {
+        // Written straight to the file, nothing is ever queued
+        return m_data_size / 4;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (m_out == null)
+            return;
+
+        try {
+            writeHeader();
+        } finally {
+            m_out.close();
+            m_out = null;
+        }
+    }
+
+    public long getSamplesWritten()
+    {
+        return m_data_size / 2;
+    }
+
+    private void writeHeader() throws IOException
+    {
+        int channels = 2;
+        int bytes_per_sample = 2;
+
+        m_out.seek(0);
+        m_out.writeBytes("RIFF");
+        writeIntLE((int)(HEADER_SIZE - 8 + m_data_size));
+        m_out.writeBytes("WAVE");
+
+        m_out.writeBytes("fmt ");
+        writeIntLE(16);
+        writeShortLE(1); // PCM
+        writeShortLE(channels);
+        writeIntLE(m_sample_rate);
+        writeIntLE(m_sample_rate * channels * bytes_per_sample);
+        writeShortLE(channels * bytes_per_sample);
+        writeShortLE(8 * bytes_per_sample);
+
+        m_out.writeBytes("data");
+        writeIntLE((int)m_data_size);
+
+        m_out.seek(HEADER_SIZE + m_data_size);
+    }
+
+    private void writeIntLE(int value) throws IOException
+    {
+        m_out.write(value);
+        m_out.write(value >> 8);
+        m_out.write(value >> 16);
+        m_out.write(value >> 24);
+    }
+
+    private void writeShortLE(int value) throws IOException
+    {
+        m_out.write(value);
+        m_out.write(value >> 8);
+    }
+}
@@ -40,6 +40,16 @@ public class MiniPID{
 
 	private double setpointRange=0;
 
+	private long nominalPeriod=20000000L;
+
+	// Bounds on a measured step, in nominal periods
+	private static final double MIN_STEP=0.25;
+	private static final double MAX_STEP=4.0;
+
+	private double lastPoutput=0;
+	private double lastIoutput=0;
+	private double lastDoutput=0;
+
 	//**********************************
 	// Constructor functions
 	//**********************************
@@ -98,10 +108,14 @@ public class MiniPID{
 	 * @param i New gain value for the Integral term
 	 */
 	public void setI(double i){
-		if(I!=0){
+		if(I!=0 && i!=0){
 			errorSum=errorSum*I/i;
 			}
-		if(maxIOutput!=0){
+		else{
+			// No I output to preserve, or none to preserve it with
+			errorSum=0;
+		}
+		if(maxIOutput!=0 && i!=0){
 			maxError=maxIOutput/i;
 		}
 		I=i;
@@ -250,6 +264,33 @@ public class MiniPID{
 	 * @return calculated output value for driving the system
 	 */
 	public double getOutput(double actual, double setpoint){
+		return calculate(actual,setpoint,1.0);
+	}
+
+	/**
+	 * Calculate the output value for a PID cycle of measured length.<br>
+	 * The I and D gains, output ramp rate and output filter are all
+	 * specified per nominal period (see {@link #setNominalPeriod(long)}). 
+	 * This scales the integral and ramp by dt/nominal and the derivative by nominal/dt, 
+	 * so the same gains hold at any loop rate and through jitter. 
+	 * With dt equal to the nominal period this matches {@link #getOutput(double, double)}.
+	 * @param actual The monitored value, typically as a sensor input.
+	 * @param setpoint The target value for the system
+	 * The step is held between a quarter and four nominal periods, so two cycles 
+	 * run back to back cannot multiply the D term, nor a late one the I term and ramp, 
+	 * by more than four.
+	 * @param dtNanos Time since the previous cycle, in nanoseconds from a monotonic 
+	 * clock such as System.nanoTime(). Zero or less is taken as one nominal period.
+	 * @return calculated output value for driving the system
+	 */
+	public double getOutput(double actual, double setpoint, long dtNanos){
+		if(dtNanos<=0){
+			return calculate(actual,setpoint,1.0);
+		}
+		return calculate(actual,setpoint,constrain((double)dtNanos/nominalPeriod,MIN_STEP,MAX_STEP));
+	}
+
+	private double calculate(double actual, double setpoint, double step){
 		double output;
 		double Poutput;
 		double Ioutput;
@@ -284,7 +325,7 @@ public class MiniPID{
 		// Calculate D Term
 		// Note, this is negative. This actually "slows" the system if it's doing
 		// the correct thing, and small values helps prevent output spikes and overshoot 
-		Doutput= -D*(actual-lastActual);
+		Doutput= -D*(actual-lastActual)/step;
 		lastActual=actual;
 
 		// The Iterm is more complex. There's several things to factor in to make it easier to deal with.
@@ -298,36 +339,41 @@ public class MiniPID{
 
 		// And, finally, we can just add the terms up
 		output=Foutput + Poutput + Ioutput + Doutput;
+		lastPoutput=Poutput;
+		lastIoutput=Ioutput;
+		lastDoutput=Doutput;
 
 		// Figure out what we're doing with the error.
+		double rampRate=outputRampRate*step;
 		if(minOutput!=maxOutput && !bounded(output, minOutput,maxOutput) ){
-			errorSum=error; 
+			errorSum=error*step; 
 			// reset the error sum to a sane level
 			// Setting to current error ensures a smooth transition when the P term 
 			// decreases enough for the I term to start acting upon the controller
 			// From that point the I term will build up as would be expected
 		}
-		else if(outputRampRate!=0 && !bounded(output, lastOutput-outputRampRate,lastOutput+outputRampRate) ){
-			errorSum=error; 
+		else if(outputRampRate!=0 && !bounded(output, lastOutput-rampRate,lastOutput+rampRate) ){
+			errorSum=error*step; 
 		}
 		else if(maxIOutput!=0){
-			errorSum=constrain(errorSum+error,-maxError,maxError);
+			errorSum=constrain(errorSum+error*step,-maxError,maxError);
 			// In addition to output limiting directly, we also want to prevent I term 
 			// buildup, so restrict the error directly
 		}
 		else{
-			errorSum+=error;
+			errorSum+=error*step;
 		}
 
 		// Restrict output to our specified output and ramp limits
 		if(outputRampRate!=0){
-			output=constrain(output, lastOutput-outputRampRate,lastOutput+outputRampRate);
+			output=constrain(output, lastOutput-rampRate,lastOutput+rampRate);
 		}
 		if(minOutput!=maxOutput){ 
 			output=constrain(output, minOutput,maxOutput);
 			}
 		if(outputFilter!=0){
-			output=lastOutput*outputFilter+output*(1-outputFilter);
+			double filter=Math.pow(outputFilter,step);
+			output=lastOutput*filter+output*(1-filter);
 		}
 
 		// Get a test printline with lots of details about the internal 
@@ -374,6 +420,45 @@ public class MiniPID{
 		errorSum=0;
 	}
 
+	/**
+	 * Set the cycle length the gains are tuned for, used by 
+	 * {@link #getOutput(double, double, long)}. Defaults to 20ms. 
+	 * @param nanos nominal period in nanoseconds
+	 */
+	public void setNominalPeriod(long nanos){
+		if(nanos>0){
+			nominalPeriod=nanos;
+		}
+	}
+
+	/**
+	 * @return the P term of the last output, before any limits, ramping or filtering
+	 */
+	public double getLastPOutput(){
+		return lastPoutput;
+	}
+
+	/**
+	 * @return the I term of the last output, after the I output limit
+	 */
+	public double getLastIOutput(){
+		return lastIoutput;
+	}
+
+	/**
+	 * @return the D term of the last output
+	 */
+	public double getLastDOutput(){
+		return lastDoutput;
+	}
+
+	/**
+	 * @return the current setpoint
+	 */
+	public double getSetpoint(){
+		return setpoint;
+	}
+
 	/**
      * Set the maximum rate the output can increase per cycle.<br>
      * This can prevent sharp jumps in output when changing setpoints or 
@@ -0,0 +1,89 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.Random;
+
+// Compares the per-tick cost of the Euler (quat2Euler) and quaternion-native
+// attitude error paths, and how closely their outputs agree, on random
+// attitudes around random desired attitudes. Heading is left fully random
+// since neither path controls it. AttitudeControllerTest checks the
+// agreement.
+//
+// Usage: AttitudeBenchmark [ticks] [max tilt, degrees]
+public class AttitudeBenchmark
+{
+    private static final int SAMPLES = 4096;
+
+    public static void main(String[] args)
+    {
+        int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        double max_tilt = Math.toRadians(args.length > 1 ? Double.parseDouble(args[1]) : 20.0);
+
+        Random random = new Random(1);
+        Quat[] samples = new Quat[SAMPLES];
+        Vect3F[] setpoints = new Vect3F[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = imuQuat(random.nextDouble() * 2 * Math.PI - Math.PI,
+                    (random.nextDouble() * 2 - 1) * max_tilt,
+                    (random.nextDouble() * 2 - 1) * max_tilt);
+            setpoints[i] = new Vect3F((random.nextDouble() * 2 - 1) * max_tilt / 2,
+                    (random.nextDouble() * 2 - 1) * max_tilt / 2, 0.0);
+        }
+
+        // Unit proportional gains, so outputs are the attitude errors
+        AttitudeController euler = new AttitudeController(new Vect3F(1, 0, 0), new Vect3F(1, 0, 0));
+        AttitudeController quat = new AttitudeController(new Vect3F(1, 0, 0), new Vect3F(1, 0, 0));
+        Vect3F orientation = new Vect3F();
+        Vect3F out_euler = new Vect3F();
+        Vect3F out_quat = new Vect3F();
+
+        double max_diff = 0, max_error = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            euler.setDesiredAtt(setpoints[i]);
+            quat.setDesiredAtt(setpoints[i]);
+            ControlChain.quat2Euler(samples[i], orientation);
+            euler.getOutput(orientation, out_euler);
+            quat.getOutput(samples[i], out_quat);
+
+            max_diff = Math.max(max_diff, Math.max(Math.abs(out_euler.x - out_quat.x),
+                    Math.abs(out_euler.y - out_quat.y)));
+            max_error = Math.max(max_error, Math.max(Math.abs(out_euler.x), Math.abs(out_euler.y)));
+        }
+
+        // Hold one setpoint, as between attitude commands
+        euler.setDesiredAtt(setpoints[0]);
+        quat.setDesiredAtt(setpoints[0]);
+
+        double sink = 0;
+        double euler_ns = 0, quat_ns = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ticks; i++) {
+                ControlChain.quat2Euler(samples[i & (SAMPLES - 1)], orientation);
+                euler.getOutput(orientation, out_euler);
+                sink += out_euler.x;
+            }
+            euler_ns = (double)(System.nanoTime() - start) / ticks;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ticks; i++) {
+                quat.getOutput(samples[i & (SAMPLES - 1)], out_quat);
+                sink += out_quat.x;
+            }
+            quat_ns = (double)(System.nanoTime() - start) / ticks;
+        }
+
+        System.out.printf("euler path:      %6.1f ns/tick%n", euler_ns);
+        System.out.printf("quaternion path: %6.1f ns/tick (%.2fx)%n", quat_ns, euler_ns / quat_ns);
+        System.out.printf("max tilt %.0f deg: largest error %.4f rad, largest difference %.4f rad%n",
+                Math.toDegrees(max_tilt), max_error, max_diff);
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static Quat imuQuat(double heading, double pitch, double roll)
+    {
+        Quat q = new Quat();
+        QuadSim.imuQuat(heading, pitch, roll, q);
+        return q;
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+// The quaternion-native attitude error against the Euler path it replaces,
+// on random attitudes around random desired attitudes with random heading
+public class AttitudeControllerTest
+{
+    private static final int SAMPLES = 4096;
+
+    @Test
+    public void quaternionErrorMatchesEulerForSmallTilts()
+    {
+        assertTrue(largestDifference(5.0) < 0.001);
+    }
+
+    @Test
+    public void quaternionErrorStaysCloseToEulerForModerateTilts()
+    {
+        assertTrue(largestDifference(20.0) < 0.05);
+    }
+
+    @Test
+    public void noErrorAtTheDesiredAttitude()
+    {
+        Random random = new Random(2);
+        AttitudeController euler = unitController();
+        AttitudeController quat = unitController();
+        Vect3F orientation = new Vect3F();
+        Vect3F out = new Vect3F();
+        for (int i = 0; i < SAMPLES; i++) {
+            Quat sample = new Quat();
+            QuadSim.imuQuat(random.nextDouble() * 2 * Math.PI - Math.PI,
+                    (random.nextDouble() * 2 - 1) * 0.3, (random.nextDouble() * 2 - 1) * 0.3, sample);
+            ControlChain.quat2Euler(sample, orientation);
+            Vect3F desired = new Vect3F(orientation.x, orientation.y, 0.0);
+            euler.setDesiredAtt(desired);
+            quat.setDesiredAtt(desired);
+
+            euler.getOutput(orientation, out);
+            assertEquals(0.0, out.x, 1e-9);
+            assertEquals(0.0, out.y, 1e-9);
+            quat.getOutput(sample, out);
+            assertEquals(0.0, out.x, 1e-6);
+            assertEquals(0.0, out.y, 1e-6);
+        }
+    }
+
+    // Largest difference between the two paths' roll and pitch outputs,
+    // with tilts and desired tilts within max_tilt and max_tilt / 2 degrees
+    private static double largestDifference(double max_tilt_deg)
+    {
+        double max_tilt = Math.toRadians(max_tilt_deg);
+        Random random = new Random(1);
+        AttitudeController euler = unitController();
+        AttitudeController quat = unitController();
+        Vect3F orientation = new Vect3F();
+        Vect3F out_euler = new Vect3F();
+        Vect3F out_quat = new Vect3F();
+
+        double max_diff = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            Quat sample = new Quat();
+            QuadSim.imuQuat(random.nextDouble() * 2 * Math.PI - Math.PI,
+                    (random.nextDouble() * 2 - 1) * max_tilt, (random.nextDouble() * 2 - 1) * max_tilt, sample);
+            Vect3F desired = new Vect3F((random.nextDouble() * 2 - 1) * max_tilt / 2,
+                    (random.nextDouble() * 2 - 1) * max_tilt / 2, 0.0);
+            euler.setDesiredAtt(desired);
+            quat.setDesiredAtt(desired);
+
+            ControlChain.quat2Euler(sample, orientation);
+            euler.getOutput(orientation, out_euler);
+            quat.getOutput(sample, out_quat);
+            max_diff = Math.max(max_diff, Math.max(Math.abs(out_euler.x - out_quat.x),
+                    Math.abs(out_euler.y - out_quat.y)));
+        }
+        return max_diff;
+    }
+
+    // Unit proportional gains, so outputs are the attitude errors
+    private static AttitudeController unitController()
+    {
+        return new AttitudeController(new Vect3F(1, 0, 0), new Vect3F(1, 0, 0));
+    }
+}
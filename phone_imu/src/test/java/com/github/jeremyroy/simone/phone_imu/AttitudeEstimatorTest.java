@@ -0,0 +1,107 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AttitudeEstimatorTest
+{
+    private static final double G = AttitudeEstimator.GRAVITY;
+
+    // The synthetic flight EstimatorBenchmark times: tumbling about all
+    // three axes at 400 Hz with gyroscope bias and noise on both sensors
+    @Test
+    public void tracksTheTiltOfATumblingPhone()
+    {
+        double[] data = EstimatorBenchmark.simulate(60 * EstimatorBenchmark.RATE, new Random(1));
+        AttitudeEstimator estimator = new AttitudeEstimator();
+        Quat estimate = new Quat();
+        Quat truth = new Quat();
+
+        double sum_sq = 0, worst = 0;
+        int counted = 0;
+        long last = 0;
+        for (int k = 0; k < data.length; k += 11) {
+            long t = (long)data[k];
+            estimator.updateAccel(data[k + 4], data[k + 5], data[k + 6]);
+            estimator.updateGyro(data[k + 1], data[k + 2], data[k + 3], (t - last) * 1e-9);
+            last = t;
+
+            // After two seconds to settle
+            if (t >= 2000000000L) {
+                estimator.getQuaternion(estimate);
+                QuatMath.set(truth, data[k + 7], data[k + 8], data[k + 9], data[k + 10]);
+                double error = EstimatorBenchmark.tiltError(truth, estimate);
+                sum_sq += error * error;
+                worst = Math.max(worst, error);
+                counted++;
+            }
+        }
+        assertTrue(Math.toDegrees(Math.sqrt(sum_sq / counted)) < 1.0);
+        assertTrue(Math.toDegrees(worst) < 2.0);
+    }
+
+    @Test
+    public void learnsTheGyroBiasAtRest()
+    {
+        AttitudeEstimator estimator = new AttitudeEstimator();
+        for (int i = 0; i < 120 * 400; i++) {
+            estimator.updateAccel(0, 0, G);
+            estimator.updateGyro(0.02, -0.015, 0.0, 1.0 / 400);
+        }
+        Vect3F bias = new Vect3F();
+        estimator.getGyroBias(bias);
+        assertEquals(0.02, bias.x, 0.001);
+        assertEquals(-0.015, bias.y, 0.001);
+
+        // And the estimate stays level
+        Quat estimate = new Quat();
+        estimator.getQuaternion(estimate);
+        assertTrue(EstimatorBenchmark.tiltError(new Quat(1, 0, 0, 0), estimate) < Math.toRadians(0.1));
+    }
+
+    @Test
+    public void levelsOnTheFirstAccelerometerReading()
+    {
+        AttitudeEstimator estimator = new AttitudeEstimator();
+        double tilt = Math.toRadians(30);
+        estimator.updateAccel(0, G * Math.sin(tilt), G * Math.cos(tilt));
+        assertTrue(estimator.isInitialized());
+
+        Quat estimate = new Quat();
+        estimator.getQuaternion(estimate);
+        Quat truth = new Quat(Math.cos(tilt / 2), Math.sin(tilt / 2), 0, 0);
+        assertTrue(EstimatorBenchmark.tiltError(truth, estimate) < 1e-9);
+    }
+
+    @Test
+    public void ignoresAccelerationFarFromOneG()
+    {
+        AttitudeEstimator estimator = new AttitudeEstimator();
+        estimator.updateAccel(0, 0, G);
+        for (int i = 0; i < 400; i++) {
+            estimator.updateAccel(2 * G, 0, G);
+            estimator.updateGyro(0, 0, 0, 1.0 / 400);
+        }
+        Quat estimate = new Quat();
+        estimator.getQuaternion(estimate);
+        assertTrue(EstimatorBenchmark.tiltError(new Quat(1, 0, 0, 0), estimate) < 1e-9);
+    }
+
+    @Test
+    public void removesGravityAtRest()
+    {
+        AttitudeEstimator estimator = new AttitudeEstimator();
+        double tilt = Math.toRadians(20);
+        double ay = G * Math.sin(tilt), az = G * Math.cos(tilt);
+        estimator.updateAccel(0, ay, az);
+        Vect3F linear = new Vect3F();
+        estimator.removeGravity(0, ay, az, linear);
+        assertEquals(0.0, linear.x, 1e-9);
+        assertEquals(0.0, linear.y, 1e-9);
+        assertEquals(0.0, linear.z, 1e-9);
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Encodes columns and decodes them back, bit for bit, through every path of
+// the XOR and stamp encodings
+public class ColumnCodecTest
+{
+    @Test
+    public void keepsNaNAndSignedZeroBitForBit()
+    {
+        assertRoundTrip(new double[] { 0.0, -0.0, 0.0, Double.NaN, Double.longBitsToDouble(0x7ff8dead0000beefL),
+                Double.NaN, -0.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE });
+    }
+
+    @Test
+    public void keepsAFullWidthXor()
+    {
+        // XOR of 0x8000000000000001: no leading or trailing zeros
+        double a = Double.longBitsToDouble(0x0123456789abcdefL);
+        double b = Double.longBitsToDouble(0x8123456789abcdeeL);
+        assertRoundTrip(new double[] { a, b, a, b, b, a });
+    }
+
+    @Test
+    public void clampsLeadingZerosToWhatFiveBitsHold()
+    {
+        // XORs with 40 to 63 leading zeros, stored as 31
+        double[] column = new double[48];
+        for (int r = 0; r < column.length; r++)
+            column[r] = Double.longBitsToDouble(r % 2 == 0 ? 0L : 1L << (r % 24));
+        assertRoundTrip(column);
+    }
+
+    @Test
+    public void reusesTheWindowOnlyWhenTheXorFits()
+    {
+        // Narrow XORs inside the first window, then a wider one that does not
+        // fit it, then narrow ones again
+        long base = 0x4059000000000000L;
+        long[] bits = { base, base ^ 0xff00L, base ^ 0x0f00L, base ^ 0x3c00L, base ^ 0xff0000L, base ^ 0x100L,
+                base ^ 0xff0000L, base ^ 0xffffffffffL, base ^ 0x1L, base };
+        double[] column = new double[bits.length];
+        for (int r = 0; r < bits.length; r++)
+            column[r] = Double.longBitsToDouble(bits[r]);
+        assertRoundTrip(column);
+    }
+
+    @Test
+    public void keepsRandomAndSlowlyVaryingValues()
+    {
+        Random random = new Random(1);
+        double[] column = new double[4096];
+        for (int r = 0; r < column.length; r++)
+            column[r] = r % 512 < 256 ? Double.longBitsToDouble(random.nextLong()) : Math.sin(r * 0.01) * 100;
+        assertRoundTrip(column);
+    }
+
+    @Test
+    public void repeatedValuesTakeABitEach()
+    {
+        double[] column = new double[1024];
+        Arrays.fill(column, 42.5);
+        ColumnCodec codec = new ColumnCodec();
+        codec.encodeValues(column, 0, 1, column.length);
+        assertEquals(8 + (1023 + 7) / 8, codec.getLength());
+    }
+
+    @Test
+    public void keepsStampsThatJitterGoBackAndJump()
+    {
+        long[] stamps = { 1000000000L, 1002000000L, 1004000000L, 1004000000L, 1003999000L, 1006100000L,
+                Long.MAX_VALUE, Long.MIN_VALUE, 0L, -1L, 5000000000L };
+        double[] column = new double[stamps.length];
+        for (int r = 0; r < stamps.length; r++)
+            RecordStamps.put(column, r, stamps[r]);
+
+        ColumnCodec codec = new ColumnCodec();
+        codec.encodeStamps(column, 0, 1, column.length);
+        double[] decoded = new double[column.length];
+        codec.decodeStamps(Arrays.copyOf(codec.getBytes(), codec.getLength()), 0, decoded, 0, 1, column.length);
+        for (int r = 0; r < stamps.length; r++)
+            assertEquals(stamps[r], RecordStamps.get(decoded, r));
+    }
+
+    @Test
+    public void regularStampsTakeAByteEach()
+    {
+        double[] column = new double[1000];
+        for (int r = 0; r < column.length; r++)
+            RecordStamps.put(column, r, 123456789000L + r * 2000000L);
+        ColumnCodec codec = new ColumnCodec();
+        codec.encodeStamps(column, 0, 1, column.length);
+        assertTrue(codec.getLength() < 20 + column.length);
+    }
+
+    @Test
+    public void decodesInterleavedColumnsAtAnOffset()
+    {
+        // Three columns stored row by row, the middle one encoded after a
+        // larger column so the reused buffer holds stale bytes
+        Random random = new Random(2);
+        ColumnCodec codec = new ColumnCodec();
+        double[] large = new double[8192];
+        for (int r = 0; r < large.length; r++)
+            large[r] = Double.longBitsToDouble(random.nextLong());
+        codec.encodeValues(large, 0, 1, large.length);
+
+        double[] rows = new double[3 * 100];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = i % 3 == 1 ? Math.floor(random.nextGaussian() * 10) : random.nextDouble();
+        codec.encodeValues(rows, 1, 3, 100);
+
+        byte[] block = new byte[5 + codec.getLength()];
+        System.arraycopy(codec.getBytes(), 0, block, 5, codec.getLength());
+        double[] decoded = new double[3 * 100];
+        codec.decodeValues(block, 5, decoded, 1, 3, 100);
+        for (int r = 0; r < 100; r++)
+            assertEquals(Double.doubleToRawLongBits(rows[3 * r + 1]), Double.doubleToRawLongBits(decoded[3 * r + 1]));
+    }
+
+    private static void assertRoundTrip(double[] column)
+    {
+        ColumnCodec codec = new ColumnCodec();
+        codec.encodeValues(column, 0, 1, column.length);
+        byte[] bytes = Arrays.copyOf(codec.getBytes(), codec.getLength());
+        double[] decoded = new double[column.length];
+        codec.decodeValues(bytes, 0, decoded, 0, 1, column.length);
+        for (int r = 0; r < column.length; r++)
+            assertEquals(Double.doubleToRawLongBits(column[r]), Double.doubleToRawLongBits(decoded[r]));
+    }
+}
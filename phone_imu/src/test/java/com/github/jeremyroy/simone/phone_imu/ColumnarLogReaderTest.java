@@ -0,0 +1,206 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Writes records through ColumnarLogWriter and queries them back through
+// ColumnarLogReader, against the same records kept in memory
+public class ColumnarLogReaderTest
+{
+    private static final int WIDTH = 6;
+    private static final int OTHER_WIDTH = 3;
+
+    @Test
+    public void readsBackAFullBlock() throws IOException
+    {
+        assertRoundTrip(ColumnarLogWriter.BLOCK_ROWS, 1);
+    }
+
+    @Test
+    public void readsBackAFullBlockAndOneRow() throws IOException
+    {
+        assertRoundTrip(ColumnarLogWriter.BLOCK_ROWS + 1, 2);
+    }
+
+    @Test
+    public void readsBackSeveralBlocksOfStampsOutOfOrder() throws IOException
+    {
+        assertRoundTrip(3 * ColumnarLogWriter.BLOCK_ROWS + 17, 4);
+    }
+
+    @Test
+    public void readsOnlyTheQueriedColumnsInTheOrderAsked() throws IOException
+    {
+        File file = File.createTempFile("columnar", ".fdc");
+        try {
+            List<double[]> rows = write(file, 2 * ColumnarLogWriter.BLOCK_ROWS);
+            ColumnarLogReader reader = new ColumnarLogReader(file);
+            try {
+                ColumnarLogReader.Query query = new ColumnarLogReader.Query(FlightRecorder.MOTORS);
+                query.columns = new int[] { FlightRecorder.STAMP, 4, 2 };
+                final List<double[]> read = new ArrayList<double[]>();
+                ColumnarLogReader.Stats stats = reader.query(query, collector(read));
+
+                assertEquals(rows.size(), read.size());
+                for (int r = 0; r < rows.size(); r++) {
+                    assertBits(rows.get(r)[FlightRecorder.STAMP], read.get(r)[0]);
+                    assertBits(rows.get(r)[4], read.get(r)[1]);
+                    assertBits(rows.get(r)[2], read.get(r)[2]);
+                }
+
+                // Two separate runs of columns per block, not the whole block
+                long blocks = 0;
+                for (ColumnarLogReader.Block block : reader.getBlocks()) {
+                    if (block.type == FlightRecorder.MOTORS)
+                        blocks += block.length;
+                }
+                assertEquals(2, stats.blocks_read);
+                assertTrue(stats.bytes_read < blocks);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void filtersOnAColumnAndATimeRange() throws IOException
+    {
+        File file = File.createTempFile("columnar", ".fdc");
+        try {
+            List<double[]> rows = write(file, 3 * ColumnarLogWriter.BLOCK_ROWS);
+            long from = RecordStamps.get(rows.get(500), FlightRecorder.STAMP);
+            long to = RecordStamps.get(rows.get(2500), FlightRecorder.STAMP);
+
+            ColumnarLogReader reader = new ColumnarLogReader(file);
+            try {
+                ColumnarLogReader.Query query = new ColumnarLogReader.Query(FlightRecorder.MOTORS);
+                query.from = from;
+                query.to = to;
+                query.columns = new int[] { FlightRecorder.STAMP, 1 };
+                query.where = 3;
+                query.low = -0.5;
+                query.high = 0.5;
+                List<double[]> read = new ArrayList<double[]>();
+                reader.query(query, collector(read));
+
+                int n = 0;
+                for (double[] row : rows) {
+                    long stamp = RecordStamps.get(row, FlightRecorder.STAMP);
+                    if (stamp < from || stamp > to || !(row[3] >= -0.5 && row[3] <= 0.5))
+                        continue;
+                    assertBits(row[FlightRecorder.STAMP], read.get(n)[0]);
+                    assertBits(row[1], read.get(n)[1]);
+                    n++;
+                }
+                assertEquals(n, read.size());
+                assertTrue(n > 0);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Writes rows motor records interleaved with narrower setpoint records,
+    // then checks every row of both types and the number of motor blocks
+    private static void assertRoundTrip(int rows, int blocks) throws IOException
+    {
+        File file = File.createTempFile("columnar", ".fdc");
+        try {
+            List<double[]> written = write(file, rows);
+            ColumnarLogReader reader = new ColumnarLogReader(file);
+            try {
+                int motor_blocks = 0;
+                for (ColumnarLogReader.Block block : reader.getBlocks()) {
+                    if (block.type == FlightRecorder.MOTORS)
+                        motor_blocks++;
+                }
+                assertEquals(blocks, motor_blocks);
+                assertEquals(WIDTH, reader.getWidth(FlightRecorder.MOTORS));
+                assertEquals(OTHER_WIDTH, reader.getWidth(FlightRecorder.SETPOINT));
+
+                List<double[]> read = new ArrayList<double[]>();
+                ColumnarLogReader.Stats stats = reader.query(new ColumnarLogReader.Query(FlightRecorder.MOTORS),
+                        collector(read));
+                assertEquals(rows, stats.rows);
+                for (int r = 0; r < rows; r++) {
+                    for (int c = 0; c < WIDTH; c++)
+                        assertBits(written.get(r)[c], read.get(r)[c]);
+                }
+
+                read.clear();
+                reader.query(new ColumnarLogReader.Query(FlightRecorder.SETPOINT), collector(read));
+                assertEquals(rows / 3, read.size());
+                for (int r = 0; r < read.size(); r++) {
+                    assertEquals(1000L + r, RecordStamps.get(read.get(r), FlightRecorder.STAMP));
+                    assertBits(r * 0.5, read.get(r)[1]);
+                    assertBits(-r, read.get(r)[2]);
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Motor records with jittered stamps that now and then go back, NaN,
+    // negative zero and random bits, plus a setpoint record every third one
+    private static List<double[]> write(File file, int rows) throws IOException
+    {
+        Random random = new Random(rows);
+        List<double[]> written = new ArrayList<double[]>();
+        ColumnarLogWriter writer = new ColumnarLogWriter(file);
+        long stamp = 5000000000L;
+        double[] other = new double[OTHER_WIDTH];
+        int others = 0;
+        for (int r = 0; r < rows; r++) {
+            stamp += r % 97 == 0 ? -3000000 : 1000000 + random.nextInt(2000);
+            double[] record = new double[WIDTH];
+            RecordStamps.put(record, FlightRecorder.STAMP, stamp);
+            record[1] = r % 50 == 0 ? Double.NaN : 50 + random.nextGaussian();
+            record[2] = r % 7 == 0 ? -0.0 : 0.0;
+            record[3] = random.nextGaussian();
+            record[4] = Double.longBitsToDouble(random.nextLong());
+            record[5] = r / 100;
+            writer.append(FlightRecorder.MOTORS, record, WIDTH);
+            written.add(record);
+
+            if (r % 3 == 2) {
+                RecordStamps.put(other, FlightRecorder.STAMP, 1000L + others);
+                other[1] = others * 0.5;
+                other[2] = -others;
+                writer.append(FlightRecorder.SETPOINT, other, OTHER_WIDTH);
+                others++;
+            }
+        }
+        writer.close();
+        return written;
+    }
+
+    private static ColumnarLogReader.RowHandler collector(final List<double[]> rows)
+    {
+        return new ColumnarLogReader.RowHandler() {
+            @Override
+            public void row(double[] values) {
+                rows.add(values.clone());
+            }
+        };
+    }
+
+    private static void assertBits(double expected, double actual)
+    {
+        assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Times Decimator.add() on records as wide as the flight controller's and
+// the IMU's telemetry, at a 10 Hz telemetry rate, with a consumer thread
+// polling as the publishers do, and checks that the averages and latest
+// values come out right.
+//
+// Usage: DecimatorBenchmark [records] [width]
+public class DecimatorBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+        int[] widths = args.length > 1 ? new int[] { Integer.parseInt(args[1]) } : new int[] { 11, 17 };
+
+        for (int width : widths) {
+            if (!check(width)) {
+                System.out.println("width " + width + ": DECIMATION WRONG");
+                System.exit(1);
+            }
+            run(width, records / 10);       // warm up
+            double ns = run(width, records);
+            System.out.printf("width %d: %.1f ns per add%n", width, ns);
+        }
+    }
+
+    // Average ns per add of records records, the clock advanced 1 ms each
+    private static double run(int width, int records) throws InterruptedException
+    {
+        final Decimator decimator = Decimator.forRate(width, 10);
+        decimator.setLatest(0);
+        final double[] out = new double[width];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    decimator.poll(out);
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        consumer.start();
+
+        double[] record = new double[width];
+        long start = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            RecordStamps.put(record, 0, i * 1000000L);
+            for (int f = 1; f < width; f++)
+                record[f] = i + f;
+            decimator.add(record, i * 1000000L);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        consumer.interrupt();
+        consumer.join();
+        return (double)elapsed / records;
+    }
+
+    // Records 1 ms apart close the first 100 ms window at record 100, so it
+    // covers records 0 to 100, averages field f to 50 + f and keeps the
+    // stamp of record 100
+    private static boolean check(int width)
+    {
+        Decimator decimator = Decimator.forRate(width, 10);
+        decimator.setLatest(0);
+        double[] record = new double[width];
+        for (int i = 0; i <= 100; i++) {
+            RecordStamps.put(record, 0, i * 1000000L);
+            for (int f = 1; f < width; f++)
+                record[f] = i + f;
+            decimator.add(record, i * 1000000L);
+        }
+
+        double[] out = new double[width];
+        if (decimator.poll(out) != 101)
+            return false;
+        if (RecordStamps.get(out, 0) != 100000000L)
+            return false;
+        for (int f = 1; f < width; f++) {
+            if (Math.abs(out[f] - (50.0 + f)) > 1e-9)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,192 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.Random;
+
+// Runs AttitudeEstimator over recorded or synthetic IMU data, reporting the
+// cost per gyroscope sample and, where the true attitude is known, the tilt
+// error (angle between the true and estimated up directions; heading is
+// not observable from the accelerometer and is left out).
+//
+// Recorded data is CSV with one row per gyroscope sample:
+//
+//     t_ns,gx,gy,gz,ax,ay,az[,qw,qx,qy,qz]
+//
+// in the phone frame, with the latest accelerometer reading on each row and
+// optionally a reference attitude. Without a file, a tumbling phone with
+// gyroscope bias and sensor noise is simulated at 400 Hz.
+// AttitudeEstimatorTest checks the accuracy on the same simulation.
+//
+// Usage: EstimatorBenchmark [csv file | seconds]
+public class EstimatorBenchmark
+{
+    static final int RATE = 400;                    // Hz, synthetic data
+    private static final double SETTLE = 2.0;       // s before errors count
+
+    public static void main(String[] args) throws Exception
+    {
+        double[] data;
+        int columns = 11;
+        if (args.length > 0 && !args[0].matches("[0-9.]+")) {
+            data = load(args[0]);
+            columns = data.length > 0 && Double.isNaN(data[data.length - 1]) ? 7 : 11;
+            if (columns == 7)
+                data = strip(data);
+        } else {
+            double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 60.0;
+            data = simulate((int)(seconds * RATE), new Random(1));
+        }
+        int samples = data.length / columns;
+        boolean reference = columns == 11;
+
+        AttitudeEstimator estimator = new AttitudeEstimator();
+        Quat estimate = new Quat();
+        Quat truth = new Quat();
+
+        // Accuracy pass
+        double sum_sq = 0, worst = 0;
+        int counted = 0;
+        long first = (long)data[0];
+        long last = first;
+        for (int i = 0; i < samples; i++) {
+            int k = i * columns;
+            long t = (long)data[k];
+            estimator.updateAccel(data[k + 4], data[k + 5], data[k + 6]);
+            estimator.updateGyro(data[k + 1], data[k + 2], data[k + 3], (t - last) * 1e-9);
+            last = t;
+
+            if (reference && (t - first) * 1e-9 >= SETTLE) {
+                estimator.getQuaternion(estimate);
+                QuatMath.set(truth, data[k + 7], data[k + 8], data[k + 9], data[k + 10]);
+                double error = tiltError(truth, estimate);
+                sum_sq += error * error;
+                worst = Math.max(worst, error);
+                counted++;
+            }
+        }
+
+        // Timing pass, over the same data repeatedly
+        int rounds = Math.max(1, 20000000 / samples);
+        double sink = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            estimator.reset();
+            last = first;
+            for (int i = 0; i < samples; i++) {
+                int k = i * columns;
+                long t = (long)data[k];
+                estimator.updateAccel(data[k + 4], data[k + 5], data[k + 6]);
+                estimator.updateGyro(data[k + 1], data[k + 2], data[k + 3], (t - last) * 1e-9);
+                last = t;
+            }
+            estimator.getQuaternion(estimate);
+            sink += estimate.w;
+        }
+        double ns = (double)(System.nanoTime() - start) / ((long)rounds * samples);
+
+        System.out.printf("%d samples over %.1f s%n", samples, (last - first) * 1e-9);
+        System.out.printf("update: %.1f ns/sample%n", ns);
+        if (counted > 0) {
+            System.out.printf("tilt error after %.0f s: rms %.3f deg, max %.3f deg%n", SETTLE,
+                    Math.toDegrees(Math.sqrt(sum_sq / counted)), Math.toDegrees(worst));
+        }
+        Vect3F bias = new Vect3F();
+        estimator.getGyroBias(bias);
+        System.out.printf("learnt gyro bias: %.4f %.4f %.4f rad/s%n", bias.x, bias.y, bias.z);
+
+        if (sink == 42)
+            System.out.println();
+    }
+
+    // Angle between the up directions of two attitudes
+    static double tiltError(Quat a, Quat b)
+    {
+        double ax = 2.0 * (a.x * a.z - a.w * a.y);
+        double ay = 2.0 * (a.w * a.x + a.y * a.z);
+        double az = a.w * a.w - a.x * a.x - a.y * a.y + a.z * a.z;
+        double bx = 2.0 * (b.x * b.z - b.w * b.y);
+        double by = 2.0 * (b.w * b.x + b.y * b.z);
+        double bz = b.w * b.w - b.x * b.x - b.y * b.y + b.z * b.z;
+        double dot = ax * bx + ay * by + az * bz;
+        return Math.acos(Math.max(-1.0, Math.min(1.0, dot)));
+    }
+
+    // Phone turning about all three axes, with a constant gyroscope bias and
+    // white noise on both sensors
+    static double[] simulate(int samples, Random random)
+    {
+        double[] data = new double[samples * 11];
+        double dt = 1.0 / RATE;
+        double bx = 0.02, by = -0.015, bz = 0.01;
+        Quat q = new Quat(1, 0, 0, 0);
+        for (int i = 0; i < samples; i++) {
+            double t = i * dt;
+            double wx = 1.5 * Math.sin(0.7 * t);
+            double wy = 1.0 * Math.sin(1.1 * t + 1.0);
+            double wz = 0.8 * Math.cos(0.3 * t);
+
+            // Exact rotation over the step
+            double angle = Math.sqrt(wx * wx + wy * wy + wz * wz) * dt;
+            if (angle > 0) {
+                double s = Math.sin(angle / 2) / (angle / dt);
+                Quat step = new Quat(Math.cos(angle / 2), wx * s, wy * s, wz * s);
+                QuatMath.multiply(q, step, q);
+                QuatMath.normalize(q, q);
+            }
+
+            // Up in the phone frame
+            double ux = 2.0 * (q.x * q.z - q.w * q.y);
+            double uy = 2.0 * (q.w * q.x + q.y * q.z);
+            double uz = q.w * q.w - q.x * q.x - q.y * q.y + q.z * q.z;
+
+            int k = i * 11;
+            data[k] = Math.round(t * 1e9);
+            data[k + 1] = wx + bx + 0.01 * random.nextGaussian();
+            data[k + 2] = wy + by + 0.01 * random.nextGaussian();
+            data[k + 3] = wz + bz + 0.01 * random.nextGaussian();
+            data[k + 4] = AttitudeEstimator.GRAVITY * ux + 0.1 * random.nextGaussian();
+            data[k + 5] = AttitudeEstimator.GRAVITY * uy + 0.1 * random.nextGaussian();
+            data[k + 6] = AttitudeEstimator.GRAVITY * uz + 0.1 * random.nextGaussian();
+            data[k + 7] = q.w;
+            data[k + 8] = q.x;
+            data[k + 9] = q.y;
+            data[k + 10] = q.z;
+        }
+        return data;
+    }
+
+    // Reads rows of 7 or 11 columns into rows of 11, padding missing
+    // reference attitudes with NaN
+    private static double[] load(String path) throws Exception
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        double[] data = new double[11 * 1024];
+        int n = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || !Character.isDigit(line.charAt(0)))
+                    continue;
+                String[] fields = line.split(",");
+                if (n + 11 > data.length)
+                    data = java.util.Arrays.copyOf(data, data.length * 2);
+                for (int c = 0; c < 11; c++)
+                    data[n + c] = c < fields.length ? Double.parseDouble(fields[c]) : Double.NaN;
+                n += 11;
+            }
+        } finally {
+            reader.close();
+        }
+        return java.util.Arrays.copyOf(data, n);
+    }
+
+    // Drops the reference columns
+    private static double[] strip(double[] data)
+    {
+        double[] out = new double[data.length / 11 * 7];
+        for (int i = 0, j = 0; i < data.length; i += 11, j += 7)
+            System.arraycopy(data, i, out, j, 7);
+        return out;
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class FlightLogConverterTest
+{
+    @Test
+    public void convertsARawLog() throws IOException
+    {
+        File raw = rawLog();
+        File out = new File(raw.getPath() + ".fdc");
+        try {
+            FlightLogConverter converter = new FlightLogConverter(raw, out);
+            while (converter.step(7))
+                ;
+            converter.close();
+            assertEquals(100, converter.getRecords());
+            assertFalse(new File(out.getPath() + ".tmp").exists());
+
+            ColumnarLogReader reader = new ColumnarLogReader(out);
+            assertEquals(FlightRecorder.SETPOINT_WIDTH, reader.getWidth(FlightRecorder.SETPOINT));
+            reader.close();
+        } finally {
+            raw.delete();
+            out.delete();
+        }
+    }
+
+    @Test
+    public void removesTheTemporaryFileWhenTheRenameFails() throws IOException
+    {
+        File raw = rawLog();
+        // A directory that is not empty cannot be renamed over
+        File out = new File(raw.getPath() + ".fdc");
+        File inside = new File(out, "keep");
+        assertTrue(out.mkdir() && inside.createNewFile());
+        try {
+            FlightLogConverter converter = new FlightLogConverter(raw, out);
+            try {
+                while (converter.step(1000))
+                    ;
+                fail("Conversion into a directory succeeded");
+            } catch (IOException e) {
+                // Expected
+            }
+            converter.close();
+            assertFalse(new File(out.getPath() + ".tmp").exists());
+        } finally {
+            raw.delete();
+            inside.delete();
+            out.delete();
+        }
+    }
+
+    // A small recorded log of 100 setpoint records
+    private static File rawLog() throws IOException
+    {
+        File raw = File.createTempFile("converter", ".fdr");
+        FlightRecorder recorder = new FlightRecorder(raw, 64 * 1024);
+        FlightRecorder.Channel channel = recorder.newChannel("setpoints", FlightRecorder.SETPOINT,
+                FlightRecorder.SETPOINT_WIDTH);
+        recorder.start();
+        double[] record = new double[FlightRecorder.SETPOINT_WIDTH];
+        for (int i = 0; i < 100; i++) {
+            FlightRecorder.Channel.stamp(record, 1000000L * (i + 1));
+            record[FlightRecorder.SETPOINT_THRUST] = i;
+            assertTrue(channel.append(record));
+        }
+        recorder.stop();
+        return raw;
+    }
+}
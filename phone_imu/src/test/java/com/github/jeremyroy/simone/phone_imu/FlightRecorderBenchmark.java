@@ -0,0 +1,113 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.File;
+
+// Times FlightRecorder appends from two producer threads, one writing PID
+// records and one motor records at the given rate, as the flight
+// controller and motor node do, then reads the log back and checks that
+// every record landed, in order.
+//
+// Usage: FlightRecorderBenchmark [seconds] [rate Hz] [log file]
+public class FlightRecorderBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 5.0;
+        final int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        File file = args.length > 2 ? new File(args[2]) : File.createTempFile("recorder", ".fdr");
+
+        final FlightRecorder recorder = new FlightRecorder(file, 64L * 1024 * 1024);
+        final int count = (int)(seconds * rate);
+        Producer pid = new Producer("pid", recorder.newChannel("pid", FlightRecorder.PID, FlightRecorder.PID_WIDTH),
+                count, rate);
+        Producer motors = new Producer("motors", recorder.newChannel("motors", FlightRecorder.MOTORS,
+                FlightRecorder.MOTORS_WIDTH), count, rate);
+        recorder.start();
+        pid.start();
+        motors.start();
+        pid.join();
+        motors.join();
+        recorder.stop();
+
+        for (Producer producer : new Producer[] { pid, motors }) {
+            LatencyHistogram.Summary summary = new LatencyHistogram.Summary();
+            producer.m_append.drain(summary);
+            System.out.printf("%-6s: %d appends, p50 %d ns, p90 %d ns, p99 %d ns, max %d ns, %d dropped%n",
+                    producer.getName(), summary.count, summary.p50, summary.p90, summary.p99, summary.max,
+                    producer.m_dropped);
+        }
+
+        // Every record that was not dropped is in the log, in order
+        FlightLogReader reader = new FlightLogReader(file);
+        double[] record = new double[reader.getMaxWidth()];
+        long[] seen = new long[FlightRecorder.GAINS + 1];
+        long[] last = new long[FlightRecorder.GAINS + 1];
+        boolean ordered = true;
+        while (reader.next(record)) {
+            int type = reader.getType();
+            long stamp = RecordStamps.get(record, FlightRecorder.STAMP);
+            ordered &= stamp > last[type] && record[1] == seen[type];
+            last[type] = stamp;
+            seen[type]++;
+        }
+        reader.close();
+        boolean complete = seen[FlightRecorder.PID] == count - pid.m_dropped
+                && seen[FlightRecorder.MOTORS] == count - motors.m_dropped;
+        System.out.println(complete && ordered ? "log complete and in order"
+                : "LOG MISMATCH: " + seen[FlightRecorder.PID] + " pid and " + seen[FlightRecorder.MOTORS]
+                        + " motor records, " + (ordered ? "in order" : "out of order"));
+        if (args.length <= 2)
+            file.delete();
+        if (!complete || !ordered)
+            System.exit(1);
+    }
+
+    // Appends count records at rate, numbering them in field 1 so the log
+    // can be checked, and times each stamp and append
+    private static class Producer extends Thread
+    {
+        final FlightRecorder.Channel m_channel;
+        final int m_count;
+        final long m_period;
+        final LatencyHistogram m_append = new LatencyHistogram();
+        long m_dropped;
+
+        Producer(String name, FlightRecorder.Channel channel, int count, int rate)
+        {
+            super(name);
+            m_channel = channel;
+            m_count = count;
+            m_period = 1000000000L / rate;
+        }
+
+        @Override
+        public void run()
+        {
+            double[] record = new double[m_channel.getWidth()];
+            long next = System.nanoTime();
+            for (int i = 0; i < m_count; i++) {
+                // Numbered by the records that made it, so drops leave no gap
+                record[1] = i - m_dropped;
+                for (int f = 2; f < record.length; f++)
+                    record[f] = i * 0.001 * f;
+
+                long start = System.nanoTime();
+                FlightRecorder.Channel.stamp(record, start);
+                boolean appended = m_channel.append(record);
+                m_append.record(System.nanoTime() - start);
+                if (!appended)
+                    m_dropped++;
+
+                next += m_period;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Records a synthetic flight the way the flight controller, the IMU and the
+// motor node do, one channel each, reads it back and replays it. The
+// recorder drains channel by channel, so the file is not in stamp order and
+// the replay depends on merging the types by stamp, with gains, setpoints
+// and IMU samples applied before the ticks stamped the same.
+public class FlightReplayTest
+{
+    private static final int TICKS = 2000;
+    private static final int GAINS_CHANGE = 1000;   // tick at which new gains arrive
+    private static final int REPEAT_EVERY = 97;     // ticks rerun on a stale sample
+
+    @Test
+    public void replaysARecordedFlightExactly() throws IOException
+    {
+        File log = recordFlight();
+        try {
+            assertTrue(outOfStampOrder(log));
+
+            FlightReplay.Result result = FlightReplay.replay(log, null, 0.0);
+            assertEquals(TICKS, result.ticks);
+            assertEquals(TICKS, result.compared);
+            assertEquals(TICKS / REPEAT_EVERY, result.compared_by_time);
+            assertEquals(0, result.mismatches);
+            assertEquals(0, result.missing_imu);
+            assertEquals(0, result.unmatched_replayed);
+            assertEquals(0, result.unmatched_recorded);
+            assertEquals(0.0, result.max_term_diff, 0.0);
+            assertEquals(0.0, result.max_motor_diff, 0.0);
+        } finally {
+            log.delete();
+        }
+    }
+
+    @Test
+    public void otherGainsShowAsMismatches() throws IOException
+    {
+        File log = recordFlight();
+        try {
+            double[] gains = { 0.9, 0, 0, 0.9, 0, 0, 2.5, 0, 0, 4.5, 0, 0, 4.5, 0, 0 };
+            FlightReplay.Result result = FlightReplay.replay(log, gains, 1e-9);
+            assertEquals(TICKS, result.compared);
+            assertTrue(result.mismatches > 0);
+            assertTrue(result.max_term_diff > 0);
+        } finally {
+            log.delete();
+        }
+    }
+
+    // Whether some record in the file is stamped before the one it follows
+    private static boolean outOfStampOrder(File log) throws IOException
+    {
+        FlightLogReader reader = new FlightLogReader(log);
+        try {
+            double[] record = new double[reader.getMaxWidth()];
+            long last = Long.MIN_VALUE;
+            while (reader.next(record)) {
+                long stamp = RecordStamps.get(record, FlightRecorder.STAMP);
+                if (stamp < last)
+                    return true;
+                last = stamp;
+            }
+            return false;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // A flight of TICKS jittered ticks with time step aware PIDs: setpoints
+    // changing every 100 ticks, integrating gains from GAINS_CHANGE on, and
+    // every REPEAT_EVERY-th tick rerun on the previous sample, as the control
+    // thread does when the IMU is late
+    private static File recordFlight() throws IOException
+    {
+        File log = File.createTempFile("replay", ".fdr");
+        FlightRecorder recorder = new FlightRecorder(log, 4 * 1024 * 1024);
+        // Created in reverse, so the drain writes the types against the
+        // order they are applied in
+        FlightRecorder.Channel motor_channel = recorder.newChannel("motors", FlightRecorder.MOTORS,
+                FlightRecorder.MOTORS_WIDTH);
+        FlightRecorder.Channel pid_channel = recorder.newChannel("pids", FlightRecorder.PID, FlightRecorder.PID_WIDTH);
+        FlightRecorder.Channel imu_channel = recorder.newChannel("imu", FlightRecorder.IMU, FlightRecorder.IMU_WIDTH);
+        FlightRecorder.Channel setpoint_channel = recorder.newChannel("setpoints", FlightRecorder.SETPOINT,
+                FlightRecorder.SETPOINT_WIDTH);
+        FlightRecorder.Channel gains_channel = recorder.newChannel("gains", FlightRecorder.GAINS,
+                FlightRecorder.GAINS_WIDTH);
+
+        ControllerGains initial = new ControllerGains(new Vect3F(0.7, 0.0, 0.0), new Vect3F(0.7, 0.0, 0.0),
+                new Vect3F(2.5, 0.0, 0.0), new Vect3F(4.5, 0.0, 0.0), new Vect3F(4.5, 0.0, 0.0));
+        ControllerGains changed = new ControllerGains(new Vect3F(0.8, 0.3, 0.02), new Vect3F(0.8, 0.3, 0.02),
+                new Vect3F(2.0, 0.1, 0.0), new Vect3F(5.0, 0.2, 0.01), new Vect3F(5.0, 0.2, 0.01), true);
+        AttitudeController att = new AttitudeController(initial.getRollAtt(), initial.getPitchAtt());
+        RateController rate = new RateController(initial.getRollRate(), initial.getPitchRate(), initial.getYawRate());
+        ControlChain chain = new ControlChain(att, rate);
+
+        Random random = new Random(1);
+        long stamp = 1000000000L;
+        double[] gains_record = new double[FlightRecorder.GAINS_WIDTH];
+        recordGains(gains_record, stamp, initial);
+        gains_channel.append(gains_record);
+
+        SetpointMailbox.Setpoint setpoint = new SetpointMailbox.Setpoint();
+        double[] setpoint_record = new double[FlightRecorder.SETPOINT_WIDTH];
+        double[] imu_record = new double[FlightRecorder.IMU_WIDTH];
+        double[] pid_record = new double[FlightRecorder.PID_WIDTH];
+        double[] motor_record = new double[FlightRecorder.MOTORS_WIDTH];
+        double[] motors = new double[4];
+        Quat q = new Quat();
+        Vect3F terms_1 = new Vect3F();
+        Vect3F terms_2 = new Vect3F();
+        Vect3F terms_3 = new Vect3F();
+        long last_tick = 0;
+        int seq = 0;
+
+        for (int i = 0; i < TICKS; i++) {
+            stamp += 4000000L + random.nextInt(2000000) - 1000000;
+
+            // Arriving at the tick's own stamp, so applied before it
+            if (i == GAINS_CHANGE) {
+                chain.setGains(changed);
+                recordGains(gains_record, stamp, changed);
+                gains_channel.append(gains_record);
+            }
+            if (i % 100 == 0) {
+                setpoint.thrust = 40 + random.nextDouble() * 20;
+                setpoint.roll = (random.nextDouble() * 2 - 1) * 0.3;
+                setpoint.pitch = (random.nextDouble() * 2 - 1) * 0.3;
+                setpoint.yaw = (random.nextDouble() * 2 - 1) * 0.5;
+                chain.setSetpoint(setpoint);
+                FlightRecorder.Channel.stamp(setpoint_record, stamp);
+                setpoint_record[FlightRecorder.SETPOINT_THRUST] = setpoint.thrust;
+                setpoint_record[FlightRecorder.SETPOINT_ROLL] = setpoint.roll;
+                setpoint_record[FlightRecorder.SETPOINT_PITCH] = setpoint.pitch;
+                setpoint_record[FlightRecorder.SETPOINT_YAW] = setpoint.yaw;
+                setpoint_channel.append(setpoint_record);
+            }
+
+            int tick_seq = -1;
+            if (i % REPEAT_EVERY != REPEAT_EVERY - 1) {
+                tick_seq = seq++;
+                QuadSim.imuQuat(random.nextDouble() * 2 * Math.PI - Math.PI, (random.nextDouble() * 2 - 1) * 0.3,
+                        (random.nextDouble() * 2 - 1) * 0.3, q);
+                // Some samples stamped with the tick itself
+                FlightRecorder.Channel.stamp(imu_record, i % 5 == 0 ? stamp : stamp - 500000L);
+                imu_record[FlightRecorder.IMU_SEQ] = tick_seq;
+                imu_record[FlightRecorder.IMU_QW] = q.w;
+                imu_record[FlightRecorder.IMU_QW + 1] = q.x;
+                imu_record[FlightRecorder.IMU_QW + 2] = q.y;
+                imu_record[FlightRecorder.IMU_QW + 3] = q.z;
+                imu_channel.append(imu_record);
+            }
+
+            long dt = last_tick != 0 ? stamp - last_tick : 0;
+            last_tick = stamp;
+            chain.tick(q.w, q.x, q.y, q.z, setpoint.thrust, setpoint.yaw, dt, motors);
+
+            FlightRecorder.Channel.stamp(pid_record, stamp);
+            pid_record[FlightRecorder.PID_SEQ] = tick_seq;
+            pid_record[FlightRecorder.PID_DT] = dt;
+            att.getTerms(terms_1, terms_2);
+            putTerms(pid_record, FlightRecorder.PID_ROLL_ATT, terms_1);
+            putTerms(pid_record, FlightRecorder.PID_PITCH_ATT, terms_2);
+            rate.getTerms(terms_1, terms_2, terms_3);
+            putTerms(pid_record, FlightRecorder.PID_ROLL_RATE, terms_1);
+            putTerms(pid_record, FlightRecorder.PID_PITCH_RATE, terms_2);
+            putTerms(pid_record, FlightRecorder.PID_YAW_RATE, terms_3);
+            pid_channel.append(pid_record);
+
+            // As the motor node records them, a little later and plus two
+            // on motor 4; repeats reach it without their sample
+            FlightRecorder.Channel.stamp(motor_record, stamp + 300000L);
+            System.arraycopy(motors, 0, motor_record, FlightRecorder.MOTORS_1, 4);
+            motor_record[FlightRecorder.MOTORS_1 + 3] += 2.0;
+            motor_record[FlightRecorder.MOTORS_ENABLED] = 1.0;
+            motor_record[FlightRecorder.MOTORS_SEQ] = tick_seq;
+            motor_channel.append(motor_record);
+        }
+
+        // Everything is queued already, so each channel is drained whole
+        recorder.start();
+        recorder.stop();
+        return log;
+    }
+
+    private static void recordGains(double[] record, long stamp, ControllerGains gains)
+    {
+        FlightRecorder.Channel.stamp(record, stamp);
+        putTerms(record, FlightRecorder.GAINS_ROLL_RATE, gains.getRollRate());
+        putTerms(record, FlightRecorder.GAINS_PITCH_RATE, gains.getPitchRate());
+        putTerms(record, FlightRecorder.GAINS_YAW_RATE, gains.getYawRate());
+        putTerms(record, FlightRecorder.GAINS_ROLL_ATT, gains.getRollAtt());
+        putTerms(record, FlightRecorder.GAINS_PITCH_ATT, gains.getPitchAtt());
+        record[FlightRecorder.GAINS_RESET] = gains.isResetIntegrators() ? 1.0 : 0.0;
+        record[FlightRecorder.GAINS_QUATERNION] = 0.0;
+        record[FlightRecorder.GAINS_TIME_STEP_AWARE] = 1.0;
+    }
+
+    private static void putTerms(double[] record, int index, Vect3F terms)
+    {
+        record[index] = terms.x;
+        record[index + 1] = terms.y;
+        record[index + 2] = terms.z;
+    }
+}
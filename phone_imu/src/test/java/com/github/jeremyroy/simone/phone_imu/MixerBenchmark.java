@@ -0,0 +1,121 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.Locale;
+import java.util.Random;
+
+// Times the matrix mixer against the hardcoded quad X mix it replaced, and
+// shows how each one handles a roll command near full thrust. MixerTest
+// checks the mixes.
+//
+// Usage: MixerBenchmark [ticks]
+public class MixerBenchmark
+{
+    private static final int SAMPLES = 4096;
+
+    public static void main(String[] args)
+    {
+        int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+        Random random = new Random(1);
+        double[] inputs = new double[4 * SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            inputs[4 * i] = random.nextDouble() * 100;
+            inputs[4 * i + 1] = random.nextGaussian() * 10;
+            inputs[4 * i + 2] = random.nextGaussian() * 10;
+            inputs[4 * i + 3] = random.nextGaussian() * 5;
+        }
+
+        Mixer clip = Mixer.quadX();
+        clip.setSaturation(Mixer.Saturation.CLIP);
+        Mixer desaturate = Mixer.quadX();
+        double[] out = new double[4];
+        double[] expected = new double[4];
+
+        // The clipping matrix mixer must match the original exactly
+        int mismatches = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            legacyMix(inputs[4 * i], inputs[4 * i + 1], inputs[4 * i + 2], inputs[4 * i + 3], expected);
+            clip.mix(inputs[4 * i], inputs[4 * i + 1], inputs[4 * i + 2], inputs[4 * i + 3], out);
+            for (int m = 0; m < 4; m++) {
+                if (out[m] != expected[m])
+                    mismatches++;
+            }
+        }
+
+        double sink = 0;
+        double legacy_ns = 0, clip_ns = 0, desaturate_ns = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ticks; i++) {
+                int k = 4 * (i & (SAMPLES - 1));
+                legacyMix(inputs[k], inputs[k + 1], inputs[k + 2], inputs[k + 3], out);
+                sink += out[0];
+            }
+            legacy_ns = (double)(System.nanoTime() - start) / ticks;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ticks; i++) {
+                int k = 4 * (i & (SAMPLES - 1));
+                clip.mix(inputs[k], inputs[k + 1], inputs[k + 2], inputs[k + 3], out);
+                sink += out[0];
+            }
+            clip_ns = (double)(System.nanoTime() - start) / ticks;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ticks; i++) {
+                int k = 4 * (i & (SAMPLES - 1));
+                desaturate.mix(inputs[k], inputs[k + 1], inputs[k + 2], inputs[k + 3], out);
+                sink += out[0];
+            }
+            desaturate_ns = (double)(System.nanoTime() - start) / ticks;
+        }
+
+        System.out.printf("hardcoded mix:     %5.1f ns/tick%n", legacy_ns);
+        System.out.printf("matrix, clip:      %5.1f ns/tick, %d mismatches against hardcoded%n",
+                clip_ns, mismatches);
+        System.out.printf("matrix, desaturate: %5.1f ns/tick%n", desaturate_ns);
+
+        // Roll command at 95% thrust
+        System.out.println("thrust 95, roll 10:");
+        legacyMix(95, 10, 0, 0, out);
+        System.out.println("  hardcoded:  " + format(out));
+        desaturate.mix(95, 10, 0, 0, out);
+        System.out.println("  desaturate: " + format(out));
+
+        if (sink == 42)
+            System.out.println();
+    }
+
+    // The mix FlightController.applyThrustAdjustments used to do
+    private static void legacyMix(double thrust, double roll_thrust_adj, double pitch_thrust_adj,
+                                  double yaw_thrust_adj, double[] out)
+    {
+        double motor1_thrust, motor2_thrust, motor3_thrust, motor4_thrust;
+
+        motor4_thrust = thrust - roll_thrust_adj + pitch_thrust_adj + yaw_thrust_adj;
+        motor2_thrust = thrust + roll_thrust_adj - pitch_thrust_adj + yaw_thrust_adj;
+        motor3_thrust = thrust + roll_thrust_adj + pitch_thrust_adj - yaw_thrust_adj;
+        motor1_thrust = thrust - roll_thrust_adj - pitch_thrust_adj - yaw_thrust_adj;
+
+        out[0] = truncate(motor1_thrust, 0.0, 100.0);
+        out[1] = truncate(motor2_thrust, 0.0, 100.0);
+        out[2] = truncate(motor3_thrust, 0.0, 100.0);
+        out[3] = truncate(motor4_thrust, 0.0, 100.0);
+    }
+
+    private static double truncate(double value, double low, double high)
+    {
+        if (value < low)
+            value = low;
+        else if (value > high)
+            value = high;
+        return value;
+    }
+
+    private static String format(double[] motors)
+    {
+        return String.format(Locale.US, "%6.1f %6.1f %6.1f %6.1f (roll differential %.1f)",
+                motors[0], motors[1], motors[2], motors[3],
+                (motors[1] + motors[2] - motors[0] - motors[3]) / 2);
+    }
+}
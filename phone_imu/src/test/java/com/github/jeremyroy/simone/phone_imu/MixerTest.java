@@ -0,0 +1,97 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MixerTest
+{
+    private static final int SAMPLES = 4096;
+
+    @Test
+    public void clippingQuadXMatchesTheHardcodedMix()
+    {
+        Mixer clip = Mixer.quadX();
+        clip.setSaturation(Mixer.Saturation.CLIP);
+        double[] out = new double[4];
+        double[] expected = new double[4];
+
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            double thrust = random.nextDouble() * 100;
+            double roll = random.nextGaussian() * 10;
+            double pitch = random.nextGaussian() * 10;
+            double yaw = random.nextGaussian() * 5;
+            legacyMix(thrust, roll, pitch, yaw, expected);
+            clip.mix(thrust, roll, pitch, yaw, out);
+            for (int m = 0; m < 4; m++)
+                assertEquals(expected[m], out[m], 0.0);
+        }
+    }
+
+    @Test
+    public void desaturationLeavesAMixThatFitsAlone()
+    {
+        Mixer clip = Mixer.quadX();
+        clip.setSaturation(Mixer.Saturation.CLIP);
+        Mixer desaturate = Mixer.quadX();
+        double[] out = new double[4];
+        double[] expected = new double[4];
+
+        Random random = new Random(2);
+        for (int i = 0; i < SAMPLES; i++) {
+            double thrust = 30 + random.nextDouble() * 40;
+            double roll = random.nextGaussian() * 3;
+            double pitch = random.nextGaussian() * 3;
+            double yaw = random.nextGaussian() * 2;
+            clip.mix(thrust, roll, pitch, yaw, expected);
+            desaturate.mix(thrust, roll, pitch, yaw, out);
+            for (int m = 0; m < 4; m++)
+                assertEquals(expected[m], out[m], 0.0);
+        }
+    }
+
+    @Test
+    public void desaturationKeepsTheRollDifferentialNearFullThrust()
+    {
+        // Clipping each motor at 95% thrust cuts a roll of 10 to 15 of 20
+        double[] out = new double[4];
+        Mixer.quadX().mix(95, 10, 0, 0, out);
+        assertEquals(20.0, rollDifferential(out), 1e-9);
+        assertEquals(100.0, Math.max(Math.max(out[0], out[1]), Math.max(out[2], out[3])), 1e-9);
+    }
+
+    @Test
+    public void desaturationScalesAdjustmentsWiderThanTheRange()
+    {
+        double[] out = new double[4];
+        Mixer.quadX().mix(50, 60, 0, 0, out);
+        assertEquals(0.0, out[0], 1e-9);
+        assertEquals(100.0, out[1], 1e-9);
+        assertEquals(100.0, out[2], 1e-9);
+        assertEquals(0.0, out[3], 1e-9);
+    }
+
+    // Roll thrust, from motors 2 and 3 against 1 and 4
+    private static double rollDifferential(double[] motors)
+    {
+        return (motors[1] + motors[2] - motors[0] - motors[3]) / 2;
+    }
+
+    // The mix FlightController.applyThrustAdjustments used to do
+    private static void legacyMix(double thrust, double roll_thrust_adj, double pitch_thrust_adj,
+                                  double yaw_thrust_adj, double[] out)
+    {
+        out[0] = truncate(thrust - roll_thrust_adj - pitch_thrust_adj - yaw_thrust_adj);
+        out[1] = truncate(thrust + roll_thrust_adj - pitch_thrust_adj + yaw_thrust_adj);
+        out[2] = truncate(thrust + roll_thrust_adj + pitch_thrust_adj - yaw_thrust_adj);
+        out[3] = truncate(thrust - roll_thrust_adj + pitch_thrust_adj + yaw_thrust_adj);
+    }
+
+    private static double truncate(double value)
+    {
+        return value < 0.0 ? 0.0 : value > 100.0 ? 100.0 : value;
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.io.File;
+
+// Runs Motors headless against a RingSink or WavFileSink as fast as the CPU
+// allows and reports synthesis throughput. The duties are changed every few
+// milliseconds so template rebuilds are part of the measurement, then held
+// steady at the end and decoded back out of the rendered stream. MotorsTest
+// checks the decoded pulses.
+//
+// Usage: MotorsBenchmark [seconds] [sample rate] [frame rate] [wav file]
+public class MotorsBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 5.0;
+        int sampleRate = args.length > 1 ? Integer.parseInt(args[1]) : 48000;
+        int frameRate = args.length > 2 ? Integer.parseInt(args[2]) : PwmSynth.DEFAULT_FREQ;
+        File wav = args.length > 3 ? new File(args[3]) : null;
+
+        int period = PwmSynth.periodOf(sampleRate, frameRate);
+        RingSink ring = new RingSink(8 * 2 * period, 4096);
+        WavFileSink file = wav != null ? new WavFileSink(wav, 4096) : null;
+        MotorSink sink = file != null ? file : ring;
+
+        Motors motors = new Motors(sampleRate, frameRate, sink);
+
+        long start = System.nanoTime();
+        long end = start + (long)(seconds * 1e9);
+        long hold = end - 100000000L;
+        motors.start_motors();
+
+        // Sweep the duties until shortly before the end
+        int step = 0;
+        while (System.nanoTime() < hold) {
+            double d = (step++ % 100);
+            motors.setAllDuties(d, 100 - d, d / 2, 50 + d / 2);
+            Thread.sleep(2);
+        }
+
+        double[] expected = {25.0, 50.0, 75.0, 100.0};
+        motors.setAllDuties(expected[0], expected[1], expected[2], expected[3]);
+        while (System.nanoTime() < end)
+            Thread.sleep(1);
+
+        motors.stop_motors();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long samples = file != null ? file.getSamplesWritten() : ring.getSamplesWritten();
+        double samples_per_sec = samples / elapsed;
+        double frames_per_sec = samples_per_sec / (2.0 * period);
+
+        System.out.printf("sink:          %s%n", sink.getClass().getSimpleName());
+        System.out.printf("elapsed:       %.3f s%n", elapsed);
+        System.out.printf("samples/sec:   %.0f (%.1fx real time)%n",
+                samples_per_sec, samples_per_sec / (2.0 * sampleRate));
+        System.out.printf("PWM frames/sec: %.0f (%d Hz frame rate)%n", frames_per_sec, frameRate);
+
+        LatencyHistogram.Summary summary = new LatencyHistogram.Summary();
+        motors.getLatency().getWriteToSynth().drain(summary);
+        System.out.printf("write to synth: %d commands, p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                summary.count, summary.p50 / 1e3, summary.p99 / 1e3, summary.max / 1e3);
+
+        if (file == null) {
+            // Decode the last few periods, which were rendered at the held duties
+            short[] tail = new short[8 * 2 * period];
+            ring.copyTail(tail);
+            PwmDecoder decoder = new PwmDecoder(sampleRate, frameRate);
+            decoder.process(tail, 0, tail.length);
+
+            for (int motor = Motors.MOTOR_1; motor <= Motors.MOTOR_4; motor++) {
+                double pulse = Motors.DEFAULT_MIN_PULSE_US
+                        + expected[motor] / 100.0 * (Motors.DEFAULT_MAX_PULSE_US - Motors.DEFAULT_MIN_PULSE_US);
+                System.out.printf("motor %d: commanded %5.1f%%, pulse %7.1f us, expected %7.1f us (%.2f%% of period)%n",
+                        motor + 1, expected[motor], decoder.getWidthUs(motor), pulse, decoder.getDuty(motor));
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+// Renders held duties headless into a RingSink and decodes the pulses back
+// out of the stream
+public class MotorsTest
+{
+    private static final double[] DUTIES = { 25.0, 50.0, 75.0, 100.0 };
+
+    @Test
+    public void pulsesMatchTheDutiesAtTheDefaultFrameRate() throws InterruptedException
+    {
+        assertPulses(48000, PwmSynth.DEFAULT_FREQ);
+    }
+
+    @Test
+    public void pulsesMatchTheDutiesAtAHigherFrameRate() throws InterruptedException
+    {
+        assertPulses(44100, 200);
+    }
+
+    private static void assertPulses(int sampleRate, int frameRate) throws InterruptedException
+    {
+        int period = PwmSynth.periodOf(sampleRate, frameRate);
+        RingSink ring = new RingSink(8 * 2 * period, 4096);
+        Motors motors = new Motors(sampleRate, frameRate, ring);
+        motors.start_motors();
+        motors.setAllDuties(DUTIES[0], DUTIES[1], DUTIES[2], DUTIES[3]);
+        // The sink never blocks, so this renders far more than eight periods
+        Thread.sleep(100);
+        motors.stop_motors();
+
+        short[] tail = new short[8 * 2 * period];
+        ring.copyTail(tail);
+        PwmDecoder decoder = new PwmDecoder(sampleRate, frameRate);
+        decoder.process(tail, 0, tail.length);
+
+        for (int motor = Motors.MOTOR_1; motor <= Motors.MOTOR_4; motor++) {
+            double pulse = Motors.DEFAULT_MIN_PULSE_US
+                    + DUTIES[motor] / 100.0 * (Motors.DEFAULT_MAX_PULSE_US - Motors.DEFAULT_MIN_PULSE_US);
+            assertEquals(pulse, decoder.getWidthUs(motor), 0.5);
+        }
+    }
+}
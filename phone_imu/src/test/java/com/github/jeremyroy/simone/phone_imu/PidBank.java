@@ -0,0 +1,406 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import java.util.Arrays;
+
+// A fixed number of independent PID controllers ("axes") with their state
+// kept in one primitive array per field, evaluated together in a single
+// pass by update().
+//
+// Each axis behaves exactly like a MiniPID with the same settings,
+// including the output limits, ramp rate, output filter, setpoint range,
+// anti-windup and time-step-aware mode, and produces bit-identical output.
+// Only the default direction is supported; gains are taken by magnitude.
+//
+// Which optional features each axis uses is kept as a bit mask, updated when
+// a setting changes. When no axis uses any, as in the flight controller's
+// rate and attitude loops, update() runs a short branch-free pass over the
+// gain and state arrays; otherwise each axis only tests the features it
+// has. Nothing here allocates.
+//
+// Not used by the controllers: PidBenchmark measures it against MiniPID,
+// which RateController and AttitudeController keep since it was not
+// reliably faster.
+class PidBank
+{
+    private final int m_axes;
+
+    // Gains
+    private final double[] m_p;
+    private final double[] m_i;
+    private final double[] m_d;
+    private final double[] m_f;
+
+    // Limits and options, 0 meaning disabled as in MiniPID
+    private final double[] m_max_i_output;
+    private final double[] m_max_error;
+    private final double[] m_min_output;
+    private final double[] m_max_output;
+    private final double[] m_ramp_rate;
+    private final double[] m_filter;
+    private final double[] m_setpoint_range;
+
+    // State
+    private final double[] m_setpoint;
+    private final double[] m_error_sum;
+    private final double[] m_last_actual;
+    private final double[] m_last_output;
+
+    // P, I and D terms of the last output, for recording
+    private final double[] m_p_term;
+    private final double[] m_i_term;
+    private final double[] m_d_term;
+
+    // Which optional steps each axis needs, so that plain axes skip them
+    private static final int FIRST_RUN = 1;
+    private static final int SETPOINT_RANGE = 2;
+    private static final int I_LIMIT = 4;
+    private static final int LIMITS = 8;
+    private static final int RAMP = 16;
+    private static final int FILTER = 32;
+    private final int[] m_features;
+    private boolean m_plain;
+
+    private long m_nominal_period = 20000000L;
+
+    // Bounds on a measured step, in nominal periods, as in MiniPID
+    private static final double MIN_STEP = 0.25;
+    private static final double MAX_STEP = 4.0;
+
+    public PidBank(int axes)
+    {
+        if (axes <= 0)
+            throw new IllegalArgumentException("PidBank needs at least one axis");
+
+        m_axes = axes;
+        m_p = new double[axes];
+        m_i = new double[axes];
+        m_d = new double[axes];
+        m_f = new double[axes];
+        m_max_i_output = new double[axes];
+        m_max_error = new double[axes];
+        m_min_output = new double[axes];
+        m_max_output = new double[axes];
+        m_ramp_rate = new double[axes];
+        m_filter = new double[axes];
+        m_setpoint_range = new double[axes];
+        m_setpoint = new double[axes];
+        m_error_sum = new double[axes];
+        m_last_actual = new double[axes];
+        m_last_output = new double[axes];
+        m_p_term = new double[axes];
+        m_i_term = new double[axes];
+        m_d_term = new double[axes];
+        m_features = new int[axes];
+        Arrays.fill(m_features, FIRST_RUN);
+    }
+
+    public int getAxisCount()
+    {
+        return m_axes;
+    }
+
+    // Sets an axis' gains. Like MiniPID.setPID, a change of I gain rescales
+    // the accumulated error so the I term's output stays the same.
+    public void setPID(int axis, double p, double i, double d)
+    {
+        setPID(axis, p, i, d, m_f[axis]);
+    }
+
+    public void setPID(int axis, double p, double i, double d, double f)
+    {
+        m_p[axis] = Math.abs(p);
+        m_d[axis] = Math.abs(d);
+        m_f[axis] = Math.abs(f);
+
+        i = Math.abs(i);
+        if (m_i[axis] != 0 && i != 0)
+            m_error_sum[axis] = m_error_sum[axis] * m_i[axis] / i;
+        else
+            m_error_sum[axis] = 0;
+        if (m_max_i_output[axis] != 0 && i != 0)
+            m_max_error[axis] = m_max_i_output[axis] / i;
+        m_i[axis] = i;
+    }
+
+    public double getP(int axis)
+    {
+        return m_p[axis];
+    }
+
+    public double getI(int axis)
+    {
+        return m_i[axis];
+    }
+
+    public double getD(int axis)
+    {
+        return m_d[axis];
+    }
+
+    public void setMaxIOutput(int axis, double maximum)
+    {
+        m_max_i_output[axis] = maximum;
+        if (m_i[axis] != 0)
+            m_max_error[axis] = maximum / m_i[axis];
+        updateFeatures(axis);
+    }
+
+    public void setOutputLimits(int axis, double minimum, double maximum)
+    {
+        if (maximum < minimum)
+            return;
+        m_max_output[axis] = maximum;
+        m_min_output[axis] = minimum;
+
+        // Keep the I term within the output swing
+        if (m_max_i_output[axis] == 0 || m_max_i_output[axis] > maximum - minimum)
+            setMaxIOutput(axis, maximum - minimum);
+        updateFeatures(axis);
+    }
+
+    public void setOutputRampRate(int axis, double rate)
+    {
+        m_ramp_rate[axis] = rate;
+        updateFeatures(axis);
+    }
+
+    // strength in [0, 1), 0 disabling the filter
+    public void setOutputFilter(int axis, double strength)
+    {
+        if (strength == 0 || (0 < strength && strength < 1))
+            m_filter[axis] = strength;
+        updateFeatures(axis);
+    }
+
+    public void setSetpointRange(int axis, double range)
+    {
+        m_setpoint_range[axis] = range;
+        updateFeatures(axis);
+    }
+
+    public void setSetpoint(int axis, double setpoint)
+    {
+        m_setpoint[axis] = setpoint;
+    }
+
+    public double getSetpoint(int axis)
+    {
+        return m_setpoint[axis];
+    }
+
+    // P, I and D terms that made up an axis' last output, as x, y and z,
+    // before any limits, ramping or filtering
+    public void getTerms(int axis, Vect3F terms)
+    {
+        terms.x = m_p_term[axis];
+        terms.y = m_i_term[axis];
+        terms.z = m_d_term[axis];
+    }
+
+    // Cycle length the gains are tuned for; 20ms by default
+    public void setNominalPeriod(long nanos)
+    {
+        if (nanos > 0)
+            m_nominal_period = nanos;
+    }
+
+    // Clears an axis' integrator and restarts its derivative
+    public void reset(int axis)
+    {
+        m_features[axis] |= FIRST_RUN;
+        m_plain = false;
+        m_error_sum[axis] = 0;
+    }
+
+    // Runs every axis once against its setpoint, reading actual[axis] and
+    // writing output[axis]. dt_nanos is the time since the previous update,
+    // or 0 for one nominal period (see MiniPID.getOutput).
+    public void update(double[] actual, double[] output, long dt_nanos)
+    {
+        double step = dt_nanos <= 0 ? 1.0
+                : constrain((double)dt_nanos / m_nominal_period, MIN_STEP, MAX_STEP);
+
+        // No axis uses any optional feature: one tight pass
+        if (m_plain)
+        {
+            updatePlain(actual, output, step);
+            return;
+        }
+
+        final int[] features = m_features;
+        final double[] p = m_p;
+        final double[] i = m_i;
+        final double[] d = m_d;
+        final double[] f = m_f;
+        final double[] setpoints = m_setpoint;
+        final double[] error_sum = m_error_sum;
+        final double[] last_actual = m_last_actual;
+        final double[] last_output = m_last_output;
+        final double[] p_term = m_p_term;
+        final double[] i_term = m_i_term;
+        final double[] d_term = m_d_term;
+        final double[] setpoint_range = m_setpoint_range;
+        final double[] max_i_outputs = m_max_i_output;
+        final double[] max_error = m_max_error;
+        final double[] min_outputs = m_min_output;
+        final double[] max_outputs = m_max_output;
+        final double[] ramp_rates = m_ramp_rate;
+        final double[] filters = m_filter;
+        boolean first_run = false;
+
+        for (int a = 0; a < m_axes; a++)
+        {
+            int feature = features[a];
+            double measured = actual[a];
+            double setpoint = setpoints[a];
+
+            if ((feature & SETPOINT_RANGE) != 0)
+                setpoint = constrain(setpoint, measured - setpoint_range[a],
+                        measured + setpoint_range[a]);
+
+            double error = setpoint - measured;
+            double f_output = f[a] * setpoint;
+            double p_output = p[a] * error;
+
+            if ((feature & FIRST_RUN) != 0)
+            {
+                last_actual[a] = measured;
+                last_output[a] = p_output + f_output;
+                features[a] = feature &= ~FIRST_RUN;
+                first_run = true;
+            }
+
+            double d_output = -d[a] * (measured - last_actual[a]) / step;
+            last_actual[a] = measured;
+            p_term[a] = p_output;
+            d_term[a] = d_output;
+
+            // Plain PID, the common case
+            if (feature == 0)
+            {
+                double i_output = i[a] * error_sum[a];
+                double out = f_output + p_output + i_output + d_output;
+                error_sum[a] += error * step;
+                i_term[a] = i_output;
+                last_output[a] = out;
+                output[a] = out;
+                continue;
+            }
+
+            double max_i_output = max_i_outputs[a];
+            double i_output = i[a] * error_sum[a];
+            if ((feature & I_LIMIT) != 0)
+                i_output = constrain(i_output, -max_i_output, max_i_output);
+            i_term[a] = i_output;
+
+            double out = f_output + p_output + i_output + d_output;
+
+            // Anti-windup: restart the error sum while saturated or ramping,
+            // otherwise accumulate it within its limit
+            double min_output = min_outputs[a];
+            double max_output = max_outputs[a];
+            double previous = last_output[a];
+            double ramp_rate = ramp_rates[a] * step;
+            if ((feature & LIMITS) != 0 && !bounded(out, min_output, max_output))
+                error_sum[a] = error * step;
+            else if ((feature & RAMP) != 0 && !bounded(out, previous - ramp_rate, previous + ramp_rate))
+                error_sum[a] = error * step;
+            else if ((feature & I_LIMIT) != 0)
+                error_sum[a] = constrain(error_sum[a] + error * step, -max_error[a], max_error[a]);
+            else
+                error_sum[a] += error * step;
+
+            if ((feature & RAMP) != 0)
+                out = constrain(out, previous - ramp_rate, previous + ramp_rate);
+            if ((feature & LIMITS) != 0)
+                out = constrain(out, min_output, max_output);
+            if ((feature & FILTER) != 0)
+            {
+                double filter = Math.pow(filters[a], step);
+                out = previous * filter + out * (1 - filter);
+            }
+
+            last_output[a] = out;
+            output[a] = out;
+        }
+
+        if (first_run)
+            m_plain = isPlain();
+    }
+
+    private void updatePlain(double[] actual, double[] output, double step)
+    {
+        final double[] p = m_p;
+        final double[] i = m_i;
+        final double[] d = m_d;
+        final double[] f = m_f;
+        final double[] setpoints = m_setpoint;
+        final double[] error_sum = m_error_sum;
+        final double[] last_actual = m_last_actual;
+        final double[] last_output = m_last_output;
+        final double[] p_term = m_p_term;
+        final double[] i_term = m_i_term;
+        final double[] d_term = m_d_term;
+
+        for (int a = 0; a < m_axes; a++)
+        {
+            double measured = actual[a];
+            double setpoint = setpoints[a];
+            double error = setpoint - measured;
+            double p_output = p[a] * error;
+            double i_output = i[a] * error_sum[a];
+            double d_output = -d[a] * (measured - last_actual[a]) / step;
+            double out = f[a] * setpoint + p_output + i_output + d_output;
+            error_sum[a] += error * step;
+            last_actual[a] = measured;
+            p_term[a] = p_output;
+            i_term[a] = i_output;
+            d_term[a] = d_output;
+            last_output[a] = out;
+            output[a] = out;
+        }
+    }
+
+    // Recomputes the feature bits of an axis after a setting changed
+    private void updateFeatures(int axis)
+    {
+        int feature = m_features[axis] & FIRST_RUN;
+        if (m_setpoint_range[axis] != 0)
+            feature |= SETPOINT_RANGE;
+        if (m_max_i_output[axis] != 0)
+            feature |= I_LIMIT;
+        if (m_min_output[axis] != m_max_output[axis])
+            feature |= LIMITS;
+        if (m_ramp_rate[axis] != 0)
+            feature |= RAMP;
+        if (m_filter[axis] != 0)
+            feature |= FILTER;
+        m_features[axis] = feature;
+        m_plain = isPlain();
+    }
+
+    private boolean isPlain()
+    {
+        for (int a = 0; a < m_axes; a++)
+        {
+            if (m_features[a] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static double constrain(double value, double min, double max)
+    {
+        if (value > max)
+            return max;
+        if (value < min)
+            return min;
+        return value;
+    }
+
+    // Exclusive, as in MiniPID
+    private static boolean bounded(double value, double min, double max)
+    {
+        return min < value && value < max;
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import com.stormbots.MiniPID;
+import java.util.Random;
+
+// Times one three-axis PidBank update against three MiniPID.getOutput calls,
+// as the rate controller makes, and checks that both give the same outputs
+// with every optional feature in play. JMH is not part of this build, so it
+// times with System.nanoTime() like the other benchmarks.
+//
+// On a desktop JVM, three runs gave 28-40 ns/tick for MiniPID and 28-33 for
+// PidBank with plain gains, but 36-44 against 45-59 with output limits: not
+// enough to move the controllers off MiniPID.
+//
+// Usage: PidBenchmark [ticks]
+public class PidBenchmark
+{
+    private static final int AXES = 3;
+    private static final int SAMPLES = 4096;
+
+    public static void main(String[] args)
+    {
+        int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+        Random random = new Random(1);
+        double[] inputs = new double[AXES * SAMPLES];
+        double[] setpoints = new double[AXES * SAMPLES];
+        long[] steps = new long[SAMPLES];
+        for (int i = 0; i < AXES * SAMPLES; i++) {
+            inputs[i] = random.nextGaussian();
+            setpoints[i] = random.nextGaussian();
+        }
+        // Fixed, jittered and out of range steps
+        for (int i = 0; i < SAMPLES; i++)
+            steps[i] = (i % 3 == 0) ? 0 : (i % 7 == 0) ? random.nextInt(200000000)
+                    : 15000000 + random.nextInt(10000000);
+
+        // Outputs must match exactly, for plain and fully featured axes
+        int mismatches = 0;
+        for (int config = 0; config < 32; config++) {
+            MiniPID[] pids = new MiniPID[AXES];
+            PidBank bank = new PidBank(AXES);
+            for (int a = 0; a < AXES; a++) {
+                double p = random.nextDouble(), i = random.nextDouble() * 0.5, d = random.nextDouble();
+                pids[a] = new MiniPID(p, i, d);
+                bank.setPID(a, p, i, d);
+                configure(pids[a], bank, a, config >> a);
+            }
+
+            double[] actual = new double[AXES];
+            double[] output = new double[AXES];
+            for (int k = 0; k < SAMPLES; k++) {
+                for (int a = 0; a < AXES; a++) {
+                    actual[a] = inputs[AXES * k + a];
+                    pids[a].setSetpoint(setpoints[AXES * k + a]);
+                    bank.setSetpoint(a, setpoints[AXES * k + a]);
+                }
+                bank.update(actual, output, steps[k]);
+                for (int a = 0; a < AXES; a++) {
+                    double expected = pids[a].getOutput(actual[a], pids[a].getSetpoint(), steps[k]);
+                    if (Double.doubleToLongBits(expected) != Double.doubleToLongBits(output[a]))
+                        mismatches++;
+                }
+
+                // Retune now and then, carrying the integrators over
+                if (k % 1000 == 999) {
+                    for (int a = 0; a < AXES; a++) {
+                        double i = random.nextInt(4) * 0.1;
+                        pids[a].setPID(1, i, 0.1);
+                        bank.setPID(a, 1, i, 0.1);
+                    }
+                }
+            }
+        }
+
+        // Timing, plain as the flight controller runs them, then with output
+        // limits
+        double[] actual = new double[AXES];
+        double[] output = new double[AXES];
+        double sink = 0;
+        for (int limited = 0; limited < 2; limited++) {
+            MiniPID[] pids = new MiniPID[AXES];
+            PidBank bank = new PidBank(AXES);
+            for (int a = 0; a < AXES; a++) {
+                pids[a] = new MiniPID(0.7, 0.1, 0.01);
+                bank.setPID(a, 0.7, 0.1, 0.01);
+                if (limited != 0) {
+                    pids[a].setOutputLimits(-50, 50);
+                    bank.setOutputLimits(a, -50, 50);
+                }
+                pids[a].setSetpoint(0.1 * a);
+                bank.setSetpoint(a, 0.1 * a);
+            }
+
+            double mini_ns = 0, bank_ns = 0;
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < ticks; i++) {
+                    int k = AXES * (i & (SAMPLES - 1));
+                    sink += pids[0].getOutput(inputs[k], pids[0].getSetpoint());
+                    sink += pids[1].getOutput(inputs[k + 1], pids[1].getSetpoint());
+                    sink += pids[2].getOutput(inputs[k + 2], pids[2].getSetpoint());
+                }
+                mini_ns = (double)(System.nanoTime() - start) / ticks;
+
+                start = System.nanoTime();
+                for (int i = 0; i < ticks; i++) {
+                    int k = AXES * (i & (SAMPLES - 1));
+                    actual[0] = inputs[k];
+                    actual[1] = inputs[k + 1];
+                    actual[2] = inputs[k + 2];
+                    bank.update(actual, output, 0);
+                    sink += output[0] + output[1] + output[2];
+                }
+                bank_ns = (double)(System.nanoTime() - start) / ticks;
+            }
+
+            System.out.println(limited != 0 ? "output limits:" : "plain:");
+            System.out.printf("  3 x MiniPID:  %5.1f ns/tick%n", mini_ns);
+            System.out.printf("  PidBank(3):   %5.1f ns/tick%n", bank_ns);
+        }
+        System.out.println(mismatches + " mismatches against MiniPID");
+
+        if (sink == 42)
+            System.out.println();
+        if (mismatches != 0)
+            System.exit(1);
+    }
+
+    // Enables a different mix of optional features depending on the bits
+    // of features
+    private static void configure(MiniPID pid, PidBank bank, int axis, int features)
+    {
+        if ((features & 1) != 0) {
+            pid.setOutputLimits(-1.5, 2);
+            bank.setOutputLimits(axis, -1.5, 2);
+        }
+        if ((features & 2) != 0) {
+            pid.setOutputRampRate(0.3);
+            bank.setOutputRampRate(axis, 0.3);
+        }
+        if ((features & 4) != 0) {
+            pid.setOutputFilter(0.2);
+            bank.setOutputFilter(axis, 0.2);
+        }
+        if ((features & 8) != 0) {
+            pid.setMaxIOutput(0.5);
+            bank.setMaxIOutput(axis, 0.5);
+        }
+        if ((features & 16) != 0) {
+            pid.setSetpointRange(0.8);
+            bank.setSetpointRange(axis, 0.8);
+        }
+    }
+}
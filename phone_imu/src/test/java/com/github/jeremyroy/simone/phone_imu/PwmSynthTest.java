@@ -0,0 +1,214 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+// PwmSynth against the per-sample phase accumulator Motors.Audio used to
+// run, rendered side by side from the same pulse widths
+public class PwmSynthTest
+{
+    private static final double[] PULSES_US = { 1000.0, 1250.0, 1500.0, 2000.0 };
+
+    @Test
+    public void periodsStartWhereTheAccumulatorWrappedAt50Hz()
+    {
+        assertMatchesAccumulator(44100, 50);
+        assertMatchesAccumulator(48000, 50);
+    }
+
+    @Test
+    public void periodLengthsAlternateAsTheAccumulatorsDid()
+    {
+        // 367.5 and 220.5 frame periods
+        assertMatchesAccumulator(44100, 120);
+        assertMatchesAccumulator(44100, 200);
+    }
+
+    @Test
+    public void periodLengthsAddUpToTheFrameRate()
+    {
+        int[] rises = risingEdges(renderSynth(44100, 200, 44100 + 221), 0, PwmSynth.AMPLITUDE_1);
+        // The first pulse runs on from the leading frame, then 200 periods
+        // take exactly one second
+        assertEquals(201, rises.length);
+        assertEquals(0, rises[0]);
+        assertEquals(222, rises[1]);
+        assertEquals(44101, rises[200]);
+        int shortest = Integer.MAX_VALUE, longest = 0;
+        for (int k = 2; k < rises.length; k++) {
+            shortest = Math.min(shortest, rises[k] - rises[k - 1]);
+            longest = Math.max(longest, rises[k] - rises[k - 1]);
+        }
+        assertEquals(220, shortest);
+        assertEquals(221, longest);
+    }
+
+    @Test
+    public void dutyChangeWaitsForThePeriodBoundary()
+    {
+        int rate = 48000;
+        SeqLock duties = new SeqLock(8);
+        publish(duties, PULSES_US, 50);
+        PwmSynth synth = new PwmSynth(rate, duties, new ActuationLatency());
+
+        // Into the first period, then change motor 1
+        short[] out = new short[2 * 3 * 960];
+        synth.render(out, 0, 2 * 10);
+        publish(duties, new double[] { 2000.0, 1250.0, 1500.0, 2000.0 }, 50);
+        synth.render(out, 2 * 10, out.length - 2 * 10);
+
+        // The leading frame and a 1000 us pulse until the next period, at
+        // frame 961; the second pulses start 479 frames into each period
+        assertEquals(1 + 48, highFrames(out, 0, 0, 480));
+        assertEquals(96, highFrames(out, 0, 961, 961 + 479));
+    }
+
+    private static void assertMatchesAccumulator(int rate, int freq)
+    {
+        int frames = rate / 2;
+        short[] synth = renderSynth(rate, freq, frames);
+        short[] old = renderAccumulator(rate, freq, frames);
+
+        for (int channel = 0; channel < 2; channel++) {
+            int[] old_rises = risingEdges(old, channel, PwmSynth.AMPLITUDE_1);
+            int[] rises = risingEdges(synth, channel, PwmSynth.AMPLITUDE_1);
+            int[] old_falls = fallingEdges(old, channel, PwmSynth.AMPLITUDE_1);
+            int[] falls = fallingEdges(synth, channel, PwmSynth.AMPLITUDE_1);
+            int[] old_rises_2 = risingEdges(old, channel, PwmSynth.AMPLITUDE_2);
+            int[] rises_2 = risingEdges(synth, channel, PwmSynth.AMPLITUDE_2);
+            int[] old_falls_2 = fallingEdges(old, channel, PwmSynth.AMPLITUDE_2);
+            int[] falls_2 = fallingEdges(synth, channel, PwmSynth.AMPLITUDE_2);
+            assertEquals(old_rises.length, rises.length);
+            assertEquals(old_rises_2.length, rises_2.length);
+
+            for (int k = 0; k < rises.length; k++) {
+                // The accumulator's double phase may wrap a sample late on a
+                // boundary that falls exactly on a frame
+                boolean exact = (long)k * rate % freq == 0;
+                int late = old_rises[k] - rises[k];
+                assertTrue(late == 0 || (exact && late == 1));
+                int longer = falls[k] - old_falls[k];
+                assertTrue(longer >= 0 && longer <= 2);
+            }
+            for (int k = 0; k < rises_2.length; k++) {
+                assertTrue(Math.abs(rises_2[k] - old_rises_2[k]) <= 1);
+                int longer = falls_2[k] - old_falls_2[k];
+                assertTrue(longer >= 0 && longer <= 2);
+            }
+        }
+    }
+
+    private static short[] renderSynth(int rate, int freq, int frames)
+    {
+        SeqLock duties = new SeqLock(8);
+        publish(duties, PULSES_US, freq);
+        PwmSynth synth = new PwmSynth(rate, duties, new ActuationLatency());
+        short[] out = new short[2 * frames];
+        // In uneven pieces, as a sink would take them
+        for (int offset = 0; offset < out.length; ) {
+            int length = Math.min(out.length - offset, 2 * 333);
+            synth.render(out, offset, length);
+            offset += length;
+        }
+        return out;
+    }
+
+    private static void publish(SeqLock duties, double[] pulses_us, int freq)
+    {
+        duties.beginWrite();
+        for (int motor = Motors.MOTOR_1; motor <= Motors.MOTOR_4; motor++)
+            duties.putDouble(motor, pulses_us[motor]);
+        duties.putLong(Motors.FRAME_RATE, freq);
+        duties.putLong(Motors.STAMP_RECEIPT, 0);
+        duties.putLong(Motors.STAMP_WRITE, 0);
+        duties.putLong(Motors.STAMP_ORIGIN, 0);
+        duties.endWrite();
+    }
+
+    // The loop of the old Motors.Audio.processAudio(), with the duties as
+    // percents of the period
+    private static short[] renderAccumulator(int rate, int freq, int frames)
+    {
+        double duty0 = PULSES_US[0] * freq / 1e4;
+        double duty1 = PULSES_US[1] * freq / 1e4;
+        double duty2 = PULSES_US[2] * freq / 1e4;
+        double duty3 = PULSES_US[3] * freq / 1e4;
+        int amplitude1 = (int)(8 / 100.0 * 32767);
+        int amplitude2 = (int)(2 / 100.0 * 32767);
+
+        short[] samples = new short[2 * frames];
+        double K = 2.0 * Math.PI / rate;
+        double phaseL = 0;
+        double phaseR = 0;
+        for (int i = 0; i < samples.length; i++) {
+            if (i % 2 == 0) {
+                if (phaseL < Math.PI) {
+                    double cut_off_phase = duty0 / 100.0 * 2.0 * Math.PI;
+                    samples[i] = (phaseL > cut_off_phase) ? (short) 0 : (short) amplitude1;
+                } else {
+                    double cut_off_phase = (duty1 / 100.0 * 2.0 * Math.PI) + Math.PI;
+                    samples[i] = (phaseL > cut_off_phase) ? (short) 0 : (short) amplitude2;
+                }
+                phaseL += (phaseL < 2.0 * Math.PI) ? freq * K : (freq * K) - (2.0 * Math.PI);
+            } else {
+                if (phaseR < Math.PI) {
+                    double cut_off_phase = duty2 / 100.0 * 2.0 * Math.PI;
+                    samples[i] = (phaseR > cut_off_phase) ? (short) 0 : (short) amplitude1;
+                } else {
+                    double cut_off_phase = (duty3 / 100.0 * 2.0 * Math.PI) + Math.PI;
+                    samples[i] = (phaseR > cut_off_phase) ? (short) 0 : (short) amplitude2;
+                }
+                phaseR += (phaseR < 2.0 * Math.PI) ? freq * K : (freq * K) - (2.0 * Math.PI);
+            }
+        }
+        return samples;
+    }
+
+    // Frames at which pulses of the given amplitude start on a channel. A
+    // partial edge sample is never above the amplitude, so the peak decides.
+    private static int[] risingEdges(short[] samples, int channel, short amplitude)
+    {
+        return edges(samples, channel, amplitude, true);
+    }
+
+    // First silent frame after each pulse of the given amplitude
+    private static int[] fallingEdges(short[] samples, int channel, short amplitude)
+    {
+        return edges(samples, channel, amplitude, false);
+    }
+
+    private static int[] edges(short[] samples, int channel, short amplitude, boolean rising)
+    {
+        int frames = samples.length / 2;
+        int[] found = new int[frames];
+        int count = 0;
+        int start = -1;
+        for (int frame = 0; frame <= frames; frame++) {
+            short sample = frame < frames ? samples[2 * frame + channel] : 0;
+            if (sample != 0 && start < 0) {
+                start = frame;
+            } else if (sample == 0 && start >= 0) {
+                // Only whole pulses, of this amplitude
+                if (frame < frames && samples[2 * start + channel] == amplitude)
+                    found[count++] = rising ? start : frame;
+                start = -1;
+            }
+        }
+        int[] edges = new int[count];
+        System.arraycopy(found, 0, edges, 0, count);
+        return edges;
+    }
+
+    // Frames in [from, to) on a channel that are at least partly high
+    private static int highFrames(short[] samples, int channel, int from, int to)
+    {
+        int count = 0;
+        for (int frame = from; frame < to; frame++) {
+            if (samples[2 * frame + channel] != 0)
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.jeremyroy.simone.phone_imu;
+
+// Measures actuation latency of Motors against a simulated real-time sink,
+// with and without streaming mode. The sink plays back at the sample rate
+// from a device buffer of fixed size, blocking writes while it is full, as
+// AudioTrack does; commands arrive every few milliseconds, as from the
+// flight controller.
+//
+// Usage: StreamingBenchmark [seconds] [sample rate] [frame rate] [buffer frames]
+public class StreamingBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 5.0;
+        int sampleRate = args.length > 1 ? Integer.parseInt(args[1]) : 48000;
+        int frameRate = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int bufferFrames = args.length > 3 ? Integer.parseInt(args[3]) : 1600;
+
+        for (boolean streaming : new boolean[] { false, true }) {
+            RealTimeSink sink = new RealTimeSink(bufferFrames);
+            Motors motors = new Motors(sampleRate, frameRate, sink);
+            motors.setStreaming(streaming);
+            motors.start_motors();
+
+            long end = System.nanoTime() + (long)(seconds * 1e9);
+            int step = 0;
+            while (System.nanoTime() < end) {
+                double d = step++ % 100;
+                motors.setAllDuties(d, 100 - d, d / 2, 50 + d / 2);
+                Thread.sleep(5);
+            }
+            motors.stop_motors();
+
+            LatencyHistogram.Summary total = new LatencyHistogram.Summary();
+            motors.getLatency().getTotal().drain(total);
+            System.out.printf("%-9s: %d commands, total latency p50 %.1f ms, p99 %.1f ms, "
+                    + "chunk %d frames, %d underruns%n", streaming ? "streaming" : "buffered",
+                    total.count, total.p50 / 1e6, total.p99 / 1e6, motors.getChunkSize(),
+                    motors.getUnderrunCount());
+        }
+    }
+
+    // Plays frames at the sample rate from a buffer of bufferFrames, stalling
+    // when it runs dry
+    static class RealTimeSink implements MotorSink
+    {
+        private final int m_buffer_frames;
+        private int m_sample_rate;
+        private long m_written;
+        private long m_played;
+        private long m_last;
+
+        RealTimeSink(int bufferFrames)
+        {
+            m_buffer_frames = bufferFrames;
+        }
+
+        @Override
+        public synchronized int open(int sampleRate)
+        {
+            m_sample_rate = sampleRate;
+            m_written = 0;
+            m_played = 0;
+            m_last = System.nanoTime();
+            return 2 * m_buffer_frames;
+        }
+
+        @Override
+        public void write(short[] samples, int offset, int length) throws java.io.IOException
+        {
+            long frames = length / 2;
+            while (true) {
+                long room;
+                synchronized (this) {
+                    room = m_buffer_frames - (m_written - play());
+                    if (room >= frames) {
+                        m_written += frames;
+                        return;
+                    }
+                }
+                try {
+                    Thread.sleep(Math.max(1, (frames - room) * 1000 / m_sample_rate));
+                } catch (InterruptedException e) {
+                    throw new java.io.InterruptedIOException();
+                }
+            }
+        }
+
+        @Override
+        public synchronized long getPlaybackPosition()
+        {
+            return play();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        // Advances playback to now, no further than what was written
+        private long play()
+        {
+            long now = System.nanoTime();
+            m_played = Math.min(m_written, m_played + (now - m_last) * m_sample_rate / 1000000000L);
+            m_last = now;
+            return m_played;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.stormbots;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MiniPIDTest {
+	private static final long NOMINAL=20000000L;
+
+	@Test
+	public void termsAddUpToTheOutput(){
+		MiniPID pid=new MiniPID(1.5, 0.1, 2.0);
+		Random random=new Random(1);
+		double actual=0;
+		for(int i=0;i<1000;i++){
+			actual+=random.nextGaussian()*0.1;
+			double output=pid.getOutput(actual, 0.5);
+			assertEquals(output, pid.getLastPOutput()+pid.getLastIOutput()+pid.getLastDOutput(), 1e-12);
+		}
+	}
+
+	@Test
+	public void termsAreTakenBeforeTheOutputLimits(){
+		MiniPID pid=new MiniPID(10, 0, 0);
+		pid.setOutputLimits(1);
+		assertEquals(1.0, pid.getOutput(0, 2), 0.0);
+		assertEquals(20.0, pid.getLastPOutput(), 0.0);
+	}
+
+	@Test
+	public void nominalStepMatchesTheFixedStep(){
+		MiniPID fixed=new MiniPID(1.5, 0.1, 2.0);
+		MiniPID timed=new MiniPID(1.5, 0.1, 2.0);
+		fixed.setOutputLimits(5);
+		timed.setOutputLimits(5);
+		timed.setNominalPeriod(NOMINAL);
+		Random random=new Random(2);
+		double actual=0;
+		for(int i=0;i<1000;i++){
+			actual+=random.nextGaussian()*0.1;
+			assertEquals(fixed.getOutput(actual, 0.5), timed.getOutput(actual, 0.5, NOMINAL), 0.0);
+		}
+	}
+
+	@Test
+	public void integralAndDerivativeScaleWithTheStep(){
+		MiniPID pid=new MiniPID(0, 1.0, 1.0);
+		pid.getOutput(0, 1, NOMINAL);
+		pid.getOutput(0.5, 1, 2*NOMINAL);
+		// Twice the step: the change in actual spreads over two periods
+		assertEquals(-0.25, pid.getLastDOutput(), 1e-12);
+		// The first error of 1 accumulated over one period
+		assertEquals(1.0, pid.getLastIOutput(), 1e-12);
+		pid.getOutput(0.5, 1, NOMINAL);
+		// Plus the error of 0.5 over two periods
+		assertEquals(2.0, pid.getLastIOutput(), 1e-12);
+	}
+
+	@Test
+	public void tinyStepsAreHeldToAQuarterPeriod(){
+		MiniPID pid=new MiniPID(0, 1.0, 1.0);
+		pid.getOutput(0, 1, NOMINAL);
+		// Two samples a microsecond apart: D as if a quarter period apart, not 20000 times
+		pid.getOutput(0.1, 1, 1000L);
+		assertEquals(-0.4, pid.getLastDOutput(), 1e-12);
+		pid.getOutput(0.1, 1, 1L);
+		// The error of 0.9 accumulated over a quarter period
+		assertEquals(1.0+0.225, pid.getLastIOutput(), 1e-12);
+	}
+
+	@Test
+	public void hugeStepsAreHeldToFourPeriods(){
+		MiniPID pid=new MiniPID(0, 1.0, 1.0);
+		pid.getOutput(0, 1, NOMINAL);
+		// A tick a minute late: D and I as if four periods apart
+		pid.getOutput(0.4, 1, 60000000000L);
+		assertEquals(-0.1, pid.getLastDOutput(), 1e-12);
+		pid.getOutput(0.4, 1, Long.MAX_VALUE);
+		assertEquals(1.0+0.6*4, pid.getLastIOutput(), 1e-12);
+	}
+
+	@Test
+	public void rampIsHeldToFourPeriods(){
+		MiniPID pid=new MiniPID(1.0, 0, 0);
+		pid.setOutputRampRate(0.5);
+		pid.getOutput(0, 0, NOMINAL);
+		// A step in error of 10 after a long gap ramps by at most four periods' worth
+		assertEquals(2.0, pid.getOutput(0, 10, 60000000000L), 1e-12);
+	}
+}